@@ -19,9 +19,14 @@ package com.googlecode.htmlcompressor;
 import com.google.javascript.jscomp.CompilationLevel;
 import com.google.javascript.jscomp.JSSourceFile;
 import com.googlecode.htmlcompressor.analyzer.HtmlAnalyzer;
+import com.googlecode.htmlcompressor.compressor.BlockCache;
+import com.googlecode.htmlcompressor.compressor.BlockCacheFile;
 import com.googlecode.htmlcompressor.compressor.ClosureJavaScriptCompressor;
+import com.googlecode.htmlcompressor.compressor.CompressionListener;
 import com.googlecode.htmlcompressor.compressor.Compressor;
 import com.googlecode.htmlcompressor.compressor.HtmlCompressor;
+import com.googlecode.htmlcompressor.compressor.HtmlCompressorStatistics;
+import com.googlecode.htmlcompressor.compressor.StatisticsFormat;
 import com.googlecode.htmlcompressor.compressor.XmlCompressor;
 import jargs.gnu.CmdLineParser;
 import jargs.gnu.CmdLineParser.Option;
@@ -34,6 +39,9 @@ import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Wrapper for HTML and XML compressor classes that allows using them from a command line.
@@ -50,15 +58,25 @@ public class CmdLineCompressor {
 
     private boolean helpOpt;
     private boolean analyzeOpt;
+    private String reportFormatOpt;
+    private String statisticsFilenameOpt;
+    private long blockCacheSizeOpt;
+    private String blockCacheDirOpt;
+    private String blockCacheConfiguration;
     private String charsetOpt;
     private String outputFilenameOpt;
     private String outputFilenameSuffixOpt;
+    private boolean gzipOpt;
+    private boolean deflateOpt;
+    private int gzipLevelOpt;
+    private boolean keepUncompressedOpt;
     private String patternsFilenameOpt;
     private String typeOpt;
     private String filemaskOpt;
     private boolean recursiveOpt;
     private boolean preserveCommentsOpt;
     private boolean preserveIntertagSpacesOpt;
+    private boolean streamOpt;
     private boolean preserveMultiSpacesOpt;
     private boolean removeIntertagSpacesOpt;
     private boolean removeQuotesOpt;
@@ -71,6 +89,10 @@ public class CmdLineCompressor {
     private boolean skipCompressJsIfPreserved;
     private boolean skipCompressCssIfPreserved;
     private boolean compressCssOpt;
+    private boolean compressJsonOpt;
+    private boolean compressHtmlTemplatesOpt;
+    private boolean compressSvgOpt;
+    private int svgPrecisionOpt;
     private String jsCompressorOpt;
 
     private boolean simpleDoctypeOpt;
@@ -83,6 +105,9 @@ public class CmdLineCompressor {
     private boolean removeJavaScriptProtocolOpt;
     private boolean removeHttpProtocolOpt;
     private boolean removeHttpsProtocolOpt;
+    private boolean sortAttributesOpt;
+    private boolean sortClassNamesOpt;
+    private boolean removeOptionalTagsOpt;
 
     private boolean nomungeOpt;
     private int linebreakOpt;
@@ -95,6 +120,9 @@ public class CmdLineCompressor {
 
     private String[] fileArgsOpt;
 
+    private CompressionListener compressionListener;
+    private BlockCacheFile blockCacheFile;
+
     public static void main(String[] args) {
         CmdLineCompressor cmdLineCompressor = new CmdLineCompressor(args);
         cmdLineCompressor.process();
@@ -106,15 +134,24 @@ public class CmdLineCompressor {
         Option helpOpt = parser.addBooleanOption('h', "help");
         Option helpOptAlt = parser.addBooleanOption('?', "help_alt");
         Option analyzeOpt = parser.addBooleanOption('a', "analyze");
+        Option reportFormatOpt = parser.addStringOption("report-format");
+        Option statisticsFilenameOpt = parser.addStringOption("statistics");
+        Option blockCacheSizeOpt = parser.addLongOption("block-cache-size");
+        Option blockCacheDirOpt = parser.addStringOption("block-cache");
         Option recursiveOpt = parser.addBooleanOption('r', "recursive");
         Option charsetOpt = parser.addStringOption('c', "charset");
         Option outputFilenameOpt = parser.addStringOption('o', "output");
         Option outputFilenameSuffixOpt = parser.addStringOption('s', "output-suffix");
+        Option gzipOpt = parser.addBooleanOption("gzip");
+        Option deflateOpt = parser.addBooleanOption("deflate");
+        Option gzipLevelOpt = parser.addIntegerOption("gzip-level");
+        Option keepUncompressedOpt = parser.addBooleanOption("keep-uncompressed");
         Option patternsFilenameOpt = parser.addStringOption('p', "preserve");
         Option typeOpt = parser.addStringOption('t', "type");
         Option filemaskOpt = parser.addStringOption('m', "mask");
         Option preserveCommentsOpt = parser.addBooleanOption("preserve-comments");
         Option preserveIntertagSpacesOpt = parser.addBooleanOption("preserve-intertag-spaces");
+        Option streamOpt = parser.addBooleanOption("stream");
         Option preserveMultiSpacesOpt = parser.addBooleanOption("preserve-multi-spaces");
         Option removeIntertagSpacesOpt = parser.addBooleanOption("remove-intertag-spaces");
         Option removeSurroundingSpacesOpt = parser.addStringOption("remove-surrounding-spaces");
@@ -127,6 +164,10 @@ public class CmdLineCompressor {
         Option skipCompressJsIfPreservedOpt = parser.addBooleanOption("compress-js-skip-preserve");
         Option skipCompressCssIfPreservedOpt = parser.addBooleanOption("compress-css-skip-preserve");
         Option compressCssOpt = parser.addBooleanOption("compress-css");
+        Option compressJsonOpt = parser.addBooleanOption("compress-json");
+        Option compressHtmlTemplatesOpt = parser.addBooleanOption("compress-templates");
+        Option compressSvgOpt = parser.addBooleanOption("compress-svg");
+        Option svgPrecisionOpt = parser.addIntegerOption("svg-precision");
         Option jsCompressorOpt = parser.addStringOption("js-compressor");
 
         Option simpleDoctypeOpt = parser.addBooleanOption("simple-doctype");
@@ -139,6 +180,9 @@ public class CmdLineCompressor {
         Option removeJavaScriptProtocolOpt = parser.addBooleanOption("remove-js-protocol");
         Option removeHttpProtocolOpt = parser.addBooleanOption("remove-http-protocol");
         Option removeHttpsProtocolOpt = parser.addBooleanOption("remove-https-protocol");
+        Option sortAttributesOpt = parser.addBooleanOption("sort-attributes");
+        Option sortClassNamesOpt = parser.addBooleanOption("sort-class-names");
+        Option removeOptionalTagsOpt = parser.addBooleanOption("remove-optional-tags");
 
         Option nomungeOpt = parser.addBooleanOption("nomunge");
         Option linebreakOpt = parser.addStringOption("line-break");
@@ -154,15 +198,24 @@ public class CmdLineCompressor {
 
             this.helpOpt = (Boolean) parser.getOptionValue(helpOpt, false) || (Boolean) parser.getOptionValue(helpOptAlt, false);
             this.analyzeOpt = (Boolean) parser.getOptionValue(analyzeOpt, false);
+            this.reportFormatOpt = (String) parser.getOptionValue(reportFormatOpt, StatisticsFormat.TEXT);
+            this.statisticsFilenameOpt = (String) parser.getOptionValue(statisticsFilenameOpt);
+            this.blockCacheSizeOpt = (Long) parser.getOptionValue(blockCacheSizeOpt, 0L);
+            this.blockCacheDirOpt = (String) parser.getOptionValue(blockCacheDirOpt);
             this.recursiveOpt = (Boolean) parser.getOptionValue(recursiveOpt, false);
             this.charsetOpt = (String) parser.getOptionValue(charsetOpt, "UTF-8");
             this.outputFilenameOpt = (String) parser.getOptionValue(outputFilenameOpt);
             this.outputFilenameSuffixOpt = (String) parser.getOptionValue(outputFilenameSuffixOpt);
+            this.gzipOpt = (Boolean) parser.getOptionValue(gzipOpt, false);
+            this.deflateOpt = (Boolean) parser.getOptionValue(deflateOpt, false);
+            this.gzipLevelOpt = (Integer) parser.getOptionValue(gzipLevelOpt, Deflater.BEST_COMPRESSION);
+            this.keepUncompressedOpt = (Boolean) parser.getOptionValue(keepUncompressedOpt, false);
             this.patternsFilenameOpt = (String) parser.getOptionValue(patternsFilenameOpt);
             this.typeOpt = (String) parser.getOptionValue(typeOpt);
             this.filemaskOpt = (String) parser.getOptionValue(filemaskOpt);
             this.preserveCommentsOpt = (Boolean) parser.getOptionValue(preserveCommentsOpt, false);
             this.preserveIntertagSpacesOpt = (Boolean) parser.getOptionValue(preserveIntertagSpacesOpt, false);
+            this.streamOpt = (Boolean) parser.getOptionValue(streamOpt, false);
             this.preserveMultiSpacesOpt = (Boolean) parser.getOptionValue(preserveMultiSpacesOpt, false);
             this.removeIntertagSpacesOpt = (Boolean) parser.getOptionValue(removeIntertagSpacesOpt, false);
             this.removeQuotesOpt = (Boolean) parser.getOptionValue(removeQuotesOpt, false);
@@ -172,6 +225,10 @@ public class CmdLineCompressor {
             this.preserveSsiTagsOpt = (Boolean) parser.getOptionValue(preserveSsiTagsOpt, false);
             this.compressJsOpt = (Boolean) parser.getOptionValue(compressJsOpt, false);
             this.compressCssOpt = (Boolean) parser.getOptionValue(compressCssOpt, false);
+            this.compressJsonOpt = (Boolean) parser.getOptionValue(compressJsonOpt, false);
+            this.compressHtmlTemplatesOpt = (Boolean) parser.getOptionValue(compressHtmlTemplatesOpt, false);
+            this.compressSvgOpt = (Boolean) parser.getOptionValue(compressSvgOpt, false);
+            this.svgPrecisionOpt = (Integer) parser.getOptionValue(svgPrecisionOpt, 3);
             this.skipCompressJsIfPreserved = (Boolean) parser.getOptionValue(skipCompressJsIfPreservedOpt, false);
             this.skipCompressCssIfPreserved = (Boolean) parser.getOptionValue(skipCompressCssIfPreservedOpt, false);
             this.jsCompressorOpt = (String) parser.getOptionValue(jsCompressorOpt, HtmlCompressor.JS_COMPRESSOR_YUI);
@@ -186,6 +243,9 @@ public class CmdLineCompressor {
             this.removeJavaScriptProtocolOpt = (Boolean) parser.getOptionValue(removeJavaScriptProtocolOpt, false);
             this.removeHttpProtocolOpt = (Boolean) parser.getOptionValue(removeHttpProtocolOpt, false);
             this.removeHttpsProtocolOpt = (Boolean) parser.getOptionValue(removeHttpsProtocolOpt, false);
+            this.sortAttributesOpt = (Boolean) parser.getOptionValue(sortAttributesOpt, false);
+            this.sortClassNamesOpt = (Boolean) parser.getOptionValue(sortClassNamesOpt, false);
+            this.removeOptionalTagsOpt = (Boolean) parser.getOptionValue(removeOptionalTagsOpt, false);
 
             this.nomungeOpt = (Boolean) parser.getOptionValue(nomungeOpt, false);
             this.linebreakOpt = (Integer) parser.getOptionValue(linebreakOpt, -1);
@@ -211,6 +271,9 @@ public class CmdLineCompressor {
             //input file
             this.fileArgsOpt = parser.getRemainingArgs();
 
+            //persisted blocks are only reused with the same options
+            this.blockCacheConfiguration = buildBlockCacheConfiguration();
+
             //charset
             this.charsetOpt = Charset.isSupported(this.charsetOpt) ? this.charsetOpt : "UTF-8";
 
@@ -258,16 +321,84 @@ public class CmdLineCompressor {
                 }
             }
 
+            // report format
+            String reportFormat = reportFormatOpt.toLowerCase();
+            if (!reportFormat.equals(StatisticsFormat.TEXT) && !reportFormat.equals(StatisticsFormat.JSON) && !reportFormat.equals(StatisticsFormat.CSV)) {
+                throw new IllegalArgumentException("Unknown report format: " + reportFormatOpt);
+            }
+
+            if (statisticsFilenameOpt != null && (analyzeOpt || type.equals("xml"))) {
+                throw new IllegalArgumentException("Statistics are only available for HTML compression.");
+            }
+
+            if (svgPrecisionOpt < -1) {
+                throw new IllegalArgumentException("Invalid SVG precision: " + svgPrecisionOpt);
+            }
+
+            if (blockCacheSizeOpt < 0) {
+                throw new IllegalArgumentException("Invalid block cache size: " + blockCacheSizeOpt);
+            }
+
+            // gzip and deflate outputs
+            if (gzipLevelOpt < Deflater.NO_COMPRESSION || gzipLevelOpt > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("Invalid gzip level: " + gzipLevelOpt);
+            }
+
+            if (keepUncompressedOpt && !gzipOpt && !deflateOpt) {
+                throw new IllegalArgumentException("--keep-uncompressed requires --gzip or --deflate.");
+            }
+
+            compressionListener = loadCompressionListener();
+
             if (analyzeOpt) {
                 //analyzer mode
                 HtmlAnalyzer analyzer = new HtmlAnalyzer(HtmlCompressor.JS_COMPRESSOR_CLOSURE.equalsIgnoreCase(jsCompressorOpt) ? HtmlCompressor.JS_COMPRESSOR_CLOSURE : HtmlCompressor.JS_COMPRESSOR_YUI);
-                analyzer.analyze(readResource(buildReader(fileArgsOpt.length > 0 ? fileArgsOpt[0] : null)));
+                analyzer.setReportFormat(reportFormat);
+                List<String> sources = new ArrayList<String>();
+                for (String input : buildInputList()) {
+                    sources.add(readResource(buildReader(input)));
+                }
+                analyzer.analyze(sources);
             } else {
                 //compression mode
                 Compressor compressor = type.equals("xml") ? createXmlCompressor() : createHtmlCompressor();
                 Map<String, String> ioMap = buildInputOutputMap();
-                for (Map.Entry<String, String> entry : ioMap.entrySet()) {
-                    writeResource(compressor.compress(readResource(buildReader(entry.getKey()))), buildWriter(entry.getValue()));
+                if ((gzipOpt || deflateOpt) && ioMap.containsValue(null)) {
+                    throw new IllegalArgumentException("Gzip and deflate outputs require an output file or directory.");
+                }
+
+                try {
+                    Map<String, HtmlCompressorStatistics> statistics = new LinkedHashMap<String, HtmlCompressorStatistics>();
+                    for (Map.Entry<String, String> entry : ioMap.entrySet()) {
+                        long startTime = compressionListener != null ? System.nanoTime() : 0;
+                        long originalSize = -1;
+                        long compressedSize = -1;
+                        if (streamOpt && compressor instanceof XmlCompressor) {
+                            streamResource((XmlCompressor) compressor, buildReader(entry.getKey()), buildOutputWriter(entry.getValue()));
+                        } else {
+                            String source = readResource(buildReader(entry.getKey()));
+                            String result = compressor.compress(source);
+                            writeResource(result, buildOutputWriter(entry.getValue()));
+                            originalSize = source.length();
+                            compressedSize = result.length();
+                        }
+
+                        if (compressionListener != null) {
+                            compressionListener.fileCompressed(entry.getKey(), entry.getValue(), originalSize, compressedSize, System.nanoTime() - startTime);
+                        }
+
+                        if (statisticsFilenameOpt != null) {
+                            statistics.put(entry.getKey() == null ? "<stdin>" : entry.getKey(), ((HtmlCompressor) compressor).getStatistics());
+                        }
+                    }
+
+                    if (statisticsFilenameOpt != null) {
+                        writeResource(formatStatistics(statistics, reportFormat), buildWriter(statisticsFilenameOpt));
+                    }
+                } finally {
+                    if (blockCacheFile != null) {
+                        blockCacheFile.close();
+                    }
                 }
             }
         } catch (NoClassDefFoundError e) {
@@ -347,6 +478,10 @@ public class CmdLineCompressor {
         htmlCompressor.setCompressJavaScriptWithPreservedBlocks(!skipCompressJsIfPreserved);
         htmlCompressor.setCompressCssWithPreservedBlocks(!skipCompressCssIfPreserved);
         htmlCompressor.setCompressCss(compressCssOpt);
+        htmlCompressor.setCompressJson(compressJsonOpt);
+        htmlCompressor.setCompressHtmlTemplates(compressHtmlTemplatesOpt);
+        htmlCompressor.setCompressSvg(compressSvgOpt);
+        htmlCompressor.setSvgPrecision(svgPrecisionOpt);
 
         htmlCompressor.setSimpleDoctype(simpleDoctypeOpt);
         htmlCompressor.setRemoveScriptAttributes(removeScriptAttributesOpt);
@@ -358,9 +493,27 @@ public class CmdLineCompressor {
         htmlCompressor.setRemoveJavaScriptProtocol(removeJavaScriptProtocolOpt);
         htmlCompressor.setRemoveHttpProtocol(removeHttpProtocolOpt);
         htmlCompressor.setRemoveHttpsProtocol(removeHttpsProtocolOpt);
+        htmlCompressor.setSortAttributes(sortAttributesOpt);
+        htmlCompressor.setSortClassNames(sortClassNamesOpt);
+        htmlCompressor.setRemoveOptionalTags(removeOptionalTagsOpt);
         htmlCompressor.setRemoveSurroundingSpaces(removeSurroundingSpacesOpt);
 
         htmlCompressor.setPreservePatterns(preservePatterns);
+        htmlCompressor.setGenerateStatistics(statisticsFilenameOpt != null);
+        htmlCompressor.setCompressionListener(compressionListener);
+        if (blockCacheDirOpt != null) {
+            long size = blockCacheSizeOpt > 0 ? blockCacheSizeOpt : BlockCache.DEFAULT_MAXIMUM_SIZE;
+            BlockCache blockCache = new BlockCache(size);
+            try {
+                blockCacheFile = new BlockCacheFile(new File(blockCacheDirOpt), size, blockCacheConfiguration);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Unable to open block cache: " + e.getMessage());
+            }
+            blockCache.setFile(blockCacheFile);
+            htmlCompressor.setBlockCache(blockCache);
+        } else if (blockCacheSizeOpt > 0) {
+            htmlCompressor.setBlockCache(new BlockCache(blockCacheSizeOpt));
+        }
 
         htmlCompressor.setYuiJsNoMunge(nomungeOpt);
         htmlCompressor.setYuiJsPreserveAllSemiColons(preserveSemiOpt);
@@ -393,6 +546,9 @@ public class CmdLineCompressor {
             htmlCompressor.setJavaScriptCompressor(closureCompressor);
         }
 
+        //the same options are used for all files
+        htmlCompressor.compile();
+
         return htmlCompressor;
     }
 
@@ -517,10 +673,6 @@ public class CmdLineCompressor {
 
             FileFilter fileFilter = new CompressorFileFilter(filemaskOpt, recursiveOpt);
             for (File inputArgument : fileArguments) {
-                //Holds all file dirs in the recursive process
-                ArrayDeque<File> fileStack = new ArrayDeque<File>();
-                fileStack.push(inputArgument);
-
                 //Holds the main input path dir
                 String inputArgumentPath;
                 if (inputArgument.isFile()) {
@@ -530,52 +682,44 @@ public class CmdLineCompressor {
                 }
 
                 //Collect all input files from the given directories from the given settings and the corresponding output files
-                while (!fileStack.isEmpty()) {
-                    File inputFileOrDir = fileStack.pop();
-
-                    if (inputFileOrDir.isDirectory()) {
-                        for (File f : inputFileOrDir.listFiles(fileFilter)) {
-                            fileStack.push(f.getAbsoluteFile());
-                        }
-                    } else if (inputFileOrDir.isFile()) {
-                        String inputFilePath = inputFileOrDir.getPath();
-                        String outputFilePath;
-
-                        //Rewrite the base path to the defined output dir
-                        if (null != outputFileOrDir) {
-                            outputFilePath = inputFilePath.replaceFirst(
-                                Pattern.quote(inputArgumentPath),
-                                Matcher.quoteReplacement(outputFileOrDir.getPath())
-                            );
-                        } else {
-                            outputFilePath = inputFilePath;
-                        }
+                for (File inputFile : collectInputFiles(inputArgument, fileFilter)) {
+                    String inputFilePath = inputFile.getPath();
+                    String outputFilePath;
+
+                    //Rewrite the base path to the defined output dir
+                    if (null != outputFileOrDir) {
+                        outputFilePath = inputFilePath.replaceFirst(
+                            Pattern.quote(inputArgumentPath),
+                            Matcher.quoteReplacement(outputFileOrDir.getPath())
+                        );
+                    } else {
+                        outputFilePath = inputFilePath;
+                    }
 
-                        //Add the output file name suffix and get the parent dir
-                        outputFilePath = addOutputFilenameSuffix(outputFilePath);
-                        File outputDir = (new File(outputFilePath)).getParentFile();
+                    //Add the output file name suffix and get the parent dir
+                    outputFilePath = addOutputFilenameSuffix(outputFilePath);
+                    File outputDir = (new File(outputFilePath)).getParentFile();
 
-                        //Check if the dir was successful created
-                        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
-                            throw new IllegalArgumentException(
-                                String.format("The partial output directory \"%s\" can't create.", outputDir.getPath())
-                            );
-                        }
+                    //Check if the dir was successful created
+                    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+                        throw new IllegalArgumentException(
+                            String.format("The partial output directory \"%s\" can't create.", outputDir.getPath())
+                        );
+                    }
 
-                        //Add the file
-                        if (!outputFileToInput.containsKey(outputFilePath)) {
-                            outputFileToInput.put(outputFilePath, inputFilePath);
-                            map.put(inputFilePath, outputFilePath);
-                        } else {
-                            throw new IllegalArgumentException(
-                                String.format(
-                                    "The output file \"%s\" will used from the two input files \"%s\" and \"%s\".",
-                                    outputFilePath,
-                                    outputFileToInput.get(outputFilePath),
-                                    inputFilePath
-                                )
-                            );
-                        }
+                    //Add the file
+                    if (!outputFileToInput.containsKey(outputFilePath)) {
+                        outputFileToInput.put(outputFilePath, inputFilePath);
+                        map.put(inputFilePath, outputFilePath);
+                    } else {
+                        throw new IllegalArgumentException(
+                            String.format(
+                                "The output file \"%s\" will used from the two input files \"%s\" and \"%s\".",
+                                outputFilePath,
+                                outputFileToInput.get(outputFilePath),
+                                inputFilePath
+                            )
+                        );
                     }
                 }
             }
@@ -589,6 +733,76 @@ public class CmdLineCompressor {
         return map;
     }
 
+    /**
+     * Collects all input files and URLs for the analyzer. Directories are processed
+     * like in compression mode, standard input is represented by <code>null</code>.
+     *
+     * @return Input file names and URLs.
+     */
+    private List<String> buildInputList() throws IllegalArgumentException {
+        List<String> inputs = new ArrayList<String>();
+
+        if (0 == fileArgsOpt.length) {
+            //Process standard input
+            inputs.add(null);
+        } else {
+            FileFilter fileFilter = new CompressorFileFilter(filemaskOpt, recursiveOpt);
+            for (String inputFileOrDirArg : fileArgsOpt) {
+                if (urlPattern.matcher(inputFileOrDirArg).matches()) {
+                    inputs.add(inputFileOrDirArg);
+                } else {
+                    //Check if the given input file exists
+                    File inputFileOrDir = new File(inputFileOrDirArg);
+                    if (!inputFileOrDir.exists()) {
+                        throw new IllegalArgumentException(
+                            String.format("The given input \"%s\" doesn't exist.", inputFileOrDirArg)
+                        );
+                    }
+
+                    for (File inputFile : collectInputFiles(inputFileOrDir.getAbsoluteFile(), fileFilter)) {
+                        inputs.add(inputFile.getPath());
+                    }
+                }
+            }
+        }
+
+        //Check if we have files to process
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("No input files found.");
+        }
+
+        return inputs;
+    }
+
+    /**
+     * Collects the given file or all files inside the given directory that are accepted by the filter.
+     *
+     * @param inputFileOrDir Absolute file or directory
+     * @param fileFilter Filter for files and subdirectories
+     * @return Absolute input files.
+     */
+    private List<File> collectInputFiles(File inputFileOrDir, FileFilter fileFilter) {
+        List<File> files = new ArrayList<File>();
+
+        //Holds all file dirs in the recursive process
+        ArrayDeque<File> fileStack = new ArrayDeque<File>();
+        fileStack.push(inputFileOrDir);
+
+        while (!fileStack.isEmpty()) {
+            File file = fileStack.pop();
+
+            if (file.isDirectory()) {
+                for (File f : file.listFiles(fileFilter)) {
+                    fileStack.push(f.getAbsoluteFile());
+                }
+            } else if (file.isFile()) {
+                files.add(file);
+            }
+        }
+
+        return files;
+    }
+
     /**
      * Add the configured output suffix to the file name.
      *
@@ -616,6 +830,79 @@ public class CmdLineCompressor {
         return outputFilePath;
     }
 
+    /**
+     * Formats the statistics of all compressed inputs. The text format writes one
+     * line per input.
+     */
+    private String formatStatistics(Map<String, HtmlCompressorStatistics> statistics, String format) {
+        StringBuilder result = new StringBuilder();
+        String separator = System.getProperty("line.separator");
+
+        if (format.equals(StatisticsFormat.JSON)) {
+            result.append('[');
+            for (Map.Entry<String, HtmlCompressorStatistics> entry : statistics.entrySet()) {
+                if (result.length() > 1) {
+                    result.append(',');
+                }
+                result.append("{\"file\":").append(StatisticsFormat.toJsonString(entry.getKey()));
+                result.append(",\"statistics\":").append(entry.getValue().toJson()).append('}');
+            }
+            result.append(']').append(separator);
+        } else if (format.equals(StatisticsFormat.CSV)) {
+            result.append("file,").append(HtmlCompressorStatistics.CSV_HEADER).append(separator);
+            for (Map.Entry<String, HtmlCompressorStatistics> entry : statistics.entrySet()) {
+                result.append(StatisticsFormat.toCsvField(entry.getKey())).append(',').append(entry.getValue().toCsv()).append(separator);
+            }
+        } else {
+            for (Map.Entry<String, HtmlCompressorStatistics> entry : statistics.entrySet()) {
+                result.append(entry.getKey()).append(": ").append(entry.getValue()).append(separator);
+            }
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Loads all compression listeners registered as services on the class path.
+     *
+     * @return the listeners combined into one or <code>null</code> if none is registered
+     */
+    private CompressionListener loadCompressionListener() {
+        final List<CompressionListener> listeners = new ArrayList<CompressionListener>();
+        for (CompressionListener listener : ServiceLoader.load(CompressionListener.class)) {
+            listeners.add(listener);
+        }
+
+        if (listeners.isEmpty()) {
+            return null;
+        } else if (listeners.size() == 1) {
+            return listeners.get(0);
+        }
+
+        return new CompressionListener() {
+            @Override
+            public void documentCompressed(Compressor compressor, int originalSize, int compressedSize, long time) {
+                for (CompressionListener listener : listeners) {
+                    listener.documentCompressed(compressor, originalSize, compressedSize, time);
+                }
+            }
+
+            @Override
+            public void blockCompressed(int blockType, Compressor blockCompressor, int originalSize, int compressedSize, long time, boolean failed) {
+                for (CompressionListener listener : listeners) {
+                    listener.blockCompressed(blockType, blockCompressor, originalSize, compressedSize, time, failed);
+                }
+            }
+
+            @Override
+            public void fileCompressed(String input, String output, long originalSize, long compressedSize, long time) {
+                for (CompressionListener listener : listeners) {
+                    listener.fileCompressed(input, output, originalSize, compressedSize, time);
+                }
+            }
+        };
+    }
+
     private BufferedReader buildReader(String filename) throws IOException {
 
         if (filename == null) {
@@ -635,6 +922,66 @@ public class CmdLineCompressor {
         }
     }
 
+    /**
+     * Opens the writer for a compression result. With --gzip or --deflate the result is compressed
+     * while it is written, into siblings of the output file with the .gz or .deflate extension.
+     */
+    private Writer buildOutputWriter(String filename) throws IOException {
+        if (!gzipOpt && !deflateOpt) {
+            return buildWriter(filename);
+        }
+
+        List<OutputStream> outputs = new ArrayList<OutputStream>();
+        try {
+            if (keepUncompressedOpt) {
+                outputs.add(new BufferedOutputStream(new FileOutputStream(filename)));
+            }
+            if (gzipOpt) {
+                outputs.add(new LevelGZIPOutputStream(new FileOutputStream(filename + ".gz"), gzipLevelOpt));
+            }
+            if (deflateOpt) {
+                outputs.add(new RawDeflaterOutputStream(new FileOutputStream(filename + ".deflate"), gzipLevelOpt));
+            }
+        } catch (IOException e) {
+            for (OutputStream output : outputs) {
+                closeStream(output);
+            }
+            throw e;
+        }
+
+        return new OutputStreamWriter(new TeeOutputStream(outputs), charsetOpt);
+    }
+
+    /**
+     * Describes the options that change the compressed output, including the state of the files named by them.
+     * Inputs, outputs and options of the cache or the statistics are left out.
+     */
+    private String buildBlockCacheConfiguration() {
+        Object[] options = {typeOpt, streamOpt, preserveCommentsOpt, preserveIntertagSpacesOpt, preserveMultiSpacesOpt,
+            removeIntertagSpacesOpt, removeSurroundingSpacesOpt, removeQuotesOpt, preserveLineBreaksOpt,
+            preservePhpTagsOpt, preserveServerScriptTagsOpt, preserveSsiTagsOpt, compressJsOpt, compressCssOpt,
+            compressJsonOpt, compressHtmlTemplatesOpt, compressSvgOpt, svgPrecisionOpt, skipCompressJsIfPreserved,
+            skipCompressCssIfPreserved, jsCompressorOpt, simpleDoctypeOpt, removeScriptAttributesOpt,
+            removeStyleAttributesOpt, removeLinkAttributesOpt, removeFormAttributesOpt, removeInputAttributesOpt,
+            simpleBooleanAttributesOpt, removeJavaScriptProtocolOpt, removeHttpProtocolOpt, removeHttpsProtocolOpt,
+            sortAttributesOpt, sortClassNamesOpt, removeOptionalTagsOpt, nomungeOpt, linebreakOpt, preserveSemiOpt,
+            disableOptimizationsOpt, closureOptLevelOpt, closureCustomExternsOnlyOpt};
+        StringBuilder configuration = new StringBuilder();
+        for (Object option : options) {
+            configuration.append(option).append('\n');
+        }
+
+        List<String> files = new ArrayList<String>(closureExternsOpt);
+        if (patternsFilenameOpt != null) {
+            files.add(patternsFilenameOpt);
+        }
+        for (String filename : files) {
+            File file = new File(filename);
+            configuration.append(filename).append(' ').append(file.length()).append(' ').append(file.lastModified()).append('\n');
+        }
+        return configuration.toString();
+    }
+
     private String readResource(BufferedReader input) throws IOException {
 
         StringBuilder source = new StringBuilder();
@@ -659,6 +1006,17 @@ public class CmdLineCompressor {
         }
     }
 
+    private void streamResource(XmlCompressor compressor, BufferedReader input, Writer output) throws IOException {
+        try {
+            Writer bufferedOutput = new BufferedWriter(output);
+            compressor.compress(input, bufferedOutput);
+            bufferedOutput.flush();
+        } finally {
+            closeStream(input);
+            closeStream(output);
+        }
+    }
+
     private void closeStream(Closeable stream) {
         if (stream != null) {
             try {
@@ -685,12 +1043,28 @@ public class CmdLineCompressor {
             + "                               If none provided outputs result to <stdout>\n"
             + " -s, --output-suffix <suffix>  Saves the compression result under the input name\n"
             + "                               with the suffix before the file extension.\n"
-            + " -a, --analyze                 Tries different settings and displays report.\n"
-            + "                               All settings except --js-compressor are ignored\n\n"
+            + " --gzip                        Writes the compression result gzipped to a .gz\n"
+            + "                               file next to the output path\n"
+            + " --deflate                     Writes the compression result as raw deflate\n"
+            + "                               stream to a .deflate file next to the output path\n"
+            + " --gzip-level <0-9>            Compression level of --gzip and --deflate,\n"
+            + "                               9 by default\n"
+            + " --keep-uncompressed           Writes the uncompressed output file as well,\n"
+            + "                               which is skipped with --gzip or --deflate\n"
+            + " -a, --analyze                 Tries different settings on all inputs and\n"
+            + "                               displays a report of sizes and CPU costs.\n"
+            + "                               All settings except --js-compressor, -r and -m\n"
+            + "                               are ignored\n"
+            + " --report-format <text|json|csv>\n"
+            + "                               Format of the analyzer report and statistics,\n"
+            + "                               text by default\n\n"
 
             + "XML Compression Options:\n"
             + " --preserve-comments           Preserve comments\n"
-            + " --preserve-intertag-spaces    Preserve intertag spaces\n\n"
+            + " --preserve-intertag-spaces    Preserve intertag spaces\n"
+            + " --stream                      Compress while reading with constant memory,\n"
+            + "                               for files too large to be loaded at once,\n"
+            + "                               spaces inside attribute values are kept\n\n"
 
             + "HTML Compression Options:\n"
             + " --preserve-comments           Preserve comments\n"
@@ -708,6 +1082,11 @@ public class CmdLineCompressor {
             + " --remove-js-protocol          Remove \"javascript:\" from inline event handlers\n"
             + " --remove-http-protocol        Remove \"http:\" from tag attributes\n"
             + " --remove-https-protocol       Remove \"https:\" from tag attributes\n"
+            + " --sort-attributes             Sort attributes inside tags by name, which\n"
+            + "                               makes the gzipped result smaller\n"
+            + " --sort-class-names            Sort class names inside class attributes\n"
+            + " --remove-optional-tags        Remove end and start tags that HTML5 allows\n"
+            + "                               to omit, like </li>, </p> or <tbody>\n"
             + " --remove-surrounding-spaces <min|max|all|custom_list>\n"
             + "                               Predefined or custom comma separated list of tags\n"
             + " --compress-js                 Enable inline JavaScript compression\n"
@@ -716,8 +1095,21 @@ public class CmdLineCompressor {
             + " --compress-css                Enable inline CSS compression using YUICompressor\n"
             + " --compress-css-skip-preserve  Disable the CSS compression for preserved\n"
             + "                               user blocks\n"
+            + " --compress-json               Minify inline JSON and JSON-LD scripts\n"
+            + " --compress-templates          Compress HTML templates inside script tags,\n"
+            + "                               like text/x-template or text/html\n"
+            + " --compress-svg                Compress inline SVG images, removes editor\n"
+            + "                               metadata and rounds path coordinates\n"
+            + " --svg-precision <number>      Decimal places of rounded SVG coordinates,\n"
+            + "                               3 by default, -1 to disable rounding\n"
             + " --js-compressor <yui|closure> Switch inline JavaScript compressor between\n"
-            + "                               YUICompressor (default) and Closure Compiler\n\n"
+            + "                               YUICompressor (default) and Closure Compiler\n"
+            + " --statistics <path>           Writes compression statistics of all inputs to\n"
+            + "                               the file in the --report-format\n"
+            + " --block-cache-size <bytes>    Caches compressed blocks like inline scripts\n"
+            + "                               and styles shared by the inputs, up to the size\n"
+            + " --block-cache <dir>           Keeps compressed blocks in the directory, so\n"
+            + "                               later runs with the same options reuse them\n\n"
 
             + "JavaScript Compression Options for YUI Compressor:\n"
             + " --nomunge                     Minify only, do not obfuscate\n"
@@ -781,4 +1173,84 @@ public class CmdLineCompressor {
             return null == fileMaskPattern || fileMaskPattern.matcher(file.getName()).matches();
         }
     }
+
+    /**
+     * Gzip stream with a configurable compression level.
+     */
+    private static class LevelGZIPOutputStream extends GZIPOutputStream {
+
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(new BufferedOutputStream(out), 8192);
+            def.setLevel(level);
+        }
+    }
+
+    /**
+     * Deflate stream without zlib header and checksum that releases its deflater when closed.
+     */
+    private static class RawDeflaterOutputStream extends DeflaterOutputStream {
+
+        RawDeflaterOutputStream(OutputStream out, int level) {
+            super(new BufferedOutputStream(out), new Deflater(level, true), 8192);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    /**
+     * Writes the same bytes to several streams.
+     */
+    private static class TeeOutputStream extends OutputStream {
+
+        private final List<OutputStream> outputs;
+
+        TeeOutputStream(List<OutputStream> outputs) {
+            this.outputs = outputs;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            for (OutputStream output : outputs) {
+                output.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (OutputStream output : outputs) {
+                output.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            for (OutputStream output : outputs) {
+                output.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (OutputStream output : outputs) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -16,20 +16,48 @@
 package com.googlecode.htmlcompressor.analyzer;
 
 import com.googlecode.htmlcompressor.compressor.ClosureJavaScriptCompressor;
+import com.googlecode.htmlcompressor.compressor.Compressor;
 import com.googlecode.htmlcompressor.compressor.HtmlCompressor;
+import com.googlecode.htmlcompressor.compressor.StatisticsFormat;
+import com.googlecode.htmlcompressor.compressor.YuiCssCompressor;
+import com.googlecode.htmlcompressor.compressor.YuiJavaScriptCompressor;
 
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Formatter;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 /**
- * Class that compresses provided source with different compression
- * settings and displays page size gains in a report
+ * Class that compresses provided sources with different compression
+ * settings and displays size gains and CPU costs in a report.
+ * <p>Each set of settings is compressed independently on all available processors,
+ * while minified script and style blocks are shared between the runs. The CPU time
+ * of a shared block is still charged to every run that uses it.
+ * <p>The report is printed as a text table by default, or as JSON or CSV
+ * for further processing, see {@link #setReportFormat(String)}.
  *
  * @author <a href="mailto:serg472@gmail.com">Sergiy Kovalchuk</a>
  */
 public class HtmlAnalyzer {
 
     private String jsCompressor = HtmlCompressor.JS_COMPRESSOR_YUI;
+    private String reportFormat = StatisticsFormat.TEXT;
+
+    //minified blocks shared by all runs
+    private final ConcurrentMap<String, MemoizingCompressor.Result> cssResults = new ConcurrentHashMap<String, MemoizingCompressor.Result>();
+    private final ConcurrentMap<String, MemoizingCompressor.Result> jsResults = new ConcurrentHashMap<String, MemoizingCompressor.Result>();
 
     public HtmlAnalyzer() {
 
@@ -39,157 +67,339 @@ public class HtmlAnalyzer {
         this.jsCompressor = jsCompressor;
     }
 
+    /**
+     * Returns the format of the printed report.
+     *
+     * @return one of {@link StatisticsFormat#TEXT}, {@link StatisticsFormat#JSON} or {@link StatisticsFormat#CSV}
+     */
+    public String getReportFormat() {
+        return reportFormat;
+    }
+
+    /**
+     * Sets the format of the printed report. Default is {@link StatisticsFormat#TEXT}.
+     *
+     * @param reportFormat one of {@link StatisticsFormat#TEXT}, {@link StatisticsFormat#JSON} or {@link StatisticsFormat#CSV}
+     */
+    public void setReportFormat(String reportFormat) {
+        if (!StatisticsFormat.TEXT.equals(reportFormat) && !StatisticsFormat.JSON.equals(reportFormat) && !StatisticsFormat.CSV.equals(reportFormat)) {
+            throw new IllegalArgumentException("Unknown report format: " + reportFormat);
+        }
+        this.reportFormat = reportFormat;
+    }
+
     public void analyze(String source) {
-        int originalSize = source.length();
+        analyze(Collections.singletonList(source));
+    }
+
+    /**
+     * Compresses all sources with every set of settings and displays the aggregated
+     * size gains and CPU costs of each setting.
+     *
+     * @param sources HTML sources to analyze
+     */
+    public void analyze(List<String> sources) {
+        long originalSize = 0;
+        long originalGzipSize = 0;
+        for (String source : sources) {
+            originalSize += source.length();
+            originalGzipSize += getGzipSize(source);
+        }
+        List<Setting> settings = getSettings();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            //start with the most expensive runs, every run applies all previous settings
+            List<List<Future<Run>>> runs = new ArrayList<List<Future<Run>>>(settings.size());
+            for (int i = 0; i < settings.size(); i++) {
+                runs.add(new ArrayList<Future<Run>>(sources.size()));
+            }
+            for (int i = settings.size() - 1; i >= 0; i--) {
+                for (String source : sources) {
+                    runs.get(i).add(executor.submit(new CompressTask(source, settings.subList(0, i + 1))));
+                }
+            }
 
-        HtmlCompressor compressor = getCleanCompressor();
-        String compResult = compressor.compress(source);
+            List<ReportLine> lines = new ArrayList<ReportLine>(settings.size() + 1);
+            lines.add(new ReportLine("Compression disabled", originalSize, originalGzipSize, 0));
+
+            for (int i = 0; i < settings.size(); i++) {
+                String description = settings.get(i).getDescription();
+                try {
+                    long size = 0;
+                    long gzipSize = 0;
+                    long time = 0;
+                    for (Future<Run> run : runs.get(i)) {
+                        size += run.get().getSize();
+                        gzipSize += run.get().getGzipSize();
+                        time += run.get().getTime();
+                    }
+                    lines.add(new ReportLine(description, size, gzipSize, time));
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof NoClassDefFoundError) {
+                        lines.add(new ReportLine(description, -1, -1, -1));
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        throw new RuntimeException(cause);
+                    }
+                }
+            }
 
-        printHeader();
+            if (StatisticsFormat.JSON.equals(reportFormat)) {
+                printJsonReport(lines, originalSize, sources.size());
+            } else if (StatisticsFormat.CSV.equals(reportFormat)) {
+                printCsvReport(lines, originalSize);
+            } else {
+                printTextReport(lines, originalSize, sources.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-        System.out.println(formatLine("Compression disabled", originalSize, originalSize, originalSize));
-        int prevSize = originalSize;
+    private List<Setting> getSettings() {
+        List<Setting> settings = new ArrayList<Setting>();
 
         //spaces inside tags
-        System.out.println(formatLine("All settings disabled", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("All settings disabled") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+            }
+        });
 
         //remove comments
-        compressor.setRemoveComments(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("Comments removed", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("Comments removed") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveComments(true);
+            }
+        });
 
         //remove mulispaces
-        compressor.setRemoveMultiSpaces(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("Multiple spaces removed", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("Multiple spaces removed") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveMultiSpaces(true);
+            }
+        });
 
         //remove intertag spaces
-        compressor.setRemoveIntertagSpaces(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("No spaces between tags", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("No spaces between tags") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveIntertagSpaces(true);
+            }
+        });
 
         //remove min surrounding spaces
-        compressor.setRemoveSurroundingSpaces(HtmlCompressor.BLOCK_TAGS_MIN);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("No surround spaces (min)", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("No surround spaces (min)") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveSurroundingSpaces(HtmlCompressor.BLOCK_TAGS_MIN);
+            }
+        });
 
         //remove max surrounding spaces
-        compressor.setRemoveSurroundingSpaces(HtmlCompressor.BLOCK_TAGS_MAX);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("No surround spaces (max)", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("No surround spaces (max)") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveSurroundingSpaces(HtmlCompressor.BLOCK_TAGS_MAX);
+            }
+        });
 
         //remove all surrounding spaces
-        compressor.setRemoveSurroundingSpaces(HtmlCompressor.ALL_TAGS);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("No surround spaces (all)", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("No surround spaces (all)") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveSurroundingSpaces(HtmlCompressor.ALL_TAGS);
+            }
+        });
 
         //remove quotes
-        compressor.setRemoveQuotes(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("Quotes removed from tags", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("Quotes removed from tags") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveQuotes(true);
+            }
+        });
 
         //link attrib
-        compressor.setRemoveLinkAttributes(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("<link> attr. removed", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("<link> attr. removed") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveLinkAttributes(true);
+            }
+        });
 
         //style attrib
-        compressor.setRemoveStyleAttributes(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("<style> attr. removed", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("<style> attr. removed") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveStyleAttributes(true);
+            }
+        });
 
         //script attrib
-        compressor.setRemoveScriptAttributes(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("<script> attr. removed", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("<script> attr. removed") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveScriptAttributes(true);
+            }
+        });
 
         //form attrib
-        compressor.setRemoveFormAttributes(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("<form> attr. removed", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("<form> attr. removed") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveFormAttributes(true);
+            }
+        });
 
         //input attrib
-        compressor.setRemoveInputAttributes(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("<input> attr. removed", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("<input> attr. removed") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveInputAttributes(true);
+            }
+        });
 
         //simple bool
-        compressor.setSimpleBooleanAttributes(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("Simple boolean attributes", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("Simple boolean attributes") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setSimpleBooleanAttributes(true);
+            }
+        });
 
         //simple doctype
-        compressor.setSimpleDoctype(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("Simple doctype", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("Simple doctype") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setSimpleDoctype(true);
+            }
+        });
 
         //js protocol
-        compressor.setRemoveJavaScriptProtocol(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("Remove js pseudo-protocol", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("Remove js pseudo-protocol") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveJavaScriptProtocol(true);
+            }
+        });
 
         //http protocol
-        compressor.setRemoveHttpProtocol(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("Remove http protocol", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("Remove http protocol") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveHttpProtocol(true);
+            }
+        });
 
         //https protocol
-        compressor.setRemoveHttpsProtocol(true);
-        compResult = compressor.compress(source);
-        System.out.println(formatLine("Remove https protocol", originalSize, compResult.length(), prevSize));
-        prevSize = compResult.length();
+        settings.add(new Setting("Remove https protocol") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveHttpsProtocol(true);
+            }
+        });
+
+        //optional tags
+        settings.add(new Setting("Optional tags removed") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setRemoveOptionalTags(true);
+            }
+        });
+
+        //sorted attributes and class names
+        settings.add(new Setting("Sorted attr. and classes") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setSortAttributes(true);
+                compressor.setSortClassNames(true);
+            }
+        });
+
+        //inline json and templates
+        settings.add(new Setting("Compress JSON and templates") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setCompressJson(true);
+                compressor.setCompressHtmlTemplates(true);
+            }
+        });
+
+        //inline svg
+        settings.add(new Setting("Compress inline SVG") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setCompressSvg(true);
+            }
+        });
 
         //inline css
-        try {
-            compressor.setCompressCss(true);
-            compResult = compressor.compress(source);
-            System.out.println(formatLine("Compress inline CSS (YUI)", originalSize, compResult.length(), prevSize));
-            prevSize = compResult.length();
-        } catch (NoClassDefFoundError e) {
-            System.out.println(formatEmptyLine("Compress inline CSS (YUI)"));
-        }
+        settings.add(new Setting("Compress inline CSS (YUI)") {
+            @Override
+            void apply(HtmlCompressor compressor) {
+                compressor.setCompressCss(true);
+                compressor.setCssCompressor(new MemoizingCompressor(new YuiCssCompressor(), cssResults));
+            }
+        });
 
         if (jsCompressor.equals(HtmlCompressor.JS_COMPRESSOR_YUI)) {
             //inline js yui
-            try {
-                compressor.setCompressJavaScript(true);
-                compResult = compressor.compress(source);
-                System.out.println(formatLine("Compress inline JS (YUI)", originalSize, compResult.length(), prevSize));
-                prevSize = compResult.length();
-            } catch (NoClassDefFoundError e) {
-                System.out.println(formatEmptyLine("Compress inline JS (YUI)"));
-            }
+            settings.add(new Setting("Compress inline JS (YUI)") {
+                @Override
+                void apply(HtmlCompressor compressor) {
+                    compressor.setCompressJavaScript(true);
+                    compressor.setJavaScriptCompressor(new MemoizingCompressor(new YuiJavaScriptCompressor(), jsResults));
+                }
+            });
         } else {
-            //inline js yui
-            try {
-                compressor.setCompressJavaScript(true);
-                compressor.setJavaScriptCompressor(new ClosureJavaScriptCompressor());
-                compResult = compressor.compress(source);
-                System.out.println(formatLine("Compress JS (Closure)", originalSize, compResult.length(), prevSize));
-                prevSize = compResult.length();
-            } catch (NoClassDefFoundError e) {
-                System.out.println(formatEmptyLine("Compress JS (Closure)"));
-            }
+            //inline js closure
+            settings.add(new Setting("Compress JS (Closure)") {
+                @Override
+                void apply(HtmlCompressor compressor) {
+                    compressor.setCompressJavaScript(true);
+                    compressor.setJavaScriptCompressor(new MemoizingCompressor(new ClosureJavaScriptCompressor(), jsResults));
+                }
+            });
         }
 
-        printFooter();
+        return settings;
+    }
+
+    /**
+     * Returns the size of the UTF-8 encoded content gzipped with the highest compression level.
+     */
+    private static int getGzipSize(String content) {
+        byte[] bytes;
+        try {
+            bytes = content.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                deflater.deflate(buffer);
+            }
+
+            //gzip header and trailer
+            return (int) deflater.getBytesWritten() + 18;
+        } finally {
+            deflater.end();
+        }
     }
 
     private HtmlCompressor getCleanCompressor() {
@@ -200,35 +410,241 @@ public class HtmlAnalyzer {
         return compressor;
     }
 
-    private String formatLine(String descr, int originalSize, int compressedSize, int prevSize) {
+    /**
+     * Compressor setting that is applied on top of all previous settings.
+     */
+    private abstract static class Setting {
+
+        private final String description;
+
+        Setting(String description) {
+            this.description = description;
+        }
+
+        String getDescription() {
+            return description;
+        }
+
+        abstract void apply(HtmlCompressor compressor);
+    }
+
+    /**
+     * Compresses the source with the given settings and measures the compressed size
+     * and the CPU time.
+     */
+    private class CompressTask implements Callable<Run> {
+
+        private final String source;
+        private final List<Setting> settings;
+
+        CompressTask(String source, List<Setting> settings) {
+            this.source = source;
+            this.settings = settings;
+        }
+
+        @Override
+        public Run call() {
+            HtmlCompressor compressor = getCleanCompressor();
+            for (Setting setting : settings) {
+                setting.apply(compressor);
+            }
+
+            long time = getCpuTime();
+            String result = compressor.compress(source);
+            time = getCpuTime() - time;
+
+            //charge blocks that were minified by other runs
+            time += getSavedTime(compressor.getCssCompressor()) + getSavedTime(compressor.getJavaScriptCompressor());
+
+            return new Run(result.length(), getGzipSize(result), time);
+        }
+
+        private long getSavedTime(Compressor compressor) {
+            return compressor instanceof MemoizingCompressor ? ((MemoizingCompressor) compressor).getSavedTime() : 0;
+        }
+    }
+
+    /**
+     * Compressed size and CPU time of a single run.
+     */
+    private static class Run {
+
+        private final int size;
+        private final int gzipSize;
+        private final long time;
+
+        Run(int size, int gzipSize, long time) {
+            this.size = size;
+            this.gzipSize = gzipSize;
+            this.time = time;
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        int getGzipSize() {
+            return gzipSize;
+        }
+
+        long getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * Aggregated result of a setting over all sources, the size is <code>-1</code>
+     * if the setting is not available.
+     */
+    private static class ReportLine {
+
+        private final String description;
+        private final long size;
+        private final long gzipSize;
+        private final long time;
+
+        ReportLine(String description, long size, long gzipSize, long time) {
+            this.description = description;
+            this.size = size;
+            this.gzipSize = gzipSize;
+            this.time = time;
+        }
+
+        String getDescription() {
+            return description;
+        }
+
+        boolean isAvailable() {
+            return size >= 0;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getGzipSize() {
+            return gzipSize;
+        }
+
+        long getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * Returns the CPU time of the current thread in nanoseconds, or the wall clock time
+     * if the JVM does not measure thread CPU time.
+     */
+    static long getCpuTime() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean.isCurrentThreadCpuTimeSupported()) {
+            return threadBean.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    private void printTextReport(List<ReportLine> lines, long originalSize, int sourceCount) {
+        printHeader(sourceCount);
+
+        long prevSize = originalSize;
+        long prevTime = 0;
+        for (ReportLine line : lines) {
+            if (line.isAvailable()) {
+                System.out.println(formatLine(line.getDescription(), originalSize, line.getSize(), prevSize, line.getGzipSize(), line.getTime(), prevTime));
+                prevSize = line.getSize();
+                prevTime = line.getTime();
+            } else {
+                System.out.println(formatEmptyLine(line.getDescription()));
+            }
+        }
+
+        printFooter(sourceCount);
+    }
+
+    private void printJsonReport(List<ReportLine> lines, long originalSize, int sourceCount) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"files\":").append(sourceCount).append(",\"originalSize\":").append(originalSize).append(",\"settings\":[");
+
+        long prevSize = originalSize;
+        long prevTime = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            ReportLine line = lines.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"setting\":").append(StatisticsFormat.toJsonString(line.getDescription()));
+            if (line.isAvailable()) {
+                json.append(",\"size\":").append(line.getSize());
+                json.append(",\"gain\":").append(prevSize - line.getSize());
+                json.append(",\"totalGain\":").append(originalSize - line.getSize());
+                json.append(",\"gzipSize\":").append(line.getGzipSize());
+                json.append(",\"nsPerKb\":").append(getTimePerKb(line.getTime(), originalSize));
+                json.append(",\"incrementalNsPerKb\":").append(getTimePerKb(line.getTime() - prevTime, originalSize));
+                prevSize = line.getSize();
+                prevTime = line.getTime();
+            } else {
+                json.append(",\"size\":null,\"gain\":null,\"totalGain\":null,\"gzipSize\":null,\"nsPerKb\":null,\"incrementalNsPerKb\":null");
+            }
+            json.append('}');
+        }
+        json.append("]}");
+
+        System.out.println(json);
+    }
+
+    private void printCsvReport(List<ReportLine> lines, long originalSize) {
+        System.out.println("setting,size,gain,totalGain,nsPerKb,incrementalNsPerKb,gzipSize");
+
+        long prevSize = originalSize;
+        long prevTime = 0;
+        for (ReportLine line : lines) {
+            String description = StatisticsFormat.toCsvField(line.getDescription());
+            if (line.isAvailable()) {
+                System.out.println(description + "," + line.getSize() + "," + (prevSize - line.getSize()) + "," + (originalSize - line.getSize()) + ","
+                    + getTimePerKb(line.getTime(), originalSize) + "," + getTimePerKb(line.getTime() - prevTime, originalSize) + "," + line.getGzipSize());
+                prevSize = line.getSize();
+                prevTime = line.getTime();
+            } else {
+                System.out.println(description + ",,,,,,");
+            }
+        }
+    }
+
+    private String formatLine(String descr, long originalSize, long compressedSize, long prevSize, long gzipSize, long time, long prevTime) {
         Formatter fmt = new Formatter();
-        fmt.format("%-25s | %16s | %16s | %12s |", descr, formatDecrease(prevSize, compressedSize), formatDecrease(originalSize, compressedSize), formatSize(compressedSize));
+        fmt.format("%-25s | %16s | %16s | %12s | %12s | %11s | %11s |", descr, formatDecrease(prevSize, compressedSize), formatDecrease(originalSize, compressedSize), formatSize(compressedSize),
+            formatSize(gzipSize), formatTime(time, originalSize), formatTime(time - prevTime, originalSize));
         return fmt.toString();
     }
 
     private String formatEmptyLine(String descr) {
         Formatter fmt = new Formatter();
-        fmt.format("%-25s | %16s | %16s | %12s |", descr, "-", "-", "-");
+        fmt.format("%-25s | %16s | %16s | %12s | %12s | %11s | %11s |", descr, "-", "-", "-", "-", "-", "-");
         return fmt.toString();
     }
 
-    private void printHeader() {
+    private void printHeader(int sourceCount) {
         System.out.println();
-        System.out.println("================================================================================");
-        System.out.format("%-25s | %-16s | %-16s | %-12s |", "         Setting", "Incremental Gain", "   Total Gain", " Page Size");
+        System.out.println("===========================================================================================================================");
+        System.out.format("%-25s | %-16s | %-16s | %-12s | %-12s | %-11s | %-11s |", "         Setting", "Incremental Gain", "   Total Gain", sourceCount > 1 ? " Total Size" : " Page Size", " Gzip Size", " ns/KB", "Incr. ns/KB");
         System.out.println();
-        System.out.println("================================================================================");
+        System.out.println("===========================================================================================================================");
     }
 
-    private void printFooter() {
-        System.out.println("================================================================================");
+    private void printFooter(int sourceCount) {
+        System.out.println("===========================================================================================================================");
         System.out.println();
+        if (sourceCount > 1) {
+            System.out.println("Sizes and CPU times are summed up over " + sourceCount + " files.");
+        }
         System.out.println("Each consecutive compressor setting is applied on top of previous ones.");
         System.out.println("In order to see JS and CSS compression results, YUI jar file must be present.");
-        System.out.println("All sizes are in bytes.");
+        System.out.println("All sizes are in bytes, CPU time is given in nanoseconds per KB of input");
+        System.out.println("in total and compared to the previous setting. Gzip sizes are measured");
+        System.out.println("with the highest compression level.");
     }
 
-    private String formatDecrease(int originalSize, int compressedSize) {
+    private String formatDecrease(long originalSize, long compressedSize) {
         NumberFormat nf = NumberFormat.getPercentInstance();
         nf.setGroupingUsed(true);
         nf.setMinimumFractionDigits(1);
@@ -237,10 +653,18 @@ public class HtmlAnalyzer {
         return formatSize(originalSize - compressedSize) + " (" + nf.format(1 - (double) compressedSize / originalSize) + ")";
     }
 
-    private String formatSize(int size) {
+    private String formatSize(long size) {
         NumberFormat nf = NumberFormat.getInstance();
         nf.setGroupingUsed(true);
         nf.setParseIntegerOnly(true);
         return nf.format(size);
     }
-}
+
+    private String formatTime(long time, long originalSize) {
+        return formatSize(getTimePerKb(time, originalSize));
+    }
+
+    private long getTimePerKb(long time, long originalSize) {
+        return originalSize == 0 ? 0 : time * 1024 / originalSize;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.analyzer;
+
+import com.googlecode.htmlcompressor.compressor.Compressor;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compressor that remembers the results of another compressor, so script and style
+ * blocks that are compressed with several settings are minified only once.
+ * The result map could be shared by compressors running in different threads.
+ * The CPU time a remembered result took is added up as saved time on every reuse.
+ *
+ * @see HtmlAnalyzer
+ */
+class MemoizingCompressor implements Compressor {
+
+    private final Compressor compressor;
+    private final ConcurrentMap<String, Result> results;
+    private long savedTime = 0;
+
+    MemoizingCompressor(Compressor compressor, ConcurrentMap<String, Result> results) {
+        this.compressor = compressor;
+        this.results = results;
+    }
+
+    @Override
+    public String compress(String source) {
+        Result result = results.get(source);
+        if (result == null) {
+            long time = HtmlAnalyzer.getCpuTime();
+            String compressed = compressor.compress(source);
+            result = new Result(compressed, HtmlAnalyzer.getCpuTime() - time);
+            results.putIfAbsent(source, result);
+        } else {
+            savedTime += result.getTime();
+        }
+        return result.getCompressed();
+    }
+
+    /**
+     * Returns the CPU time in nanoseconds that was saved by reusing results.
+     */
+    long getSavedTime() {
+        return savedTime;
+    }
+
+    /**
+     * Compressed source and the CPU time it took.
+     */
+    static class Result {
+
+        private final String compressed;
+        private final long time;
+
+        Result(String compressed, long time) {
+            this.compressed = compressed;
+            this.time = time;
+        }
+
+        String getCompressed() {
+            return compressed;
+        }
+
+        long getTime() {
+            return time;
+        }
+    }
+}
\ No newline at end of file
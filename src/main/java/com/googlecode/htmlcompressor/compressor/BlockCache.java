@@ -0,0 +1,389 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of compressed blocks, e.g. inline scripts and styles that are the same on many
+ * pages. Results are keyed by the block content, the class of the compressor that produced them
+ * and a description of its options, so one cache could be shared by any number of compressors
+ * and threads. Compressors of the same class with the same options share their results. Results
+ * of compressors whose options are not described are only shared with equal compressors.
+ * <p>The size of the cache is limited in bytes of cached text. The cache is split into segments
+ * that are locked on their own. Every segment evicts its least recently used blocks, but a new
+ * block only replaces blocks that were not requested more often than the new one, which keeps
+ * blocks shared by many pages in the cache while blocks unique to a page pass by.
+ * <p>Compressors must return the same result for the same block and options, so a compressor
+ * whose options are not described must not be reconfigured while its results are cached.
+ * <p>Blocks missing in memory are looked up in the {@link BlockCacheFile} of the cache if one
+ * is set, which keeps results between runs.
+ *
+ * @see HtmlCompressor#setBlockCache(BlockCache)
+ */
+public class BlockCache {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 32 * 1024 * 1024;
+
+    private static final int SEGMENTS = 16;
+
+    //seeds of the frequency sketch hashes
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    //estimated bytes of an entry besides the text
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final long maximumSize;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private volatile BlockCacheFile file;
+
+    public BlockCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * @param maximumSize maximal size of the cached blocks and results in bytes
+     */
+    public BlockCache(long maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Invalid maximum size: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+
+        //about one frequency counter per 512 bytes
+        int counters = Integer.highestOneBit((int) Math.min(1 << 16, Math.max(256, maximumSize / SEGMENTS / 512)));
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maximumSize / SEGMENTS, counters);
+        }
+    }
+
+    /**
+     * Returns the cached result of compressing the given block by the given compressor,
+     * shared only with equal compressors.
+     *
+     * @param owner compressor that produced the result
+     * @param source uncompressed block
+     * @return compressed block or <code>null</code> if not cached
+     */
+    public String get(Object owner, String source) {
+        return get(owner, null, source);
+    }
+
+    /**
+     * Returns the cached result of compressing the given block.
+     *
+     * @param owner compressor that produced the result
+     * @param configuration description of all options of the compressor that change the result,
+     * <code>null</code> to share the result only with equal compressors
+     * @param source uncompressed block
+     * @return compressed block or <code>null</code> if not cached
+     */
+    public String get(Object owner, String configuration, String source) {
+        Key key = new Key(owner, configuration, source);
+        Segment segment = segmentFor(key.hash);
+        String result = segment.get(key);
+
+        BlockCacheFile cacheFile = file;
+        if (result == null && cacheFile != null) {
+            result = cacheFile.get(owner, configuration, source);
+            if (result != null) {
+                evictions.addAndGet(segment.put(key, result, weight(source, result)));
+            }
+        }
+
+        (result != null ? hits : misses).incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Caches the result of compressing the given block by the given compressor, shared only
+     * with equal compressors. Blocks larger than a segment are not cached.
+     *
+     * @param owner compressor that produced the result
+     * @param source uncompressed block
+     * @param result compressed block
+     */
+    public void put(Object owner, String source, String result) {
+        put(owner, null, source, result);
+    }
+
+    /**
+     * Caches the result of compressing the given block. Blocks larger than a segment are not cached.
+     *
+     * @param owner compressor that produced the result
+     * @param configuration description of all options of the compressor that change the result,
+     * <code>null</code> to share the result only with equal compressors
+     * @param source uncompressed block
+     * @param result compressed block
+     */
+    public void put(Object owner, String configuration, String source, String result) {
+        Key key = new Key(owner, configuration, source);
+        evictions.addAndGet(segmentFor(key.hash).put(key, result, weight(source, result)));
+
+        BlockCacheFile cacheFile = file;
+        if (cacheFile != null) {
+            cacheFile.put(owner, configuration, source, result);
+        }
+    }
+
+    private static long weight(String source, String result) {
+        return ENTRY_OVERHEAD + 2L * (source.length() + result.length());
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Removes all blocks from the cache. The counters are not reset.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public BlockCacheFile getFile() {
+        return file;
+    }
+
+    /**
+     * Sets the file that keeps compressed blocks between runs. Default is <code>null</code>,
+     * so blocks are only cached in memory.
+     * <p>The file is not closed by the cache.
+     *
+     * @param file file for compressed blocks
+     */
+    public void setFile(BlockCacheFile file) {
+        this.file = file;
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Returns the estimated size of the cached blocks and results in bytes.
+     *
+     * @return size in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of cached blocks.
+     *
+     * @return number of cached blocks
+     */
+    public int getEntries() {
+        int entries = 0;
+        for (Segment segment : segments) {
+            entries += segment.getEntries();
+        }
+        return entries;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of blocks removed to make room for other blocks.
+     *
+     * @return number of evicted blocks
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the share of lookups that found a cached result.
+     *
+     * @return hit rate between <code>0</code> and <code>1</code>, <code>0</code> without lookups
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Entries=%d, Size=%d, Hits=%d, Misses=%d, Evictions=%d, Hit rate=%.1f%%", getEntries(), getSize(), getHits(), getMisses(), getEvictions(), getHitRate() * 100);
+    }
+
+    static final class Key {
+
+        //class of the compressor if the options are described, otherwise the compressor
+        private final Object owner;
+        private final String configuration;
+        private final String source;
+        private final int hash;
+
+        Key(Object owner, String configuration, String source) {
+            this.owner = configuration != null ? owner.getClass() : owner;
+            this.configuration = configuration;
+            this.source = source;
+            this.hash = (this.owner.hashCode() * 31 + (configuration != null ? configuration.hashCode() : 0)) * 31 + source.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && owner.equals(other.owner)
+                && (configuration == null ? other.configuration == null : configuration.equals(other.configuration))
+                && source.equals(other.source);
+        }
+    }
+
+    private static final class Entry {
+
+        private final String result;
+        private final long weight;
+
+        Entry(String result, long weight) {
+            this.result = result;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Least recently used blocks of one segment with a frequency sketch of the requested keys.
+     */
+    static final class Segment {
+
+        private final long maximumSize;
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+        private long size = 0;
+
+        //four bit counters of four hashes, halved after ten times as many requests as counters
+        private final byte[] counters;
+        private int requests = 0;
+
+        Segment(long maximumSize, int counters) {
+            this.maximumSize = maximumSize;
+            this.counters = new byte[counters];
+        }
+
+        synchronized String get(Key key) {
+            increment(key.hash);
+            Entry entry = entries.get(key);
+            return entry != null ? entry.result : null;
+        }
+
+        /**
+         * @return number of evicted blocks
+         */
+        synchronized int put(Key key, String result, long weight) {
+            if (weight > maximumSize || entries.containsKey(key)) {
+                return 0;
+            }
+
+            //only replace blocks requested less often, and only if enough of them make room
+            int frequency = frequency(key.hash);
+            int evicted = 0;
+            long freed = 0;
+            Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+            while (size - freed + weight > maximumSize) {
+                Map.Entry<Key, Entry> eldest = iterator.next();
+                if (frequency < frequency(eldest.getKey().hash)) {
+                    return 0;
+                }
+                freed += eldest.getValue().weight;
+                evicted++;
+            }
+
+            iterator = entries.entrySet().iterator();
+            for (int i = 0; i < evicted; i++) {
+                iterator.next();
+                iterator.remove();
+            }
+            size -= freed;
+
+            entries.put(key, new Entry(result, weight));
+            size += weight;
+            return evicted;
+        }
+
+        private void increment(int hash) {
+            for (int i = 0; i < 4; i++) {
+                int index = index(hash, i);
+                if (counters[index] < 15) {
+                    counters[index]++;
+                }
+            }
+
+            if (++requests >= counters.length * 10) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                requests /= 2;
+            }
+        }
+
+        private int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                frequency = Math.min(frequency, counters[index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int i) {
+            int h = hash * SEEDS[i];
+            return (h ^ (h >>> 16)) & (counters.length - 1);
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            size = 0;
+        }
+
+        synchronized long getSize() {
+            return size;
+        }
+
+        synchronized int getEntries() {
+            return entries.size();
+        }
+    }
+}
\ No newline at end of file
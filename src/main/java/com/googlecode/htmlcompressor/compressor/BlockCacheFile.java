@@ -0,0 +1,580 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compressed blocks persisted in a directory, so later runs reuse the results of unchanged blocks.
+ * Used as the second level of a {@link BlockCache}.
+ * <p>Results are appended to a single file, keyed by a 128 bit hash of the block, the class of the
+ * compressor, the description of its options if known and a configuration that describes the
+ * options of all compressors. Results are only
+ * reused by runs with the same configuration. The records of earlier runs are read from a memory
+ * mapped view of the file.
+ * <p>Once the file reaches its maximum size no more results are added. The file is compacted when
+ * it is closed after it was full or when most of it holds replaced records, least recently used
+ * records are dropped first. If the file cannot be replaced by the compacted one, for example because
+ * another instance still reads it, the compacted records are copied into it when it is opened next.
+ * <p>Only one instance writes to a directory at a time. Instances opened while the directory is
+ * locked by another one only read the records.
+ *
+ * @see BlockCache#setFile(BlockCacheFile)
+ */
+public class BlockCacheFile implements Closeable {
+
+    public static final String FILE_NAME = "blocks.cache";
+
+    //"HCBC" followed by the format version
+    private static final int MAGIC = 0x48434243;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+
+    //classes whose versions change the results, the results of other versions are not reused
+    private static final String[] LIBRARY_CLASSES = {
+        "com.googlecode.htmlcompressor.compressor.HtmlCompressor",
+        "com.yahoo.platform.yui.compressor.JavaScriptCompressor",
+        "com.yahoo.platform.yui.compressor.CssCompressor",
+        "com.google.javascript.jscomp.Compiler"
+    };
+    private static final String LIBRARIES = describeLibraries();
+
+    //result length, key and the last run that used the record
+    private static final int RECORD_HEADER_SIZE = 4 + 16 + 4;
+    private static final int RUN_OFFSET = 20;
+
+    private final File file;
+    private final File compactedFile;
+    private final long maximumSize;
+    private final byte[] configuration;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private FileLock lock;
+    private MappedByteBuffer mapped;
+    private boolean writable;
+
+    private final Map<Key, Record> records = new HashMap<Key, Record>();
+    private long end = HEADER_SIZE;
+    private long liveSize = 0;
+    private int run = 0;
+    private boolean full = false;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Opens the cache file in the given directory.
+     *
+     * @param directory directory of the cache file, created if missing
+     * @param maximumSize maximal size of the cache file in bytes
+     * @param configuration description of the options of the compressors
+     * @throws IOException if the cache file could not be opened
+     */
+    public BlockCacheFile(File directory, long maximumSize, String configuration) throws IOException {
+        if (maximumSize <= HEADER_SIZE || maximumSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid maximum size: " + maximumSize);
+        }
+        this.file = new File(directory, FILE_NAME);
+        this.compactedFile = new File(directory, FILE_NAME + ".tmp");
+        this.maximumSize = maximumSize;
+        this.configuration = (LIBRARIES + configuration).getBytes("UTF-8");
+
+        directory.mkdirs();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        writable = lock != null;
+
+        try {
+            if (writable) {
+                replaceByCompacted();
+            }
+            load();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies the records of a compaction that could not replace the file into it, before the file is mapped.
+     */
+    private void replaceByCompacted() throws IOException {
+        if (!compactedFile.isFile()) {
+            return;
+        }
+
+        FileInputStream input = new FileInputStream(compactedFile);
+        try {
+            FileChannel source = input.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = channel.transferFrom(source, position, size - position);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of " + compactedFile);
+                }
+                position += transferred;
+            }
+            channel.truncate(size);
+        } finally {
+            input.close();
+        }
+        compactedFile.delete();
+    }
+
+    private void load() throws IOException {
+        long length = Math.min(channel.size(), maximumSize);
+        if (length >= HEADER_SIZE) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                mapped = null;
+            }
+        }
+
+        if (mapped == null) {
+            if (writable) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                channel.truncate(0);
+                write(header, 0);
+            }
+            run = 1;
+            return;
+        }
+
+        //later records of the same key replace earlier ones, a torn record ends the file
+        int position = HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= length) {
+            int resultLength = mapped.getInt(position);
+            if (resultLength < 0 || position + RECORD_HEADER_SIZE + (long) resultLength > length) {
+                break;
+            }
+            Record record = new Record(position, resultLength, mapped.getInt(position + RUN_OFFSET));
+            Record replaced = records.put(new Key(mapped.getLong(position + 4), mapped.getLong(position + 12)), record);
+            if (replaced != null) {
+                liveSize -= replaced.getSize();
+            }
+            liveSize += record.getSize();
+            run = Math.max(run, record.run);
+            position += record.getSize();
+        }
+        end = position;
+        run++;
+
+        if (writable && channel.size() > end) {
+            channel.truncate(end);
+        }
+    }
+
+    /**
+     * Returns the persisted result of compressing the given block.
+     *
+     * @param owner compressor that produced the result
+     * @param source uncompressed block
+     * @return compressed block or <code>null</code> if not persisted
+     */
+    public String get(Object owner, String source) {
+        return get(owner, null, source);
+    }
+
+    /**
+     * Returns the persisted result of compressing the given block.
+     *
+     * @param owner compressor that produced the result
+     * @param options description of the options of the compressor or <code>null</code>
+     * @param source uncompressed block
+     * @return compressed block or <code>null</code> if not persisted
+     */
+    public synchronized String get(Object owner, String options, String source) {
+        if (channel == null) {
+            return null;
+        }
+
+        Record record = records.get(key(owner, options, source));
+        if (record == null) {
+            misses++;
+            return null;
+        }
+
+        try {
+            String result = read(record);
+            if (record.run != run && writable) {
+                //mark as used by this run for the compaction
+                ByteBuffer buffer = ByteBuffer.allocate(4);
+                buffer.putInt(run).flip();
+                write(buffer, record.position + RUN_OFFSET);
+                record.run = run;
+            }
+            hits++;
+            return result;
+        } catch (IOException e) {
+            //caching must never break compression
+            writable = false;
+            return null;
+        }
+    }
+
+    /**
+     * Appends the result of compressing the given block unless it is already persisted
+     * or the file is full.
+     *
+     * @param owner compressor that produced the result
+     * @param source uncompressed block
+     * @param result compressed block
+     */
+    public void put(Object owner, String source, String result) {
+        put(owner, null, source, result);
+    }
+
+    /**
+     * Appends the result of compressing the given block unless it is already persisted
+     * or the file is full.
+     *
+     * @param owner compressor that produced the result
+     * @param options description of the options of the compressor or <code>null</code>
+     * @param source uncompressed block
+     * @param result compressed block
+     */
+    public synchronized void put(Object owner, String options, String source, String result) {
+        if (!writable) {
+            return;
+        }
+
+        Key key = key(owner, options, source);
+        if (records.containsKey(key)) {
+            return;
+        }
+
+        byte[] bytes = encode(result);
+        int size = RECORD_HEADER_SIZE + bytes.length;
+        if (end + size > maximumSize) {
+            full = true;
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(bytes.length).putLong(key.high).putLong(key.low).putInt(run).put(bytes).flip();
+        try {
+            write(buffer, end);
+        } catch (IOException e) {
+            writable = false;
+            return;
+        }
+        records.put(key, new Record(end, bytes.length, run));
+        end += size;
+        liveSize += size;
+    }
+
+    /**
+     * Compacts the file if needed and closes it. A failed compaction keeps the file as it is,
+     * a compacted file that could not replace it is kept until the file is opened next.
+     *
+     * @throws IOException if the file could not be closed
+     */
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+
+        File compacted = null;
+        try {
+            if (writable && (full || end - HEADER_SIZE - liveSize > liveSize)) {
+                compacted = compact();
+            }
+        } catch (IOException e) {
+            //caching must never break compression
+            compacted = null;
+        } finally {
+            mapped = null;
+            if (lock != null) {
+                lock.release();
+            }
+            randomAccessFile.close();
+            channel = null;
+        }
+
+        //open or still mapped files can not be replaced on some platforms, the next instance copies the records
+        if (compacted != null && !compacted.renameTo(file)) {
+            if (file.delete()) {
+                compacted.renameTo(file);
+            }
+        }
+    }
+
+    /**
+     * Writes the records that are kept to a new file next to the cache file.
+     *
+     * @return the compacted file
+     */
+    private File compact() throws IOException {
+        List<Map.Entry<Key, Record>> newest = new ArrayList<Map.Entry<Key, Record>>(records.entrySet());
+        Collections.sort(newest, new Comparator<Map.Entry<Key, Record>>() {
+            public int compare(Map.Entry<Key, Record> a, Map.Entry<Key, Record> b) {
+                Record r1 = a.getValue();
+                Record r2 = b.getValue();
+                if (r1.run != r2.run) {
+                    return r1.run > r2.run ? -1 : 1;
+                }
+                return r1.position > r2.position ? -1 : (r1.position < r2.position ? 1 : 0);
+            }
+        });
+
+        //leave room for the results of the next runs
+        long budget = maximumSize * 3 / 4 - HEADER_SIZE;
+        List<Map.Entry<Key, Record>> kept = new ArrayList<Map.Entry<Key, Record>>();
+        for (Map.Entry<Key, Record> entry : newest) {
+            budget -= entry.getValue().getSize();
+            if (budget < 0) {
+                break;
+            }
+            kept.add(entry);
+        }
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compactedFile)));
+        boolean written = false;
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            for (int i = kept.size() - 1; i >= 0; i--) {
+                Key key = kept.get(i).getKey();
+                Record record = kept.get(i).getValue();
+                output.writeInt(record.length);
+                output.writeLong(key.high);
+                output.writeLong(key.low);
+                output.writeInt(record.run);
+                output.write(readBytes(record));
+            }
+            written = true;
+        } finally {
+            output.close();
+            if (!written) {
+                compactedFile.delete();
+            }
+        }
+        return compactedFile;
+    }
+
+    private String read(Record record) throws IOException {
+        return new String(readBytes(record), "UTF-8");
+    }
+
+    private byte[] readBytes(Record record) throws IOException {
+        byte[] bytes = new byte[record.length];
+        long start = record.position + RECORD_HEADER_SIZE;
+        if (mapped != null && start + record.length <= mapped.capacity()) {
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) start);
+            view.get(bytes);
+        } else {
+            //appended by this run
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private Key key(Object owner, String options, String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(configuration);
+            digest.update((byte) 0);
+            digest.update(encode(owner.getClass().getName()));
+            digest.update((byte) 0);
+            if (options != null) {
+                digest.update(encode(options));
+            }
+            digest.update((byte) 0);
+            ByteBuffer hash = ByteBuffer.wrap(digest.digest(encode(source)));
+            return new Key(hash.getLong(), hash.getLong());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String describeLibraries() {
+        StringBuilder libraries = new StringBuilder();
+        for (String className : LIBRARY_CLASSES) {
+            libraries.append(className).append(' ').append(describeVersion(className)).append('\n');
+        }
+        return libraries.toString();
+    }
+
+    /**
+     * Describes the version of the library of the given class by the version in its jar manifest or,
+     * if there is none, by the size and modification time of its jar.
+     */
+    private static String describeVersion(String className) {
+        try {
+            Class<?> type = Class.forName(className, false, BlockCacheFile.class.getClassLoader());
+            Package library = type.getPackage();
+            if (library != null && library.getImplementationVersion() != null) {
+                return library.getImplementationVersion();
+            }
+            CodeSource source = type.getProtectionDomain().getCodeSource();
+            if (source != null && source.getLocation() != null && "file".equals(source.getLocation().getProtocol())) {
+                File location = new File(source.getLocation().toURI());
+                return location.length() + " " + location.lastModified();
+            }
+            return "";
+        } catch (ClassNotFoundException e) {
+            return "missing";
+        } catch (LinkageError e) {
+            return "missing";
+        } catch (URISyntaxException e) {
+            return "";
+        } catch (SecurityException e) {
+            return "";
+        }
+    }
+
+    private static byte[] encode(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Returns <code>false</code> if the directory is locked by another instance, so no results are added.
+     *
+     * @return <code>true</code> if results are added to the file
+     */
+    public synchronized boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Returns the number of persisted blocks.
+     *
+     * @return number of persisted blocks
+     */
+    public synchronized int getEntries() {
+        return records.size();
+    }
+
+    /**
+     * Returns the size of the file in bytes, including replaced records.
+     *
+     * @return size in bytes
+     */
+    public synchronized long getSize() {
+        return end;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("File=%s, Entries=%d, Size=%d, Hits=%d, Misses=%d", file, records.size(), end, hits, misses);
+    }
+
+    private static final class Key {
+
+        private final long high;
+        private final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (high ^ (high >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return high == other.high && low == other.low;
+        }
+    }
+
+    private static final class Record {
+
+        private final long position;
+        private final int length;
+        private int run;
+
+        Record(long position, int length, int run) {
+            this.position = position;
+            this.length = length;
+            this.run = run;
+        }
+
+        int getSize() {
+            return RECORD_HEADER_SIZE + length;
+        }
+    }
+}
\ No newline at end of file
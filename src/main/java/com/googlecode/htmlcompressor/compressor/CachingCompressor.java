@@ -0,0 +1,436 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compressor that remembers the results of another compressor for whole documents, e.g. pages
+ * rendered by the JSP tag or the Velocity directive that rarely change. A cached document only
+ * costs one hash pass over its content instead of the whole compression.
+ * <p>Results are keyed by a 128 bit MD5 hash of the document. The size of the cache is limited
+ * in bytes of cached results, least recently used documents are evicted first. Results could
+ * expire after a time to live, and large results are only held by soft references, so they are
+ * dropped before the memory runs out. Large results could also be kept in an {@link OffHeapStore}
+ * instead, so they neither take up the heap nor have to be decoded when written to a stream.
+ * Their encoded size counts towards the size of the cache as well, and they are removed from
+ * the store when they are evicted.
+ * <p>The wrapped compressor must return the same result for the same document, so it must not
+ * be reconfigured while its results are cached. Statistics of the wrapped compressor only
+ * describe the documents that were actually compressed.
+ *
+ * @see HtmlCompressor
+ * @see XmlCompressor
+ */
+public class CachingCompressor implements Compressor {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_SOFT_REFERENCE_THRESHOLD = 64 * 1024;
+
+    //estimated bytes of an entry besides the result
+    private static final int ENTRY_OVERHEAD = 96;
+
+    //characters hashed at once
+    private static final int HASH_BUFFER_SIZE = 4096;
+
+    private final Compressor compressor;
+    private final long maximumSize;
+
+    private volatile long timeToLive = 0;
+    private volatile int softReferenceThreshold = DEFAULT_SOFT_REFERENCE_THRESHOLD;
+    private volatile OffHeapStore offHeapStore;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+
+    public CachingCompressor(Compressor compressor) {
+        this(compressor, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * @param compressor compressor of the documents
+     * @param maximumSize maximal size of the cached results in bytes
+     */
+    public CachingCompressor(Compressor compressor, long maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Invalid maximum size: " + maximumSize);
+        }
+        this.compressor = compressor;
+        this.maximumSize = maximumSize;
+    }
+
+    @Override
+    public String compress(String source) {
+        Key key = hash(source);
+        Entry entry = getEntry(key);
+        String result = entry != null ? entry.getResult(key) : null;
+        count(key, entry, result != null);
+
+        if (result == null) {
+            //documents missed by several threads at once are compressed by each of them
+            result = compressor.compress(source);
+            put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Compresses the document and writes the UTF-8 encoded result to the stream. Results kept in
+     * an {@link OffHeapStore} are written without decoding them.
+     *
+     * @param source document to compress
+     * @param out stream for the compressed document, not closed
+     * @throws IOException if the stream could not be written
+     */
+    public void compress(String source, OutputStream out) throws IOException {
+        Key key = hash(source);
+        Entry entry = getEntry(key);
+        boolean hit = entry != null && entry.writeTo(key, out);
+        count(key, entry, hit);
+
+        if (!hit) {
+            String result = compressor.compress(source);
+            put(key, result);
+            out.write(result.getBytes("UTF-8"));
+        }
+    }
+
+    private synchronized Entry getEntry(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null && timeToLive > 0 && System.nanoTime() - entry.created > timeToLive) {
+            remove(key, entry);
+            expirations++;
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void count(Key key, Entry entry, boolean hit) {
+        if (hit) {
+            hits++;
+        } else {
+            misses++;
+
+            //collected by the garbage collector or evicted from the off-heap store
+            if (entry != null && entries.get(key) == entry) {
+                remove(key, entry);
+            }
+        }
+    }
+
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+        size -= entry.weight;
+        release(key, entry);
+    }
+
+    /**
+     * Removes the result of a removed entry from the off-heap store.
+     */
+    private static void release(Key key, Entry entry) {
+        if (entry.result instanceof OffHeapStore) {
+            ((OffHeapStore) entry.result).remove(key.high, key.low);
+        }
+    }
+
+    private void put(Key key, String result) {
+        boolean large = result.length() >= softReferenceThreshold;
+        OffHeapStore store = offHeapStore;
+        if (large && store != null) {
+            byte[] bytes = encode(result);
+            long weight = ENTRY_OVERHEAD + bytes.length;
+            if (weight <= maximumSize && store.put(key.high, key.low, bytes)) {
+                //only the entry is kept on the heap
+                put(key, store, weight);
+                return;
+            }
+        }
+        put(key, large ? new SoftReference<String>(result) : result, ENTRY_OVERHEAD + 2L * result.length());
+    }
+
+    private synchronized void put(Key key, Object value, long weight) {
+        if (weight > maximumSize) {
+            return;
+        }
+
+        Entry replaced = entries.remove(key);
+        if (replaced != null) {
+            size -= replaced.weight;
+            //the same result was stored again
+            if (replaced.result != value) {
+                release(key, replaced);
+            }
+        }
+
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (size + weight > maximumSize) {
+            Map.Entry<Key, Entry> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue().weight;
+            release(eldest.getKey(), eldest.getValue());
+            evictions++;
+        }
+
+        entries.put(key, new Entry(value, weight));
+        size += weight;
+    }
+
+    private static byte[] encode(String result) {
+        try {
+            return result.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Key hash(String source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        //both bytes of every character, without encoding the whole document
+        byte[] buffer = new byte[HASH_BUFFER_SIZE * 2];
+        int length = source.length();
+        for (int start = 0; start < length; start += HASH_BUFFER_SIZE) {
+            int end = Math.min(length, start + HASH_BUFFER_SIZE);
+            int position = 0;
+            for (int i = start; i < end; i++) {
+                char c = source.charAt(i);
+                buffer[position++] = (byte) c;
+                buffer[position++] = (byte) (c >>> 8);
+            }
+            digest.update(buffer, 0, position);
+        }
+
+        byte[] hash = digest.digest();
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (hash[i] & 0xFF);
+            low = (low << 8) | (hash[i + 8] & 0xFF);
+        }
+        return new Key(high, low);
+    }
+
+    /**
+     * Removes all documents from the cache. The counters are not reset.
+     */
+    public synchronized void clear() {
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+            release(entry.getKey(), entry.getValue());
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    public Compressor getCompressor() {
+        return compressor;
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Returns the time in nanoseconds after which cached results expire.
+     *
+     * @return time to live in nanoseconds, <code>0</code> if results never expire
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Sets the time after which cached results expire. Default is <code>0</code>,
+     * so results are kept until they are evicted.
+     *
+     * @param timeToLive time to live, <code>0</code> to keep results until they are evicted
+     * @param unit unit of the time to live
+     */
+    public void setTimeToLive(long timeToLive, TimeUnit unit) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("Invalid time to live: " + timeToLive);
+        }
+        this.timeToLive = unit.toNanos(timeToLive);
+    }
+
+    public OffHeapStore getOffHeapStore() {
+        return offHeapStore;
+    }
+
+    /**
+     * Sets the store that keeps large results outside of the heap instead of soft references.
+     * The store is keyed by the documents only, so it must not be shared with other caching
+     * compressors. Default is <code>null</code>, so all results are kept on the heap.
+     *
+     * @param offHeapStore store for results from the {@link #setSoftReferenceThreshold(int) threshold} on
+     */
+    public void setOffHeapStore(OffHeapStore offHeapStore) {
+        this.offHeapStore = offHeapStore;
+    }
+
+    public int getSoftReferenceThreshold() {
+        return softReferenceThreshold;
+    }
+
+    /**
+     * Sets the number of characters from which results are only held by soft references,
+     * so the garbage collector could drop them when the memory runs out, or kept in the
+     * off-heap store if one is set. Default is {@value #DEFAULT_SOFT_REFERENCE_THRESHOLD}.
+     *
+     * @param softReferenceThreshold minimal length of large results, <code>Integer.MAX_VALUE</code> to hold all results strongly
+     */
+    public void setSoftReferenceThreshold(int softReferenceThreshold) {
+        this.softReferenceThreshold = softReferenceThreshold;
+    }
+
+    /**
+     * Returns the estimated size of the cached results in bytes, including results kept off the heap.
+     *
+     * @return size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of cached documents.
+     *
+     * @return number of cached documents
+     */
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of documents removed to make room for other documents.
+     *
+     * @return number of evicted documents
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of documents removed because their time to live passed.
+     *
+     * @return number of expired documents
+     */
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    /**
+     * Returns the share of documents that were found in the cache.
+     *
+     * @return hit rate between <code>0</code> and <code>1</code>, <code>0</code> without documents
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Entries=%d, Size=%d, Hits=%d, Misses=%d, Evictions=%d, Expirations=%d, Hit rate=%.1f%%", entries.size(), size, hits, misses, evictions, expirations, getHitRate() * 100);
+    }
+
+    private static final class Key {
+
+        private final long high;
+        private final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (high ^ (high >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return high == other.high && low == other.low;
+        }
+    }
+
+    private static final class Entry {
+
+        //the result, a soft reference to it or the off-heap store that keeps it
+        private final Object result;
+        private final long weight;
+        private final long created = System.nanoTime();
+
+        Entry(Object result, long weight) {
+            this.result = result;
+            this.weight = weight;
+        }
+
+        @SuppressWarnings("unchecked")
+        String getResult(Key key) {
+            if (result instanceof String) {
+                return (String) result;
+            } else if (result instanceof OffHeapStore) {
+                return ((OffHeapStore) result).get(key.high, key.low);
+            }
+            return ((SoftReference<String>) result).get();
+        }
+
+        boolean writeTo(Key key, OutputStream out) throws IOException {
+            if (result instanceof OffHeapStore) {
+                return ((OffHeapStore) result).writeTo(key.high, key.low, out);
+            }
+            String value = getResult(key);
+            if (value == null) {
+                return false;
+            }
+            out.write(value.getBytes("UTF-8"));
+            return true;
+        }
+    }
+}
\ No newline at end of file
@@ -43,8 +43,8 @@ public class ClosureJavaScriptCompressor implements Compressor {
     public static final String COMPILATION_LEVEL_ADVANCED = "advanced";
     public static final String COMPILATION_LEVEL_WHITESPACE = "whitespace";
 
-    //Closure compiler default settings
-    private CompilerOptions compilerOptions = new CompilerOptions();
+    //Closure compiler default settings, options are created for every compilation unless set
+    private volatile CompilerOptions compilerOptions = null;
     private CompilationLevel compilationLevel = CompilationLevel.SIMPLE_OPTIMIZATIONS;
     private Level loggingLevel = Level.SEVERE;
     private WarningLevel warningLevel = WarningLevel.DEFAULT;
@@ -98,10 +98,16 @@ public class ClosureJavaScriptCompressor implements Compressor {
         Compiler compiler = new Compiler();
         compiler.disableThreads();
 
-        compilationLevel.setOptionsForCompilationLevel(compilerOptions);
-        warningLevel.setOptionsForWarningLevel(compilerOptions);
-
-        Result result = compiler.compile(externsList, input, compilerOptions);
+        //the options are changed by every compilation, so shared options are used one at a time
+        Result result;
+        CompilerOptions options = compilerOptions;
+        if (options == null) {
+            result = compile(compiler, externsList, input, new CompilerOptions());
+        } else {
+            synchronized (options) {
+                result = compile(compiler, externsList, input, options);
+            }
+        }
 
         if (result.success) {
             writer.write(compiler.toSource());
@@ -112,6 +118,13 @@ public class ClosureJavaScriptCompressor implements Compressor {
         return writer.toString();
     }
 
+    private Result compile(Compiler compiler, List<JSSourceFile> externsList, List<JSSourceFile> input, CompilerOptions options) {
+        compilationLevel.setOptionsForCompilationLevel(options);
+        warningLevel.setOptionsForWarningLevel(options);
+
+        return compiler.compile(externsList, input, options);
+    }
+
     //read default externs from closure.jar
     private List<JSSourceFile> getDefaultExterns() throws IOException {
         InputStream input = ClosureJavaScriptCompressor.class.getResourceAsStream("/externs.zip");
@@ -151,18 +164,26 @@ public class ClosureJavaScriptCompressor implements Compressor {
     }
 
     /**
-     * Returns options that are used by the Closure compiler.
+     * Returns options that are used by the Closure compiler. Once returned, the same options
+     * are used by all following compilations.
      *
      * @return <code>CompilerOptions</code> that are used by the compiler
      * @see <a href="http://closure-compiler.googlecode.com/svn/trunk/javadoc/com/google/javascript/jscomp/CompilerOptions.html">CompilerOptions</a>
      */
-    public CompilerOptions getCompilerOptions() {
+    public synchronized CompilerOptions getCompilerOptions() {
+        if (compilerOptions == null) {
+            compilerOptions = new CompilerOptions();
+        }
         return compilerOptions;
     }
 
     /**
      * Sets options that will be used by the Closure compiler.
      * If none is provided, default options constructor will be used: <code>new CompilerOptions()</code>.
+     * <p/>
+     * <p>Every compilation sets the compilation and warning level on the options, so compressions
+     * that use options set or returned here run one at a time. Otherwise every compilation
+     * creates its own options and compressions run concurrently.
      *
      * @param compilerOptions <code>CompilerOptions</code> that will be used by the compiler
      * @see <a href="http://closure-compiler.googlecode.com/svn/trunk/javadoc/com/google/javascript/jscomp/CompilerOptions.html">CompilerOptions</a>
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+/**
+ * Receives an event for every compressed document, script or style block and
+ * command line file, e.g. to forward them to a profiler or to Java Flight Recorder.
+ * Listeners are called in the compressing thread and should return quickly.
+ * If no listener is set, nothing is measured.
+ * <p>The command line compressor loads its listeners with {@link java.util.ServiceLoader},
+ * so an implementation is picked up from the class path if it is registered in
+ * <code>META-INF/services/com.googlecode.htmlcompressor.compressor.CompressionListener</code>.
+ *
+ * @see HtmlCompressor#setCompressionListener(CompressionListener)
+ */
+public interface CompressionListener {
+
+    /**
+     * Called after a document was compressed.
+     *
+     * @param compressor the compressor with the options that were used
+     * @param originalSize size of the document
+     * @param compressedSize size of the compression result
+     * @param time compression time in nanoseconds
+     */
+    void documentCompressed(Compressor compressor, int originalSize, int compressedSize, long time);
+
+    /**
+     * Called after an inline script, style or SVG block was passed to its compressor.
+     *
+     * @param blockType {@link StatisticsCollector#BLOCK_SCRIPT}, {@link StatisticsCollector#BLOCK_STYLE} or {@link StatisticsCollector#BLOCK_SVG}
+     * @param blockCompressor compressor of the block, e.g. {@link YuiJavaScriptCompressor}
+     * @param originalSize size of the block
+     * @param compressedSize size of the compressed block, <code>-1</code> if failed
+     * @param time compression time in nanoseconds
+     * @param failed <code>true</code> if the block compressor threw an exception
+     */
+    void blockCompressed(int blockType, Compressor blockCompressor, int originalSize, int compressedSize, long time, boolean failed);
+
+    /**
+     * Called by the command line compressor after a file was written.
+     *
+     * @param input input file or URL, <code>null</code> for standard input
+     * @param output output file, <code>null</code> for standard output
+     * @param originalSize size of the input, <code>-1</code> if streamed
+     * @param compressedSize size of the output, <code>-1</code> if streamed
+     * @param time time in nanoseconds including reading and writing
+     */
+    void fileCompressed(String input, String output, long originalSize, long compressedSize, long time);
+}
\ No newline at end of file
@@ -0,0 +1,195 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Buffers of a single compression that are reused by the following compressions: block lists,
+ * a string builder, matchers and a tag attribute buffer. They keep their capacity between documents,
+ * so compressing a document allocates little besides the strings of its stages.
+ * Buffers that grew beyond a cap for an unusually large document are dropped when the compression
+ * ends.
+ * <p>Every compressor keeps a small {@link Pool} of scratch objects, so no buffers are left behind
+ * in the threads of a container. While a compression runs, its scratch is the current scratch of
+ * the thread, so the stages reach it without passing it around. Stages that run without a current
+ * scratch, like the chunks of a parallel compression, get new buffers.
+ * <p>A stage must not keep a buffer while it calls code that asks for the same buffer.
+ *
+ * @see HtmlCompressor
+ * @see XmlCompressor
+ */
+final class CompressionScratch {
+
+    //characters a builder keeps between documents
+    static final int MAX_RETAINED_CHARS = 1024 * 1024;
+
+    //blocks a list keeps between documents
+    static final int MAX_RETAINED_BLOCKS = 1024;
+
+    //matchers of different patterns kept by a scratch
+    static final int MAX_MATCHERS = 64;
+
+    //idle scratch objects kept by a pool
+    static final int MAX_POOLED = 16;
+
+    private static final ThreadLocal<CompressionScratch> current = new ThreadLocal<CompressionScratch>();
+
+    private CompressionScratch previous;
+
+    private final List<ArrayList<String>> lists = new ArrayList<ArrayList<String>>();
+    private int listsUsed = 0;
+    private StringBuilder builder = new StringBuilder();
+    private final TagAttributeBuffer attributes = new TagAttributeBuffer();
+    private final Map<Pattern, Matcher> matchers = new IdentityHashMap<Pattern, Matcher>();
+
+    /**
+     * Returns an empty list for preserved blocks, cleared when the compression ends.
+     */
+    List<String> list() {
+        if (listsUsed == lists.size()) {
+            lists.add(new ArrayList<String>());
+        }
+        return lists.get(listsUsed++);
+    }
+
+    /**
+     * Returns an empty builder of the current scratch or a new one.
+     *
+     * @param capacity expected length of the content
+     */
+    static StringBuilder builder(long capacity) {
+        int size = (int) Math.min(capacity, Integer.MAX_VALUE - 8);
+        CompressionScratch scratch = current.get();
+        if (scratch == null) {
+            return new StringBuilder(size);
+        }
+        scratch.builder.setLength(0);
+        scratch.builder.ensureCapacity(size);
+        return scratch.builder;
+    }
+
+    /**
+     * Returns a matcher of the given pattern for the input, reset from an earlier use if possible.
+     * Only constant patterns should be matched this way.
+     */
+    static Matcher matcher(Pattern pattern, CharSequence input) {
+        CompressionScratch scratch = current.get();
+        if (scratch == null) {
+            return pattern.matcher(input);
+        }
+        Matcher matcher = scratch.matchers.get(pattern);
+        if (matcher == null) {
+            if (scratch.matchers.size() >= MAX_MATCHERS) {
+                scratch.matchers.clear();
+            }
+            matcher = pattern.matcher(input);
+            scratch.matchers.put(pattern, matcher);
+            return matcher;
+        }
+        return matcher.reset(input);
+    }
+
+    /**
+     * Returns the tag attribute buffer of the current scratch or a new one.
+     */
+    static TagAttributeBuffer attributes() {
+        CompressionScratch scratch = current.get();
+        return scratch != null ? scratch.attributes : new TagAttributeBuffer();
+    }
+
+    private void start() {
+        previous = current.get();
+        current.set(this);
+    }
+
+    /**
+     * Clears all buffers and drops those beyond their caps.
+     */
+    private void finish() {
+        if (previous != null) {
+            current.set(previous);
+        } else {
+            current.remove();
+        }
+        previous = null;
+
+        for (int i = 0; i < listsUsed; i++) {
+            if (lists.get(i).size() > MAX_RETAINED_BLOCKS) {
+                lists.set(i, new ArrayList<String>());
+            } else {
+                lists.get(i).clear();
+            }
+        }
+        listsUsed = 0;
+
+        if (builder.capacity() > MAX_RETAINED_CHARS) {
+            builder = new StringBuilder();
+        } else {
+            builder.setLength(0);
+        }
+
+        //do not keep the document alive
+        for (Matcher matcher : matchers.values()) {
+            matcher.reset("");
+        }
+        attributes.reset("", 0, 0);
+    }
+
+    /**
+     * Idle scratch objects of a compressor, safe for concurrent use.
+     */
+    static final class Pool {
+
+        private final ConcurrentLinkedQueue<CompressionScratch> idle = new ConcurrentLinkedQueue<CompressionScratch>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        /**
+         * Takes an idle scratch or creates one and makes it the current scratch of the thread.
+         * Compressions nested on the same thread take a scratch of their own.
+         */
+        CompressionScratch acquire() {
+            CompressionScratch scratch = idle.poll();
+            if (scratch != null) {
+                size.decrementAndGet();
+            } else {
+                scratch = new CompressionScratch();
+            }
+            scratch.start();
+            return scratch;
+        }
+
+        /**
+         * Restores the previous current scratch and keeps the released one for reuse.
+         */
+        void release(CompressionScratch scratch) {
+            scratch.finish();
+            if (size.incrementAndGet() <= MAX_POOLED) {
+                idle.offer(scratch);
+            } else {
+                size.decrementAndGet();
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -18,8 +18,8 @@ package com.googlecode.htmlcompressor.compressor;
 
 import org.mozilla.javascript.ErrorReporter;
 
-import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -80,11 +80,22 @@ public class HtmlCompressor implements Compressor {
      */
     public static final String ALL_TAGS = "all";
 
-    private boolean enabled = true;
+    //volatile options could be switched while other threads compress
+    private volatile boolean enabled = true;
+
+    //skip heuristics
+    private int minimumSize = 0;
+    private double minimumExpectedGain = 0;
 
     //javascript and css compressor implementations
     private Compressor javaScriptCompressor = null;
     private Compressor cssCompressor = null;
+    private Compressor svgCompressor = null;
+
+    //default compressors, reused by later plans while their settings are the same
+    private volatile YuiJavaScriptCompressor defaultJavaScriptCompressor = null;
+    private volatile YuiCssCompressor defaultCssCompressor = null;
+    private volatile SvgCompressor defaultSvgCompressor = null;
 
     //default settings
     private boolean removeComments = true;
@@ -93,10 +104,10 @@ public class HtmlCompressor implements Compressor {
     //optional settings
     private boolean removeIntertagSpaces = false;
     private boolean removeQuotes = false;
-    private boolean compressJavaScript = false;
+    private volatile boolean compressJavaScript = false;
     private boolean compressJavaScriptWithPreservedBlocks = true;
     private boolean compressCssWithPreservedBlocks = true;
-    private boolean compressCss = false;
+    private volatile boolean compressCss = false;
     private boolean simpleDoctype = false;
     private boolean removeScriptAttributes = false;
     private boolean removeStyleAttributes = false;
@@ -107,15 +118,33 @@ public class HtmlCompressor implements Compressor {
     private boolean removeJavaScriptProtocol = false;
     private boolean removeHttpProtocol = false;
     private boolean removeHttpsProtocol = false;
+    private volatile boolean sortAttributes = false;
+    private boolean sortClassNames = false;
+    private volatile boolean removeOptionalTags = false;
+    private volatile boolean compressJson = false;
+    private volatile boolean compressHtmlTemplates = false;
+    private volatile boolean compressSvg = false;
+    private int svgPrecision = 3;
     private boolean preserveLineBreaks = false;
     private String removeSurroundingSpaces = null;
-    private Pattern removeSurroundingSpacesPattern = null;
 
     private List<Pattern> preservePatterns = null;
 
     //statistics
     private boolean generateStatistics = false;
     private HtmlCompressorStatistics statistics = null;
+    private StatisticsCollector statisticsCollector = null;
+    private CompressionListener compressionListener = null;
+    private SlowDocumentSampler slowDocumentSampler = null;
+
+    //results of blocks shared between documents
+    private BlockCache blockCache = null;
+
+    //compiled options, null after an option was changed
+    private volatile Plan plan = null;
+
+    //buffers reused by the following compressions
+    private final CompressionScratch.Pool scratchPool = new CompressionScratch.Pool();
 
     //YUICompressor settings
     private boolean yuiJsNoMunge = false;
@@ -133,54 +162,110 @@ public class HtmlCompressor implements Compressor {
     protected static final String tempTextAreaBlock = "%%%~COMPRESS~TEXTAREA~{0,number,#}~%%%";
     protected static final String tempScriptBlock = "%%%~COMPRESS~SCRIPT~{0,number,#}~%%%";
     protected static final String tempStyleBlock = "%%%~COMPRESS~STYLE~{0,number,#}~%%%";
+    protected static final String tempSvgBlock = "%%%~COMPRESS~SVG~{0,number,#}~%%%";
     protected static final String tempStyleAttributeBlock = "%%%~COMPRESS~STYLE-ATTRIBUTE~{0,number,#}~%%%";
     protected static final String tempEventBlock = "%%%~COMPRESS~EVENT~{0,number,#}~%%%";
     protected static final String tempLineBreakBlock = "%%%~COMPRESS~LT~{0,number,#}~%%%";
     protected static final String tempSkipBlock = "%%%~COMPRESS~SKIP~{0,number,#}~%%%";
     protected static final String tempUserBlock = "%%%~COMPRESS~USER{0,number,#}~{1,number,#}~%%%";
+    protected static final String tempLineBreakPrefix = "%%%~COMPRESS~LT~";
+
+    //json is minified without a javascript compressor
+    private static final Compressor JSON_COMPRESSOR = new JsonCompressor();
+
+    //script types of client side html templates
+    private static final Set<String> HTML_TEMPLATE_TYPES = new HashSet<String>(Arrays.asList(
+        "text/html", "text/template", "text/x-template", "text/ng-template", "text/x-handlebars-template", "text/x-kendo-template"));
+
+    //tag rewrites applied by rewriteTags
+    private static final int REWRITE_SCRIPT_ATTRIBUTES = 1;
+    private static final int REWRITE_STYLE_ATTRIBUTES = 1 << 1;
+    private static final int REWRITE_LINK_ATTRIBUTES = 1 << 2;
+    private static final int REWRITE_FORM_ATTRIBUTES = 1 << 3;
+    private static final int REWRITE_INPUT_ATTRIBUTES = 1 << 4;
+    private static final int REWRITE_BOOLEAN_ATTRIBUTES = 1 << 5;
+    private static final int REWRITE_HTTP_PROTOCOL = 1 << 6;
+    private static final int REWRITE_HTTPS_PROTOCOL = 1 << 7;
+    private static final int REWRITE_QUOTES = 1 << 8;
+    private static final int REWRITE_SORT_ATTRIBUTES = 1 << 9;
+    private static final int REWRITE_SORT_CLASS_NAMES = 1 << 10;
+
+    //characters of preserved block markers and template markup
+    private static final String TEMPLATE_CHARS = "%<>{}";
 
     //compiled regex patterns
     protected static final Pattern emptyPattern = Pattern.compile("\\s");
-    protected static final Pattern skipPattern = Pattern.compile("<!--\\s*\\{\\{\\{\\s*-->(.*?)<!--\\s*\\}\\}\\}\\s*-->", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern condCommentPattern = Pattern.compile("(<!(?:--)?\\[[^\\]]+?]>)(.*?)(<!\\[[^\\]]+]-->)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern commentPattern = Pattern.compile("<!---->|<!--[^\\[].*?-->", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     protected static final Pattern intertagPattern_TagTag = Pattern.compile(">\\s+<", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     protected static final Pattern intertagPattern_TagCustom = Pattern.compile(">\\s+%%%~", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     protected static final Pattern intertagPattern_CustomTag = Pattern.compile("~%%%\\s+<", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     protected static final Pattern intertagPattern_CustomCustom = Pattern.compile("~%%%\\s+%%%~", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     protected static final Pattern multispacePattern = Pattern.compile("\\s+", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern tagEndSpacePattern = Pattern.compile("(<(?:[^>]+?))(?:\\s+?)(/?>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern tagLastUnquotedValuePattern = Pattern.compile("=\\s*[a-z0-9-_]+$", Pattern.CASE_INSENSITIVE);
-    protected static final Pattern tagQuotePattern = Pattern.compile("\\s*=\\s*([\"'])([a-z0-9-_]+?)\\1(/?)(?=[^<]*?>)", Pattern.CASE_INSENSITIVE);
-    protected static final Pattern prePattern = Pattern.compile("(<pre[^>]*?>)(.*?)(</pre>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern taPattern = Pattern.compile("(<textarea[^>]*?>)(.*?)(</textarea>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern scriptPattern = Pattern.compile("(<script[^>]*?>)(.*?)(</script>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern stylePattern = Pattern.compile("(<style[^>]*?>)(.*?)(</style>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern styleAttrPattern = Pattern.compile("(<\\w+[^>]*)(style\\s*=\\s*)(((\")([^\"]*)\")|((')([^']*)'))([^>]*>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern tagPropertyPattern = Pattern.compile("(\\s\\w+)\\s*=\\s*(?=[^<]*?>)", Pattern.CASE_INSENSITIVE);
     protected static final Pattern cdataPattern1 = Pattern.compile("^\\s*<!\\[CDATA\\[(.*?)\\]\\]>\\s*$", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     protected static final Pattern cdataPattern2 = Pattern.compile("^\\s*//[ \\t]*<!\\[CDATA\\[(.*?)//[ \\t]*\\]\\]>\\s*$", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     protected static final Pattern cdataPattern3 = Pattern.compile("^\\s*/\\*\\s*<!\\[CDATA\\[\\s*\\*/(.*?)/\\*\\s*\\]\\]>\\s*\\*/\\s*$", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern doctypePattern = Pattern.compile("<!DOCTYPE[^>]*>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     protected static final Pattern typeAttrPattern = Pattern.compile("type\\s*=\\s*([\\\"']*)(.+?)\\1", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    protected static final Pattern eventJsProtocolPattern = Pattern.compile("^javascript:\\s*(.+)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    protected static final Pattern surroundingSpacesMinPattern = Pattern.compile("\\s*(</?(?:" + BLOCK_TAGS_MIN.replaceAll(",", "|") + ")(?:>|[\\s/][^>]*>))\\s*", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    protected static final Pattern surroundingSpacesMaxPattern = Pattern.compile("\\s*(</?(?:" + BLOCK_TAGS_MAX.replaceAll(",", "|") + ")(?:>|[\\s/][^>]*>))\\s*", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    protected static final Pattern surroundingSpacesAllPattern = Pattern.compile("\\s*(<[^>]+>)\\s*", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+
+    //tag patterns replaced by the single pass of rewriteTags, no longer used by the compressor
+    @Deprecated
+    protected static final Pattern tagEndSpacePattern = Pattern.compile("(<(?:[^>]+?))(?:\\s+?)(/?>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
+    protected static final Pattern tagLastUnquotedValuePattern = Pattern.compile("=\\s*[a-z0-9-_]+$", Pattern.CASE_INSENSITIVE);
+    @Deprecated
+    protected static final Pattern tagQuotePattern = Pattern.compile("\\s*=\\s*([\"'])([a-z0-9-_]+?)\\1(/?)(?=[^<]*?>)", Pattern.CASE_INSENSITIVE);
+    @Deprecated
+    protected static final Pattern tagPropertyPattern = Pattern.compile("(\\s\\w+)\\s*=\\s*(?=[^<]*?>)", Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern jsTypeAttrPattern = Pattern.compile("(<script[^>]*)type\\s*=\\s*([\"']*)(?:text|application)/javascript\\2([^>]*>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern jsLangAttrPattern = Pattern.compile("(<script[^>]*)language\\s*=\\s*([\"']*)javascript\\2([^>]*>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern styleTypeAttrPattern = Pattern.compile("(<style[^>]*)type\\s*=\\s*([\"']*)text/style\\2([^>]*>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern linkTypeAttrPattern = Pattern.compile("(<link[^>]*)type\\s*=\\s*([\"']*)text/(?:css|plain)\\2([^>]*>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern linkRelAttrPattern = Pattern.compile("<link(?:[^>]*)rel\\s*=\\s*([\"']*)(?:alternate\\s+)?stylesheet\\1(?:[^>]*)>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern formMethodAttrPattern = Pattern.compile("(<form[^>]*)method\\s*=\\s*([\"']*)get\\2([^>]*>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern inputTypeAttrPattern = Pattern.compile("(<input[^>]*)type\\s*=\\s*([\"']*)text\\2([^>]*>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern booleanAttrPattern = Pattern.compile("(<\\w+[^>]*)(checked|selected|disabled|readonly)\\s*=\\s*([\"']*)\\w*\\3([^>]*>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern eventJsProtocolPattern = Pattern.compile("^javascript:\\s*(.+)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern httpProtocolPattern = Pattern.compile("(<[^>]+?(?:href|src|cite|action)\\s*=\\s*['\"])http:(//[^>]+?>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern httpsProtocolPattern = Pattern.compile("(<[^>]+?(?:href|src|cite|action)\\s*=\\s*['\"])https:(//[^>]+?>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern relExternalPattern = Pattern.compile("<(?:[^>]*)rel\\s*=\\s*([\"']*)(?:alternate\\s+)?external\\1(?:[^>]*)>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+
+    //block patterns replaced by linear scans, no longer used by the compressor
+    @Deprecated
+    protected static final Pattern skipPattern = Pattern.compile("<!--\\s*\\{\\{\\{\\s*-->(.*?)<!--\\s*\\}\\}\\}\\s*-->", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
+    protected static final Pattern condCommentPattern = Pattern.compile("(<!(?:--)?\\[[^\\]]+?]>)(.*?)(<!\\[[^\\]]+]-->)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
+    protected static final Pattern commentPattern = Pattern.compile("<!---->|<!--[^\\[].*?-->", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
+    protected static final Pattern prePattern = Pattern.compile("(<pre[^>]*?>)(.*?)(</pre>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
+    protected static final Pattern taPattern = Pattern.compile("(<textarea[^>]*?>)(.*?)(</textarea>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
+    protected static final Pattern scriptPattern = Pattern.compile("(<script[^>]*?>)(.*?)(</script>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
+    protected static final Pattern stylePattern = Pattern.compile("(<style[^>]*?>)(.*?)(</style>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
+    protected static final Pattern styleAttrPattern = Pattern.compile("(<\\w+[^>]*)(style\\s*=\\s*)(((\")([^\"]*)\")|((')([^']*)'))([^>]*>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
+    protected static final Pattern doctypePattern = Pattern.compile("<!DOCTYPE[^>]*>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern eventPattern1 = Pattern.compile("(\\son[a-z]+\\s*=\\s*\")([^\"\\\\\\r\\n]*(?:\\\\.[^\"\\\\\\r\\n]*)*)(\")", Pattern.CASE_INSENSITIVE); //unmasked: \son[a-z]+\s*=\s*"[^"\\\r\n]*(?:\\.[^"\\\r\n]*)*"
+    @Deprecated
     protected static final Pattern eventPattern2 = Pattern.compile("(\\son[a-z]+\\s*=\\s*')([^'\\\\\\r\\n]*(?:\\\\.[^'\\\\\\r\\n]*)*)(')", Pattern.CASE_INSENSITIVE);
+    @Deprecated
     protected static final Pattern lineBreakPattern = Pattern.compile("(?:\\p{Blank}*(\\r?\\n)\\p{Blank}*)+");
-    protected static final Pattern surroundingSpacesMinPattern = Pattern.compile("\\s*(</?(?:" + BLOCK_TAGS_MIN.replaceAll(",", "|") + ")(?:>|[\\s/][^>]*>))\\s*", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern surroundingSpacesMaxPattern = Pattern.compile("\\s*(</?(?:" + BLOCK_TAGS_MAX.replaceAll(",", "|") + ")(?:>|[\\s/][^>]*>))\\s*", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    protected static final Pattern surroundingSpacesAllPattern = Pattern.compile("\\s*(<[^>]+>)\\s*", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
 
     //patterns for searching for temporary replacements
     protected static final Pattern tempCondCommentPattern = Pattern.compile("%%%~COMPRESS~COND~(\\d+?)~%%%");
@@ -189,11 +274,18 @@ public class HtmlCompressor implements Compressor {
     protected static final Pattern tempScriptPattern = Pattern.compile("%%%~COMPRESS~SCRIPT~(\\d+?)~%%%");
     protected static final Pattern tempStyleAttributePattern = Pattern.compile("%%%~COMPRESS~STYLE-ATTRIBUTE~(\\d+?)~%%%");
     protected static final Pattern tempStylePattern = Pattern.compile("%%%~COMPRESS~STYLE~(\\d+?)~%%%");
+    protected static final Pattern tempSvgPattern = Pattern.compile("%%%~COMPRESS~SVG~(\\d+?)~%%%");
     protected static final Pattern tempEventPattern = Pattern.compile("%%%~COMPRESS~EVENT~(\\d+?)~%%%");
     protected static final Pattern tempSkipPattern = Pattern.compile("%%%~COMPRESS~SKIP~(\\d+?)~%%%");
     protected static final Pattern tempLineBreakPattern = Pattern.compile("%%%~COMPRESS~LT~(\\d+?)~%%%");
     protected static final Pattern tempUserBlockPattern = Pattern.compile("%%%~COMPRESS~USER(\\d+?)~(\\d+?)~%%%");
 
+    //minimal length of chunks compressed in parallel
+    protected static final int PARALLEL_CHUNK_SIZE = 1024 * 1024;
+
+    //length of the document prefix sampled to predict the gain
+    protected static final int GAIN_SAMPLE_SIZE = 4096;
+
     /**
      * The main method that compresses given HTML source and returns compressed
      * result.
@@ -202,55 +294,364 @@ public class HtmlCompressor implements Compressor {
      * @return compressed content.
      */
     public String compress(String html) {
+        return compress(html, null, 0);
+    }
+
+    /**
+     * Compresses given HTML source using the given executor and returns the same result
+     * as {@link #compress(String)}. After preserved blocks are taken out, the document is
+     * split between tags and the tags of all chunks are rewritten in parallel, so this only
+     * pays off for very large documents. Smaller documents are compressed in the calling thread.
+     *
+     * @param html HTML content to compress
+     * @param executor runs the compression of the chunks
+     * @return compressed content.
+     */
+    public String compress(String html, ExecutorService executor) {
+        return compress(html, executor, PARALLEL_CHUNK_SIZE);
+    }
+
+    protected String compress(String html, ExecutorService executor, int chunkSize) {
         if (!enabled || html == null || html.length() == 0) {
             return html;
         }
 
+        //skip documents not worth compressing
+        if (html.length() < minimumSize || (minimumExpectedGain > 0 && predictGain(html) < minimumExpectedGain)) {
+            initStatistics(html);
+            endStatistics(html);
+            if (statisticsCollector != null) {
+                statisticsCollector.recordSkippedDocument(html.length());
+            }
+            return html;
+        }
+
         //calculate uncompressed statistics
         initStatistics(html);
+        StatisticsCollector collector = statisticsCollector;
+        CompressionListener listener = compressionListener;
+        SlowDocumentSampler sampler = slowDocumentSampler;
+        boolean timed = collector != null || listener != null || sampler != null;
+        long startTime = timed ? System.nanoTime() : 0;
+        String source = html;
+
+        CompressionScratch scratch = scratchPool.acquire();
+        try {
+            //preserved block containers
+            List<String> condCommentBlocks = scratch.list();
+            List<String> preBlocks = scratch.list();
+            List<String> taBlocks = scratch.list();
+            List<String> scriptBlocks = scratch.list();
+            List<String> styleBlocks = scratch.list();
+            List<String> svgBlocks = scratch.list();
+            List<String> styleAttributeBlocks = scratch.list();
+            List<String> eventBlocks = scratch.list();
+            List<String> skipBlocks = scratch.list();
+            List<String> lineBreakBlocks = scratch.list();
+            List<List<String>> userBlocks = new ArrayList<List<String>>();
+
+            //preserve blocks
+            html = preserveBlocks(html, preBlocks, taBlocks, scriptBlocks, styleBlocks, svgBlocks, styleAttributeBlocks, eventBlocks, condCommentBlocks, skipBlocks, lineBreakBlocks, userBlocks);
+            long preserveTime = timed ? System.nanoTime() : 0;
+
+            //process pure html
+            if (executor == null) {
+                html = processHtml(html);
+            } else {
+                html = processHtml(html, executor, chunkSize);
+            }
+            long htmlTime = timed ? System.nanoTime() : 0;
+
+            //process preserved blocks
+            long scriptSize = 0;
+            long styleSize = 0;
+            long eventSize = 0;
+            long svgSize = 0;
+            if (collector != null) {
+                scriptSize = totalLength(scriptBlocks);
+                styleSize = totalLength(styleBlocks) + totalLength(styleAttributeBlocks);
+                eventSize = totalLength(eventBlocks);
+                svgSize = totalLength(svgBlocks);
+            }
+            processPreservedBlocks(preBlocks, taBlocks, scriptBlocks, styleBlocks, svgBlocks, styleAttributeBlocks, eventBlocks, condCommentBlocks, skipBlocks, lineBreakBlocks, userBlocks);
+            long blocksTime = timed ? System.nanoTime() : 0;
+
+            //put preserved blocks back
+            html = returnBlocks(html, preBlocks, taBlocks, scriptBlocks, styleBlocks, svgBlocks, styleAttributeBlocks, eventBlocks, condCommentBlocks, skipBlocks, lineBreakBlocks, userBlocks);
+
+            //calculate compressed statistics
+            endStatistics(html);
+            if (timed) {
+                long endTime = System.nanoTime();
+                if (collector != null) {
+                    collector.recordStage(StatisticsCollector.STAGE_PRESERVE, preserveTime - startTime);
+                    collector.recordStage(StatisticsCollector.STAGE_HTML, htmlTime - preserveTime);
+                    collector.recordStage(StatisticsCollector.STAGE_BLOCKS, blocksTime - htmlTime);
+                    collector.recordStage(StatisticsCollector.STAGE_RETURN, endTime - blocksTime);
+                    collector.recordBlocks(StatisticsCollector.BLOCK_SCRIPT, scriptSize, totalLength(scriptBlocks));
+                    collector.recordBlocks(StatisticsCollector.BLOCK_STYLE, styleSize, totalLength(styleBlocks) + totalLength(styleAttributeBlocks));
+                    collector.recordBlocks(StatisticsCollector.BLOCK_EVENT, eventSize, totalLength(eventBlocks));
+                    collector.recordBlocks(StatisticsCollector.BLOCK_SVG, svgSize, totalLength(svgBlocks));
+                    collector.recordDocument(source.length(), html.length(), endTime - startTime);
+                }
+                if (listener != null) {
+                    listener.documentCompressed(this, source.length(), html.length(), endTime - startTime);
+                }
+                if (sampler != null && sampler.isSlow(endTime - startTime)) {
+                    sampler.sample("html", source, endTime - startTime, String.format("preserve=%dns, html=%dns, blocks=%dns, return=%dns",
+                        preserveTime - startTime, htmlTime - preserveTime, blocksTime - htmlTime, endTime - blocksTime));
+                }
+            }
+
+            return html;
+        } finally {
+            scratchPool.release(scratch);
+        }
+    }
 
-        //preserved block containers
-        List<String> condCommentBlocks = new ArrayList<String>();
-        List<String> preBlocks = new ArrayList<String>();
-        List<String> taBlocks = new ArrayList<String>();
-        List<String> scriptBlocks = new ArrayList<String>();
-        List<String> styleBlocks = new ArrayList<String>();
-        List<String> styleAttributeBlocks = new ArrayList<String>();
-        List<String> eventBlocks = new ArrayList<String>();
-        List<String> skipBlocks = new ArrayList<String>();
-        List<String> lineBreakBlocks = new ArrayList<String>();
-        List<List<String>> userBlocks = new ArrayList<List<String>>();
+    /**
+     * Returns the configured JavaScript compressor or a YUI compressor with the configured settings.
+     * The YUI compressor of an earlier plan is reused if its settings did not change.
+     */
+    private Compressor createJavaScriptCompressor() {
+        if (javaScriptCompressor != null) {
+            return javaScriptCompressor;
+        }
 
-        //preserve blocks
-        html = preserveBlocks(html, preBlocks, taBlocks, scriptBlocks, styleBlocks, styleAttributeBlocks, eventBlocks, condCommentBlocks, skipBlocks, lineBreakBlocks, userBlocks);
+        YuiJavaScriptCompressor yuiJsCompressor = defaultJavaScriptCompressor;
+        if (yuiJsCompressor != null && yuiJsCompressor.isNoMunge() == yuiJsNoMunge
+            && yuiJsCompressor.isPreserveAllSemiColons() == yuiJsPreserveAllSemiColons
+            && yuiJsCompressor.isDisableOptimizations() == yuiJsDisableOptimizations
+            && yuiJsCompressor.getLineBreak() == yuiJsLineBreak
+            && (yuiErrorReporter != null ? yuiJsCompressor.getErrorReporter() == yuiErrorReporter
+                : yuiJsCompressor.getErrorReporter() instanceof YuiJavaScriptCompressor.DefaultErrorReporter)) {
+            return yuiJsCompressor;
+        }
 
-        //process pure html
-        html = processHtml(html);
+        yuiJsCompressor = new YuiJavaScriptCompressor();
+        yuiJsCompressor.setNoMunge(yuiJsNoMunge);
+        yuiJsCompressor.setPreserveAllSemiColons(yuiJsPreserveAllSemiColons);
+        yuiJsCompressor.setDisableOptimizations(yuiJsDisableOptimizations);
+        yuiJsCompressor.setLineBreak(yuiJsLineBreak);
 
-        //process preserved blocks
-        processPreservedBlocks(preBlocks, taBlocks, scriptBlocks, styleBlocks, styleAttributeBlocks, eventBlocks, condCommentBlocks, skipBlocks, lineBreakBlocks, userBlocks);
+        if (yuiErrorReporter != null) {
+            yuiJsCompressor.setErrorReporter(yuiErrorReporter);
+        }
 
-        //put preserved blocks back
-        html = returnBlocks(html, preBlocks, taBlocks, scriptBlocks, styleBlocks, styleAttributeBlocks, eventBlocks, condCommentBlocks, skipBlocks, lineBreakBlocks, userBlocks);
+        defaultJavaScriptCompressor = yuiJsCompressor;
+        return yuiJsCompressor;
+    }
 
-        //calculate compressed statistics
-        endStatistics(html);
+    /**
+     * Returns the configured SVG compressor or an {@link SvgCompressor} with the configured settings.
+     * The SVG compressor of an earlier plan is reused if its settings did not change.
+     */
+    private Compressor createSvgCompressor() {
+        if (svgCompressor != null) {
+            return svgCompressor;
+        }
 
-        return html;
+        SvgCompressor compressor = defaultSvgCompressor;
+        if (compressor != null && compressor.isRemoveComments() == removeComments
+            && compressor.isRemoveIntertagSpaces() == removeIntertagSpaces && compressor.getPrecision() == svgPrecision) {
+            return compressor;
+        }
+
+        compressor = new SvgCompressor();
+        compressor.setRemoveComments(removeComments);
+        compressor.setRemoveIntertagSpaces(removeIntertagSpaces);
+        compressor.setPrecision(svgPrecision);
+
+        defaultSvgCompressor = compressor;
+        return compressor;
+    }
+
+    /**
+     * Returns the configured CSS compressor or a YUI compressor with the configured settings.
+     * The YUI compressor of an earlier plan is reused if its settings did not change.
+     */
+    private Compressor createCssCompressor() {
+        if (cssCompressor != null) {
+            return cssCompressor;
+        }
+
+        YuiCssCompressor yuiCssCompressor = defaultCssCompressor;
+        if (yuiCssCompressor != null && yuiCssCompressor.getLineBreak() == yuiCssLineBreak) {
+            return yuiCssCompressor;
+        }
+
+        yuiCssCompressor = new YuiCssCompressor();
+        yuiCssCompressor.setLineBreak(yuiCssLineBreak);
+
+        defaultCssCompressor = yuiCssCompressor;
+        return yuiCssCompressor;
+    }
+
+    /**
+     * Describes the settings of the given compressor for the block cache, so compressors
+     * of the same class with the same settings share their results.
+     *
+     * @return description of the settings or <code>null</code> if they are unknown
+     */
+    private static String describeCompressor(Compressor compressor) {
+        Class<?> type = compressor.getClass();
+        if (type == YuiJavaScriptCompressor.class) {
+            YuiJavaScriptCompressor yuiJsCompressor = (YuiJavaScriptCompressor) compressor;
+            return "nomunge=" + yuiJsCompressor.isNoMunge() + ",preserve-semi=" + yuiJsCompressor.isPreserveAllSemiColons()
+                + ",disable-optimizations=" + yuiJsCompressor.isDisableOptimizations() + ",line-break=" + yuiJsCompressor.getLineBreak();
+        } else if (type == YuiCssCompressor.class) {
+            return "line-break=" + ((YuiCssCompressor) compressor).getLineBreak();
+        } else if (type == SvgCompressor.class) {
+            SvgCompressor svg = (SvgCompressor) compressor;
+            return "enabled=" + svg.isEnabled() + ",remove-comments=" + svg.isRemoveComments()
+                + ",remove-intertag-spaces=" + svg.isRemoveIntertagSpaces() + ",precision=" + svg.getPrecision();
+        } else if (type == JsonCompressor.class) {
+            return "";
+        }
+        return null;
+    }
+
+    /**
+     * Compresses a script or style block and reports failures and timings.
+     */
+    private String compressBlock(int blockType, Compressor compressor, String source) {
+        BlockCache cache = blockCache;
+        String configuration = cache != null ? describeCompressor(compressor) : null;
+        if (cache != null) {
+            String cached = cache.get(compressor, configuration, source);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        CompressionListener listener = compressionListener;
+        long startTime = listener != null ? System.nanoTime() : 0;
+
+        String result;
+        try {
+            result = compressor.compress(source);
+        } catch (RuntimeException e) {
+            StatisticsCollector collector = statisticsCollector;
+            if (collector != null) {
+                collector.recordBlockFailure();
+            }
+            if (listener != null) {
+                listener.blockCompressed(blockType, compressor, source.length(), -1, System.nanoTime() - startTime, true);
+            }
+            throw e;
+        }
+
+        if (listener != null) {
+            listener.blockCompressed(blockType, compressor, source.length(), result.length(), System.nanoTime() - startTime, false);
+        }
+        if (cache != null) {
+            cache.put(compressor, configuration, source, result);
+        }
+        return result;
+    }
+
+    /**
+     * Compresses a block with a clone of this compressor, e.g. the content of conditional comments.
+     * The result depends on all options copied to the clone, so it is cached for their description.
+     */
+    private String compressWithClone(HtmlCompressor clone, String source) {
+        BlockCache cache = blockCache;
+        if (cache == null) {
+            return clone.compress(source);
+        }
+
+        Plan current = getPlan();
+        String result = cache.get(current.cloneOwner, current.cloneConfiguration, source);
+        if (result == null) {
+            result = clone.compress(source);
+            cache.put(current.cloneOwner, current.cloneConfiguration, source, result);
+        }
+        return result;
+    }
+
+    /**
+     * Predicts the gain of compressing the given document in percent. Only the beginning
+     * of the document is sampled for comments and spaces that would be removed, so the
+     * prediction is cheap but ignores script, style and attribute compression. The content
+     * of preserved tags is not counted.
+     *
+     * @param html HTML content to compress
+     * @return expected size decrease in percent
+     */
+    protected double predictGain(String html) {
+        int length = Math.min(html.length(), GAIN_SAMPLE_SIZE);
+        int removable = 0;
+        char previous = 0;
+
+        int i = 0;
+        while (i < length) {
+            char c = html.charAt(i);
+            if (removeComments && c == '<' && html.startsWith("<!--", i) && !html.startsWith("<!--[", i)) {
+                //whole comment except conditional comments
+                int end = html.indexOf("-->", i + 4);
+                end = end < 0 || end + 3 > length ? length : end + 3;
+                removable += end - i;
+                i = end;
+                previous = '>';
+            } else if (c == '<' && (startsWithTag(html, i, "script") || startsWithTag(html, i, "style") || startsWithTag(html, i, "pre") || startsWithTag(html, i, "textarea"))) {
+                //preserved content
+                int end = indexOfIgnoreCase(html, "</", i + 1, length);
+                i = end < 0 ? length : end;
+                previous = 0;
+            } else if (Character.isWhitespace(c)) {
+                int end = i + 1;
+                while (end < length && Character.isWhitespace(html.charAt(end))) {
+                    end++;
+                }
+                if (removeMultiSpaces) {
+                    removable += end - i - 1;
+                }
+                if (removeIntertagSpaces && previous == '>' && end < length && html.charAt(end) == '<') {
+                    removable++;
+                }
+                i = end;
+                previous = ' ';
+            } else {
+                previous = c;
+                i++;
+            }
+        }
+
+        return length == 0 ? 0 : removable * 100.0 / length;
+    }
+
+    private static boolean startsWithTag(String html, int start, String name) {
+        int end = start + 1 + name.length();
+        return html.regionMatches(true, start + 1, name, 0, name.length()) && end < html.length()
+            && (html.charAt(end) == '>' || Character.isWhitespace(html.charAt(end)));
+    }
+
+    private static int indexOfIgnoreCase(String html, String str, int start, int end) {
+        for (int i = start; i + str.length() <= end; i++) {
+            if (html.regionMatches(true, i, str, 0, str.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static long totalLength(List<String> blocks) {
+        long length = 0;
+        for (String block : blocks) {
+            length += block.length();
+        }
+        return length;
     }
 
     protected void initStatistics(String html) {
         //create stats
         if (generateStatistics) {
             statistics = new HtmlCompressorStatistics();
-            statistics.setTime((new Date()).getTime());
+            statistics.setTime(System.currentTimeMillis());
             statistics.getOriginalMetrics().setFilesize(html.length());
 
             //calculate number of empty chars
-            Matcher matcher = emptyPattern.matcher(html);
-            while (matcher.find()) {
-                statistics.getOriginalMetrics().setEmptyChars(statistics.getOriginalMetrics().getEmptyChars() + 1);
-            }
+            statistics.getOriginalMetrics().setEmptyChars(countSpaces(html));
         } else {
             statistics = null;
         }
@@ -259,18 +660,29 @@ public class HtmlCompressor implements Compressor {
     protected void endStatistics(String html) {
         //calculate compression time
         if (generateStatistics) {
-            statistics.setTime((new Date()).getTime() - statistics.getTime());
+            statistics.setTime(System.currentTimeMillis() - statistics.getTime());
             statistics.getCompressedMetrics().setFilesize(html.length());
 
             //calculate number of empty chars
-            Matcher matcher = emptyPattern.matcher(html);
-            while (matcher.find()) {
-                statistics.getCompressedMetrics().setEmptyChars(statistics.getCompressedMetrics().getEmptyChars() + 1);
+            statistics.getCompressedMetrics().setEmptyChars(countSpaces(html));
+        }
+    }
+
+    /**
+     * Counts the whitespace characters matched by {@link #emptyPattern} in a single pass
+     * without creating a matcher.
+     */
+    private static int countSpaces(String html) {
+        int count = 0;
+        for (int i = 0, length = html.length(); i < length; i++) {
+            if (isSpace(html.charAt(i))) {
+                count++;
             }
         }
+        return count;
     }
 
-    protected String preserveBlocks(String html, List<String> preBlocks, List<String> taBlocks, List<String> scriptBlocks, List<String> styleBlocks, List<String> styleAttributeBlocks, List<String> eventBlocks, List<String> condCommentBlocks, List<String> skipBlocks, List<String> lineBreakBlocks, List<List<String>> userBlocks) {
+    protected String preserveBlocks(String html, List<String> preBlocks, List<String> taBlocks, List<String> scriptBlocks, List<String> styleBlocks, List<String> svgBlocks, List<String> styleAttributeBlocks, List<String> eventBlocks, List<String> condCommentBlocks, List<String> skipBlocks, List<String> lineBreakBlocks, List<List<String>> userBlocks) {
 
         //preserve user blocks
         if (preservePatterns != null) {
@@ -279,567 +691,1436 @@ public class HtmlCompressor implements Compressor {
 
                 Matcher matcher = preservePatterns.get(p).matcher(html);
                 int index = 0;
-                StringBuffer sb = new StringBuffer();
+                int last = 0;
+                StringBuilder sb = CompressionScratch.builder(html.length());
                 while (matcher.find()) {
                     if (matcher.group(0).trim().length() > 0) {
                         userBlock.add(matcher.group(0));
-                        matcher.appendReplacement(sb, MessageFormat.format(tempUserBlock, p, index++));
+                        Replacements.appendPlaceholder(sb.append(html, last, matcher.start()), tempUserBlock, p, index++);
+                        last = matcher.end();
                     }
                 }
-                matcher.appendTail(sb);
-                html = sb.toString();
+                html = last == 0 ? html : sb.append(html, last, html.length()).toString();
                 userBlocks.add(userBlock);
             }
         }
 
         //preserve <!-- {{{ ---><!-- }}} ---> skip blocks
-        Matcher matcher = skipPattern.matcher(html);
+        int[] match = new int[4];
         int skipBlockIndex = 0;
-        StringBuffer sb = new StringBuffer();
-        while (matcher.find()) {
-            if (matcher.group(1).trim().length() > 0) {
-                skipBlocks.add(matcher.group(1));
-                matcher.appendReplacement(sb, MessageFormat.format(tempSkipBlock, skipBlockIndex++));
+        int last = 0;
+        int pos = 0;
+        StringBuilder sb = CompressionScratch.builder(html.length());
+        while (findSkipBlock(html, pos, match)) {
+            if (hasContent(html, match[2], match[3])) {
+                skipBlocks.add(html.substring(match[2], match[3]));
+                Replacements.appendPlaceholder(sb.append(html, last, match[0]), tempSkipBlock, skipBlockIndex++);
+                last = match[1];
             }
+            pos = match[1];
         }
-        matcher.appendTail(sb);
-        html = sb.toString();
+        html = last == 0 ? html : sb.append(html, last, html.length()).toString();
 
         //preserve conditional comments
-        HtmlCompressor condCommentCompressor = createCompressorClone();
-        matcher = condCommentPattern.matcher(html);
+        HtmlCompressor condCommentCompressor = null;
         int index = 0;
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            if (matcher.group(2).trim().length() > 0) {
-                condCommentBlocks.add(matcher.group(1) + condCommentCompressor.compress(matcher.group(2)) + matcher.group(3));
-                matcher.appendReplacement(sb, MessageFormat.format(tempCondCommentBlock, index++));
+        last = 0;
+        pos = 0;
+        sb = CompressionScratch.builder(html.length());
+        while (findCondComment(html, pos, match)) {
+            if (hasContent(html, match[2], match[3])) {
+                if (condCommentCompressor == null) {
+                    condCommentCompressor = createCompressorClone();
+                }
+                condCommentBlocks.add(html.substring(match[0], match[2]) + compressWithClone(condCommentCompressor, html.substring(match[2], match[3])) + html.substring(match[3], match[1]));
+                Replacements.appendPlaceholder(sb.append(html, last, match[0]), tempCondCommentBlock, index++);
+                last = match[1];
             }
+            pos = match[1];
         }
-        matcher.appendTail(sb);
-        html = sb.toString();
+        html = last == 0 ? html : sb.append(html, last, html.length()).toString();
 
         //preserve inline events
-        matcher = eventPattern1.matcher(html);
-        index = 0;
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            if (matcher.group(2).trim().length() > 0) {
-                eventBlocks.add(matcher.group(2));
-                matcher.appendReplacement(sb, "$1" + MessageFormat.format(tempEventBlock, index++) + "$3");
-            }
-        }
-        matcher.appendTail(sb);
-        html = sb.toString();
-
-        matcher = eventPattern2.matcher(html);
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            if (matcher.group(2).trim().length() > 0) {
-                eventBlocks.add(matcher.group(2));
-                matcher.appendReplacement(sb, "$1" + MessageFormat.format(tempEventBlock, index++) + "$3");
-            }
-        }
-        matcher.appendTail(sb);
-        html = sb.toString();
+        html = preserveEvents(html, '"', eventBlocks);
+        html = preserveEvents(html, '\'', eventBlocks);
 
         //preserve PRE tags
-        matcher = prePattern.matcher(html);
         index = 0;
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            if (matcher.group(2).trim().length() > 0) {
-                preBlocks.add(matcher.group(2));
-                matcher.appendReplacement(sb, "$1" + MessageFormat.format(tempPreBlock, index++) + "$3");
+        last = 0;
+        pos = 0;
+        sb = CompressionScratch.builder(html.length());
+        while (findTagBlock(html, "pre", pos, match)) {
+            if (hasContent(html, match[2], match[3])) {
+                preBlocks.add(html.substring(match[2], match[3]));
+                Replacements.appendPlaceholder(sb.append(html, last, match[2]), tempPreBlock, index++);
+                last = match[3];
             }
+            pos = match[1];
         }
-        matcher.appendTail(sb);
-        html = sb.toString();
+        html = last == 0 ? html : sb.append(html, last, html.length()).toString();
 
         //preserve SCRIPT tags
-        matcher = scriptPattern.matcher(html);
+        HtmlCompressor templateCompressor = null;
         index = 0;
-        sb = new StringBuffer();
-        while (matcher.find()) {
+        last = 0;
+        pos = 0;
+        sb = CompressionScratch.builder(html.length());
+        while (findTagBlock(html, "script", pos, match)) {
             //ignore empty scripts
-            if (matcher.group(2).trim().length() > 0) {
+            if (hasContent(html, match[2], match[3])) {
 
                 //check type
                 String type = "";
-                Matcher typeMatcher = typeAttrPattern.matcher(matcher.group(1));
+                Matcher typeMatcher = CompressionScratch.matcher(typeAttrPattern, html.subSequence(match[0], match[2]));
                 if (typeMatcher.find()) {
                     type = typeMatcher.group(2).toLowerCase();
                 }
 
                 if (type.length() == 0 || type.equals("text/javascript") || type.equals("application/javascript")) {
                     //javascript block, preserve and compress with js compressor
-                    scriptBlocks.add(matcher.group(2));
-                    matcher.appendReplacement(sb, "$1" + MessageFormat.format(tempScriptBlock, index++) + "$3");
+                    scriptBlocks.add(html.substring(match[2], match[3]));
+                    Replacements.appendPlaceholder(sb.append(html, last, match[2]), tempScriptBlock, index++);
+                    last = match[3];
                 } else if (type.equals("text/x-jquery-tmpl")) {
                     //jquery template, ignore so it gets compressed with the rest of html
+                } else if (compressJson && isJsonType(type)) {
+                    //json data, minify and preserve it
+                    skipBlocks.add(compressBlock(StatisticsCollector.BLOCK_SCRIPT, JSON_COMPRESSOR, html.substring(match[2], match[3])));
+                    Replacements.appendPlaceholder(sb.append(html, last, match[2]), tempSkipBlock, skipBlockIndex++);
+                    last = match[3];
+                } else if (compressHtmlTemplates && HTML_TEMPLATE_TYPES.contains(type)) {
+                    //html template, compress it on its own and preserve it
+                    if (templateCompressor == null) {
+                        templateCompressor = createCompressorClone();
+                    }
+                    skipBlocks.add(compressWithClone(templateCompressor, html.substring(match[2], match[3])));
+                    Replacements.appendPlaceholder(sb.append(html, last, match[2]), tempSkipBlock, skipBlockIndex++);
+                    last = match[3];
                 } else {
                     //some custom script, preserve it inside "skip blocks" so it won't be compressed with js compressor
-                    skipBlocks.add(matcher.group(2));
-                    matcher.appendReplacement(sb, "$1" + MessageFormat.format(tempSkipBlock, skipBlockIndex++) + "$3");
+                    skipBlocks.add(html.substring(match[2], match[3]));
+                    Replacements.appendPlaceholder(sb.append(html, last, match[2]), tempSkipBlock, skipBlockIndex++);
+                    last = match[3];
                 }
             }
+            pos = match[1];
         }
-        matcher.appendTail(sb);
-        html = sb.toString();
+        html = last == 0 ? html : sb.append(html, last, html.length()).toString();
 
         //preserve STYLE tags
-        matcher = stylePattern.matcher(html);
         index = 0;
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            if (matcher.group(2).trim().length() > 0) {
-                styleBlocks.add(matcher.group(2));
-                matcher.appendReplacement(sb, "$1" + MessageFormat.format(tempStyleBlock, index++) + "$3");
+        last = 0;
+        pos = 0;
+        sb = CompressionScratch.builder(html.length());
+        while (findTagBlock(html, "style", pos, match)) {
+            if (hasContent(html, match[2], match[3])) {
+                styleBlocks.add(html.substring(match[2], match[3]));
+                Replacements.appendPlaceholder(sb.append(html, last, match[2]), tempStyleBlock, index++);
+                last = match[3];
+            }
+            pos = match[1];
+        }
+        html = last == 0 ? html : sb.append(html, last, html.length()).toString();
+
+        //preserve style attribute
+        html = preserveStyleAttributes(html, styleAttributeBlocks);
+
+        //preserve TEXTAREA tags
+        index = 0;
+        last = 0;
+        pos = 0;
+        sb = CompressionScratch.builder(html.length());
+        while (findTagBlock(html, "textarea", pos, match)) {
+            if (hasContent(html, match[2], match[3])) {
+                taBlocks.add(html.substring(match[2], match[3]));
+                Replacements.appendPlaceholder(sb.append(html, last, match[2]), tempTextAreaBlock, index++);
+                last = match[3];
+            }
+            pos = match[1];
+        }
+        html = last == 0 ? html : sb.append(html, last, html.length()).toString();
+
+        //preserve SVG images with the blocks inside
+        if (compressSvg) {
+            index = 0;
+            last = 0;
+            pos = 0;
+            sb = CompressionScratch.builder(html.length());
+            while (findSvgBlock(html, pos, match)) {
+                svgBlocks.add(html.substring(match[0], match[1]));
+                Replacements.appendPlaceholder(sb.append(html, last, match[0]), tempSvgBlock, index++);
+                last = pos = match[1];
+            }
+            html = last == 0 ? html : sb.append(html, last, html.length()).toString();
+        }
+
+        //preserve line breaks
+        if (preserveLineBreaks) {
+            html = preserveLineBreakBlocks(html, lineBreakBlocks);
+        }
+
+        return html;
+    }
+
+    /**
+     * Returns <code>true</code> if the lower case script type denotes JSON data,
+     * like <code>application/json</code>, <code>application/ld+json</code> or import maps.
+     */
+    private static boolean isJsonType(String type) {
+        return type.equals("application/json") || type.endsWith("+json") || type.equals("importmap") || type.equals("speculationrules");
+    }
+
+    /**
+     * Finds the next <code>&lt;!-- {{{ --&gt;...&lt;!-- }}} --&gt;</code> skip block.
+     * Bounds of the block are stored into <code>match</code> as
+     * <code>{start, end, contentStart, contentEnd}</code>.
+     *
+     * @return <code>false</code> if there are no more skip blocks
+     */
+    private static boolean findSkipBlock(String html, int from, int[] match) {
+        int pos = html.indexOf("<!--", from);
+        while (pos >= 0) {
+            int contentStart = matchSkipMarker(html, pos, "{{{");
+            if (contentStart > 0) {
+                int close = html.indexOf("<!--", contentStart);
+                while (close >= 0) {
+                    int end = matchSkipMarker(html, close, "}}}");
+                    if (end > 0) {
+                        match[0] = pos;
+                        match[1] = end;
+                        match[2] = contentStart;
+                        match[3] = close;
+                        return true;
+                    }
+                    close = html.indexOf("<!--", close + 4);
+                }
+
+                //no closing marker, so no later block can be closed either
+                return false;
+            }
+            pos = html.indexOf("<!--", pos + 4);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the position after the <code>&lt;!-- marker --&gt;</code> comment starting at
+     * the given position or <code>-1</code> if there is no such comment.
+     */
+    private static int matchSkipMarker(String html, int pos, String marker) {
+        int p = skipSpaces(html, pos + 4);
+        if (!html.startsWith(marker, p)) {
+            return -1;
+        }
+        p = skipSpaces(html, p + marker.length());
+        return html.startsWith("-->", p) ? p + 3 : -1;
+    }
+
+    /**
+     * Finds the next conditional comment, such as <code>&lt;!--[if IE]&gt;...&lt;![endif]--&gt;</code>.
+     * Bounds of the comment are stored into <code>match</code> as
+     * <code>{start, end, contentStart, contentEnd}</code>.
+     *
+     * @return <code>false</code> if there are no more conditional comments
+     */
+    private static boolean findCondComment(String html, int from, int[] match) {
+        int pos = html.indexOf("<!", from);
+        while (pos >= 0) {
+            int bracket = pos + 2;
+            if (html.startsWith("--[", bracket)) {
+                bracket += 2;
+            }
+            if (bracket >= html.length() || html.charAt(bracket) != '[') {
+                pos = html.indexOf("<!", pos + 2);
+                continue;
+            }
+
+            //the condition runs up to the first closing bracket
+            int bracketEnd = html.indexOf(']', bracket + 1);
+            if (bracketEnd < 0) {
+                return false;
+            }
+            if (bracketEnd == bracket + 1 || !html.startsWith("]>", bracketEnd)) {
+                //every opening comment up to this bracket would stop at it as well
+                pos = html.indexOf("<!", bracketEnd + 1);
+                continue;
+            }
+
+            int contentStart = bracketEnd + 2;
+            int close = html.indexOf("<![", contentStart);
+            while (close >= 0) {
+                int closeBracket = html.indexOf(']', close + 3);
+                if (closeBracket < 0) {
+                    return false;
+                }
+                if (closeBracket > close + 3 && html.startsWith("]-->", closeBracket)) {
+                    match[0] = pos;
+                    match[1] = closeBracket + 4;
+                    match[2] = contentStart;
+                    match[3] = close;
+                    return true;
+                }
+                close = html.indexOf("<![", closeBracket + 1);
+            }
+
+            //no closing comment, so no later comment can be closed either
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * Finds the next <code>&lt;tag ...&gt;...&lt;/tag&gt;</code> block for the given lower case tag name.
+     * Bounds of the block are stored into <code>match</code> as
+     * <code>{start, end, contentStart, contentEnd}</code>.
+     *
+     * @return <code>false</code> if there are no more blocks
+     */
+    private static boolean findTagBlock(String html, String tag, int from, int[] match) {
+        int pos = indexOfIgnoreCase(html, "<" + tag, from);
+        if (pos < 0) {
+            return false;
+        }
+        int contentStart = html.indexOf('>', pos + tag.length() + 1);
+        if (contentStart < 0) {
+            return false;
+        }
+        contentStart++;
+        String closeTag = "</" + tag + ">";
+        int close = indexOfIgnoreCase(html, closeTag, contentStart);
+        if (close < 0) {
+            return false;
+        }
+
+        match[0] = pos;
+        match[1] = close + closeTag.length();
+        match[2] = contentStart;
+        match[3] = close;
+        return true;
+    }
+
+    /**
+     * Finds the next <code>&lt;svg></code> element including nested ones. Bounds of the element
+     * are stored into <code>match</code> as <code>{start, end}</code>.
+     *
+     * @return <code>false</code> if there are no more complete SVG elements
+     */
+    private static boolean findSvgBlock(String html, int from, int[] match) {
+        int start = indexOfSvgTag(html, "<svg", from);
+        if (start < 0) {
+            return false;
+        }
+
+        int depth = 1;
+        int pos = start + 4;
+        while (depth > 0) {
+            int open = indexOfSvgTag(html, "<svg", pos);
+            int close = indexOfSvgTag(html, "</svg", pos);
+            if (close < 0) {
+                return false;
+            }
+            if (open >= 0 && open < close) {
+                depth++;
+                pos = open + 4;
+            } else {
+                depth--;
+                pos = close + 5;
+            }
+        }
+
+        int end = html.indexOf('>', pos);
+        if (end < 0) {
+            return false;
+        }
+        match[0] = start;
+        match[1] = end + 1;
+        return true;
+    }
+
+    /**
+     * Returns the position of the given start or end tag prefix that is not part of a longer tag name.
+     */
+    private static int indexOfSvgTag(String html, String prefix, int from) {
+        int pos = indexOfIgnoreCase(html, prefix, from);
+        while (pos >= 0) {
+            int next = pos + prefix.length();
+            if (next < html.length() && (isSpace(html.charAt(next)) || html.charAt(next) == '>' || html.charAt(next) == '/')) {
+                return pos;
+            }
+            pos = indexOfIgnoreCase(html, prefix, next);
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces the values of all <code>on*</code> event attributes quoted with the given quote
+     * character by placeholders. Backslash escaped quotes are kept inside the value.
+     */
+    private String preserveEvents(String html, char quote, List<String> eventBlocks) {
+        int length = html.length();
+        int index = eventBlocks.size();
+        int last = 0;
+        int pos = 0;
+        StringBuilder sb = null;
+
+        while (pos < length - 3) {
+            if (!isSpace(html.charAt(pos)) || lowerCase(html.charAt(pos + 1)) != 'o' || lowerCase(html.charAt(pos + 2)) != 'n') {
+                pos++;
+                continue;
+            }
+
+            //event name, equal sign and opening quote
+            int p = pos + 3;
+            while (p < length && isAsciiLetter(html.charAt(p))) {
+                p++;
+            }
+            if (p == pos + 3) {
+                pos++;
+                continue;
+            }
+            p = skipSpaces(html, p);
+            if (p >= length || html.charAt(p) != '=') {
+                pos++;
+                continue;
+            }
+            p = skipSpaces(html, p + 1);
+            if (p >= length || html.charAt(p) != quote) {
+                pos++;
+                continue;
+            }
+
+            //value up to the closing quote on the same line
+            int valueStart = p + 1;
+            int valueEnd = -1;
+            p = valueStart;
+            while (p < length) {
+                char c = html.charAt(p);
+                if (c == quote) {
+                    valueEnd = p;
+                    break;
+                } else if (c == '\\' && p + 1 < length && !isLineTerminator(html.charAt(p + 1))) {
+                    p += 2;
+                } else if (c == '\\' || c == '\r' || c == '\n') {
+                    break;
+                } else {
+                    p++;
+                }
+            }
+            if (valueEnd < 0) {
+                pos++;
+                continue;
+            }
+
+            if (hasContent(html, valueStart, valueEnd)) {
+                if (sb == null) {
+                    sb = CompressionScratch.builder(length);
+                }
+                eventBlocks.add(html.substring(valueStart, valueEnd));
+                Replacements.appendPlaceholder(sb.append(html, last, valueStart), tempEventBlock, index++);
+                last = valueEnd;
+            }
+            pos = valueEnd + 1;
+        }
+
+        if (sb == null) {
+            return html;
+        }
+        return sb.append(html, last, length).toString();
+    }
+
+    /**
+     * Replaces the quoted values of all <code>style</code> attributes by placeholders.
+     */
+    private String preserveStyleAttributes(String html, List<String> styleAttributeBlocks) {
+        TagAttributeBuffer attributes = CompressionScratch.attributes();
+        StringBuilder sb = CompressionScratch.builder(html.length());
+        int index = 0;
+        int last = 0;
+        int pos = html.indexOf('<');
+
+        while (pos >= 0 && pos < html.length() - 1) {
+            if (!isTagNameStart(html.charAt(pos + 1))) {
+                pos = html.indexOf('<', pos + 1);
+                continue;
+            }
+
+            int end = parseStartTag(html, pos, attributes);
+            if (end < 0) {
+                break;
+            }
+
+            for (int i = 0; i < attributes.size(); i++) {
+                char quote = attributes.getQuote(i);
+                if ((quote == '"' || quote == '\'') && attributes.isName(i, "style")
+                    && hasContent(html, attributes.getValueStart(i), attributes.getValueEnd(i))) {
+                    styleAttributeBlocks.add(html.substring(attributes.getValueStart(i), attributes.getValueEnd(i)));
+                    Replacements.appendPlaceholder(sb.append(html, last, attributes.getValueStart(i)), tempStyleAttributeBlock, index++);
+                    last = attributes.getValueEnd(i);
+                }
+            }
+            pos = html.indexOf('<', end);
+        }
+
+        return sb.append(html, last, html.length()).toString();
+    }
+
+    /**
+     * Replaces every run of blanks that contains line breaks by a placeholder that keeps the last line break.
+     */
+    private String preserveLineBreakBlocks(String html, List<String> lineBreakBlocks) {
+        int length = html.length();
+        StringBuilder sb = CompressionScratch.builder(length);
+        int index = 0;
+        int last = 0;
+        int pos = 0;
+
+        while (pos < length) {
+            char c = html.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                pos++;
+                continue;
+            }
+
+            int p = skipBlanks(html, pos);
+            int breakStart = -1;
+            int breakEnd = -1;
+            int breakLength;
+            while ((breakLength = lineBreakLength(html, p)) > 0) {
+                breakStart = p;
+                breakEnd = p + breakLength;
+                p = skipBlanks(html, breakEnd);
+            }
+
+            if (breakStart < 0) {
+                pos = p + 1;
+                continue;
+            }
+
+            lineBreakBlocks.add(html.substring(breakStart, breakEnd));
+            Replacements.appendPlaceholder(sb.append(html, last, pos), tempLineBreakBlock, index++);
+            last = p;
+            pos = p;
+        }
+
+        return sb.append(html, last, length).toString();
+    }
+
+    private static int lineBreakLength(String html, int pos) {
+        if (pos < html.length() && html.charAt(pos) == '\n') {
+            return 1;
+        }
+        if (html.startsWith("\r\n", pos)) {
+            return 2;
+        }
+        return 0;
+    }
+
+    private static int skipBlanks(String html, int pos) {
+        while (pos < html.length() && (html.charAt(pos) == ' ' || html.charAt(pos) == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipSpaces(String html, int pos) {
+        while (pos < html.length() && isSpace(html.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns <code>true</code> for the whitespace characters matched by <code>\s</code>.
+     */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static char lowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Returns <code>true</code> if the given region contains anything but whitespace.
+     */
+    private static boolean hasContent(String html, int start, int end) {
+        for (int p = start; p < end; p++) {
+            if (html.charAt(p) > ' ') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the given lower case string, ignoring the case of ASCII letters.
+     */
+    private static int indexOfIgnoreCase(String html, String lowerCase, int from) {
+        int max = html.length() - lowerCase.length();
+        char first = lowerCase.charAt(0);
+        for (int pos = from; pos <= max; pos++) {
+            if (lowerCase(html.charAt(pos)) == first && regionEqualsIgnoreCase(html, pos, lowerCase)) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEqualsIgnoreCase(String html, int pos, String lowerCase) {
+        for (int i = 1; i < lowerCase.length(); i++) {
+            if (lowerCase(html.charAt(pos + i)) != lowerCase.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return <code>true</code> if the given source has preserved blocks.
+     *
+     * @param source
+     * @return
+     */
+    protected Boolean hasPreservedUserBlocks(String source) {
+        //put user blocks back
+        if (preservePatterns != null) {
+            Matcher matcher = tempUserBlockPattern.matcher(source);
+            return matcher.find();
+        }
+
+        return false;
+    }
+
+    protected String returnBlocks(String html, List<String> preBlocks, List<String> taBlocks, List<String> scriptBlocks, List<String> styleBlocks, List<String> svgBlocks, List<String> styleAttributeBlocks, List<String> eventBlocks, List<String> condCommentBlocks, List<String> skipBlocks, List<String> lineBreakBlocks, List<List<String>> userBlocks) {
+
+        //put SVG blocks back first, they contain other blocks
+        html = Replacements.returnBlocks(CompressionScratch.matcher(tempSvgPattern, html), html, svgBlocks);
+
+        //put line breaks back
+        if (preserveLineBreaks) {
+            html = Replacements.returnBlocks(CompressionScratch.matcher(tempLineBreakPattern, html), html, lineBreakBlocks);
+        }
+
+        //put TEXTAREA blocks back
+        html = Replacements.returnBlocks(CompressionScratch.matcher(tempTextAreaPattern, html), html, taBlocks);
+
+        //put style attributes blocks back
+        html = Replacements.returnBlocks(CompressionScratch.matcher(tempStyleAttributePattern, html), html, styleAttributeBlocks);
+
+        //put STYLE blocks back
+        html = Replacements.returnBlocks(CompressionScratch.matcher(tempStylePattern, html), html, styleBlocks);
+
+        //put SCRIPT blocks back
+        html = Replacements.returnBlocks(CompressionScratch.matcher(tempScriptPattern, html), html, scriptBlocks);
+
+        //put PRE blocks back
+        html = Replacements.returnBlocks(CompressionScratch.matcher(tempPrePattern, html), html, preBlocks);
+
+        //put event blocks back
+        html = Replacements.returnBlocks(CompressionScratch.matcher(tempEventPattern, html), html, eventBlocks);
+
+        //put conditional comments back
+        html = Replacements.returnBlocks(CompressionScratch.matcher(tempCondCommentPattern, html), html, condCommentBlocks);
+
+        //put skip blocks back
+        html = Replacements.returnBlocks(CompressionScratch.matcher(tempSkipPattern, html), html, skipBlocks);
+
+        //put user blocks back
+        if (preservePatterns != null) {
+            for (int p = Math.min(preservePatterns.size(), userBlocks.size()) - 1; p >= 0; p--) {
+                Pattern tempUserPattern = Pattern.compile("%%%~COMPRESS~USER" + p + "~(\\d+?)~%%%");
+                html = Replacements.returnBlocks(tempUserPattern.matcher(html), html, userBlocks.get(p));
+            }
+        }
+
+        return html;
+    }
+
+    protected String processHtml(String html) {
+        Plan plan = getPlan();
+
+        //whole document stages
+        for (Stage stage : plan.documentStages) {
+            html = stage.process(this, plan, html);
+        }
+
+        //tag stages
+        for (Stage stage : plan.tagStages) {
+            html = stage.process(this, plan, html);
+        }
+
+        //whole document stages on the rewritten tags
+        for (Stage stage : plan.finalStages) {
+            html = stage.process(this, plan, html);
+        }
+
+        return html.trim();
+    }
+
+    /**
+     * Processes pure HTML like {@link #processHtml(String)} while tags are rewritten
+     * in parallel chunks.
+     */
+    protected String processHtml(String html, ExecutorService executor, int chunkSize) {
+        final Plan plan = getPlan();
+
+        //whole document stages
+        for (Stage stage : plan.documentStages) {
+            html = stage.process(this, plan, html);
+        }
+
+        int[] chunks = findChunks(html, chunkSize);
+        if (chunks.length == 2) {
+            for (Stage stage : plan.tagStages) {
+                html = stage.process(this, plan, html);
+            }
+        } else {
+            html = new ParallelChunks() {
+                @Override
+                String process(String chunk) {
+                    //tag stages
+                    for (Stage stage : plan.tagStages) {
+                        chunk = stage.process(HtmlCompressor.this, plan, chunk);
+                    }
+                    return chunk;
+                }
+            }.run(html, chunks, true, executor);
+        }
+
+        //whole document stages on the rewritten tags
+        for (Stage stage : plan.finalStages) {
+            html = stage.process(this, plan, html);
+        }
+
+        return html.trim();
+    }
+
+    /**
+     * Splits the source into chunks of at least the given length whose tags can be rewritten
+     * independently. Tags are found the same way {@link #rewriteTags(String)} does, every chunk
+     * ends right after a tag and the next one starts with the following tag. Spaces between
+     * these tags would be removed together with surrounding spaces, so they are only allowed
+     * if surrounding spaces are kept.
+     *
+     * @return <code>start, end</code> pairs of the chunks
+     */
+    private int[] findChunks(String html, int chunkSize) {
+        List<Integer> chunks = new ArrayList<Integer>();
+        TagAttributeBuffer attributes = CompressionScratch.attributes();
+        int length = html.length();
+        int start = 0;
+        int pos = html.indexOf('<');
+
+        while (pos >= 0 && pos < length - 1) {
+            char next = html.charAt(pos + 1);
+            int end;
+
+            if (isTagNameStart(next)) {
+                end = parseStartTag(html, pos, attributes);
+            } else if (html.startsWith("<!--", pos)) {
+                end = html.indexOf("-->", pos + 4);
+                end = end < 0 ? end : end + 3;
+            } else if (html.startsWith("<![CDATA[", pos)) {
+                end = html.indexOf("]]>", pos + 9);
+                end = end < 0 ? end : end + 3;
+            } else if (next == '/' || next == '!' || next == '?') {
+                end = html.indexOf('>', pos + 2);
+                end = end < 0 ? end : end + 1;
+            } else {
+                //not a tag
+                pos = html.indexOf('<', pos + 1);
+                continue;
+            }
+
+            if (end < 0) {
+                break;
+            }
+            pos = html.indexOf('<', end);
+
+            if (pos > 0 && pos - start >= chunkSize
+                && (pos == end || removeSurroundingSpaces == null || (!isSpace(html.charAt(end)) && !isSpace(html.charAt(pos - 1))))) {
+                chunks.add(start);
+                chunks.add(pos);
+                start = pos;
+            }
+        }
+
+        chunks.add(start);
+        chunks.add(length);
+        return ParallelChunks.toArray(chunks);
+    }
+
+    protected String removeSurroundingSpaces(String html) {
+        //remove spaces around provided tags
+        if (removeSurroundingSpaces == null) {
+            return html;
+        }
+
+        Set<String> tags = getRemoveSurroundingSpacesTags();
+        int length = html.length();
+        StringBuilder sb = CompressionScratch.builder(length);
+        int last = 0;
+        int pos = html.indexOf('<');
+
+        while (pos >= 0 && pos < length - 1) {
+            int end = -1;
+            if (tags == null) {
+                //any tag
+                if (html.charAt(pos + 1) != '>') {
+                    end = html.indexOf('>', pos + 2);
+                    if (end < 0) {
+                        break;
+                    }
+                }
+            } else {
+                int nameStart = html.charAt(pos + 1) == '/' ? pos + 2 : pos + 1;
+                int nameEnd = nameStart;
+                while (nameEnd < length && !isTagNameBoundary(html.charAt(nameEnd))) {
+                    nameEnd++;
+                }
+                if (nameEnd < length && html.charAt(nameEnd) != '<' && nameEnd > nameStart
+                    && tags.contains(html.substring(nameStart, nameEnd).toLowerCase())) {
+                    end = html.indexOf('>', nameEnd);
+                    if (end < 0) {
+                        break;
+                    }
+                }
             }
-        }
-        matcher.appendTail(sb);
-        html = sb.toString();
 
-        //preserve style attribute
-        matcher = styleAttrPattern.matcher(html);
-        index = 0;
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            if (null != matcher.group(6) && matcher.group(6).trim().length() > 0) {
-                styleAttributeBlocks.add(matcher.group(6));
-                matcher.appendReplacement(sb, "$1$2$5" + MessageFormat.format(tempStyleAttributeBlock, index++) + "$5$10");
-            } else if (null != matcher.group(9) && matcher.group(9).trim().length() > 0) {
-                styleAttributeBlocks.add(matcher.group(9));
-                matcher.appendReplacement(sb, "$1$2$8" + MessageFormat.format(tempStyleAttributeBlock, index++) + "$8$10");
+            if (end < 0) {
+                pos = html.indexOf('<', pos + 1);
+                continue;
             }
-        }
-        matcher.appendTail(sb);
-        html = sb.toString();
 
-        //preserve TEXTAREA tags
-        matcher = taPattern.matcher(html);
-        index = 0;
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            if (matcher.group(2).trim().length() > 0) {
-                taBlocks.add(matcher.group(2));
-                matcher.appendReplacement(sb, "$1" + MessageFormat.format(tempTextAreaBlock, index++) + "$3");
+            int spaceStart = pos;
+            while (spaceStart > last && isSpace(html.charAt(spaceStart - 1))) {
+                spaceStart--;
             }
+            sb.append(html, last, spaceStart).append(html, pos, end + 1);
+            last = skipSpaces(html, end + 1);
+            pos = html.indexOf('<', last);
         }
-        matcher.appendTail(sb);
-        html = sb.toString();
 
-        //preserve line breaks
-        if (preserveLineBreaks) {
-            matcher = lineBreakPattern.matcher(html);
-            index = 0;
-            sb = new StringBuffer();
-            while (matcher.find()) {
-                lineBreakBlocks.add(matcher.group(1));
-                matcher.appendReplacement(sb, MessageFormat.format(tempLineBreakBlock, index++));
-            }
-            matcher.appendTail(sb);
-            html = sb.toString();
-        }
+        return sb.append(html, last, length).toString();
+    }
 
-        return html;
+    private static boolean isTagNameBoundary(char c) {
+        return c == '>' || c == '/' || c == '<' || isSpace(c);
     }
 
     /**
-     * Return <code>true</code> if the given source has preserved blocks.
+     * Rewrites all tags of the given source in a single pass. Every start tag is parsed once
+     * into an attribute buffer and all enabled attribute options (script, style, link, form,
+     * input and boolean attributes, http and https protocols, quotes) are applied together
+     * while spaces around equal signs and before the tag end are removed.
      *
-     * @param source
-     * @return
+     * @param html HTML source
+     * @return HTML source with rewritten tags
      */
-    protected Boolean hasPreservedUserBlocks(String source) {
-        //put user blocks back
-        if (preservePatterns != null) {
-            Matcher matcher = tempUserBlockPattern.matcher(source);
-            return matcher.find();
+    protected String rewriteTags(String html) {
+        return rewriteTags(html, getPlan().rewrites);
+    }
+
+    /**
+     * Rewrites all tags of the given source applying only the given <code>REWRITE_*</code> options.
+     */
+    private String rewriteTags(String html, int rewrites) {
+        int length = html.length();
+        int pos = html.indexOf('<');
+        if (pos < 0) {
+            return html;
         }
 
-        return false;
-    }
+        TagAttributeBuffer attributes = CompressionScratch.attributes();
+        StringBuilder sb = CompressionScratch.builder(length);
+        int last = 0;
 
-    protected String returnBlocks(String html, List<String> preBlocks, List<String> taBlocks, List<String> scriptBlocks, List<String> styleBlocks, List<String> styleAttributeBlocks, List<String> eventBlocks, List<String> condCommentBlocks, List<String> skipBlocks, List<String> lineBreakBlocks, List<List<String>> userBlocks) {
+        while (pos >= 0 && pos < length - 1) {
+            char next = html.charAt(pos + 1);
+            int end;
 
-        //put line breaks back
-        if (preserveLineBreaks) {
-            Matcher matcher = tempLineBreakPattern.matcher(html);
-            StringBuffer sb = new StringBuffer();
-            while (matcher.find()) {
-                int i = Integer.parseInt(matcher.group(1));
-                if (lineBreakBlocks.size() > i) {
-                    matcher.appendReplacement(sb, lineBreakBlocks.get(i));
+            if (isTagNameStart(next)) {
+                //start tag
+                end = parseStartTag(html, pos, attributes);
+                if (end < 0) {
+                    break;
+                }
+                sb.append(html, last, pos);
+                rewriteAttributes(attributes, rewrites);
+                writeStartTag(html, attributes, rewrites, sb);
+            } else if (html.startsWith("<!--", pos)) {
+                //keep comments as they are
+                end = html.indexOf("-->", pos + 4);
+                if (end < 0) {
+                    break;
+                }
+                end += 3;
+                sb.append(html, last, end);
+            } else if (html.startsWith("<![CDATA[", pos)) {
+                //keep cdata as it is
+                end = html.indexOf("]]>", pos + 9);
+                if (end < 0) {
+                    break;
+                }
+                end += 3;
+                sb.append(html, last, end);
+            } else if (next == '/' || next == '!' || next == '?') {
+                //end tags and declarations, remove ending spaces
+                end = html.indexOf('>', pos + 2);
+                if (end < 0) {
+                    break;
                 }
+                int contentEnd = end;
+                while (contentEnd > pos + 2 && Character.isWhitespace(html.charAt(contentEnd - 1))) {
+                    contentEnd--;
+                }
+                sb.append(html, last, contentEnd).append('>');
+                end++;
+            } else {
+                //not a tag
+                end = pos + 1;
+                sb.append(html, last, end);
             }
-            matcher.appendTail(sb);
-            html = sb.toString();
-        }
 
-        //put TEXTAREA blocks back
-        Matcher matcher = tempTextAreaPattern.matcher(html);
-        StringBuffer sb = new StringBuffer();
-        while (matcher.find()) {
-            int i = Integer.parseInt(matcher.group(1));
-            if (taBlocks.size() > i) {
-                matcher.appendReplacement(sb, Matcher.quoteReplacement(taBlocks.get(i)));
-            }
+            last = end;
+            pos = html.indexOf('<', end);
         }
-        matcher.appendTail(sb);
-        html = sb.toString();
+        sb.append(html, last, length);
 
-        //put style attributes blocks back
-        matcher = tempStyleAttributePattern.matcher(html);
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            int i = Integer.parseInt(matcher.group(1));
-            if (styleAttributeBlocks.size() > i) {
-                matcher.appendReplacement(sb, Matcher.quoteReplacement(styleAttributeBlocks.get(i)));
+        return sb.toString();
+    }
+
+    private static boolean isTagNameStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private boolean isTagNameEnd(String html, int pos) {
+        char c = html.charAt(pos);
+        return c == '>' || Character.isWhitespace(c) || (c == '/' && pos + 1 < html.length() && html.charAt(pos + 1) == '>')
+            || (preserveLineBreaks && html.startsWith(tempLineBreakPrefix, pos));
+    }
+
+    /**
+     * Skips whitespace characters and preserved line breaks inside a tag.
+     */
+    private int skipTagSpaces(String html, int pos) {
+        int length = html.length();
+        while (pos < length) {
+            if (Character.isWhitespace(html.charAt(pos))) {
+                pos++;
+            } else if (preserveLineBreaks && html.startsWith(tempLineBreakPrefix, pos)) {
+                int end = html.indexOf("~%%%", pos + tempLineBreakPrefix.length());
+                if (end < 0) {
+                    break;
+                }
+                pos = end + 4;
+            } else {
+                break;
             }
         }
-        matcher.appendTail(sb);
-        html = sb.toString();
+        return pos;
+    }
 
-        //put STYLE blocks back
-        matcher = tempStylePattern.matcher(html);
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            int i = Integer.parseInt(matcher.group(1));
-            if (styleBlocks.size() > i) {
-                matcher.appendReplacement(sb, Matcher.quoteReplacement(styleBlocks.get(i)));
-            }
+    /**
+     * Parses the start tag beginning at the given position into the attribute buffer.
+     *
+     * @return position after the tag or <code>-1</code> if the tag is not closed
+     */
+    private int parseStartTag(String html, int pos, TagAttributeBuffer attributes) {
+        int length = html.length();
+
+        //tag name
+        int p = pos + 1;
+        while (p < length && !isTagNameEnd(html, p)) {
+            p++;
         }
-        matcher.appendTail(sb);
-        html = sb.toString();
+        attributes.reset(html, pos + 1, p);
 
-        //put SCRIPT blocks back
-        matcher = tempScriptPattern.matcher(html);
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            int i = Integer.parseInt(matcher.group(1));
-            if (scriptBlocks.size() > i) {
-                matcher.appendReplacement(sb, Matcher.quoteReplacement(scriptBlocks.get(i)));
+        while (p < length) {
+            int spaceStart = p;
+            p = skipTagSpaces(html, p);
+            if (p >= length) {
+                return -1;
             }
-        }
-        matcher.appendTail(sb);
-        html = sb.toString();
 
-        //put PRE blocks back
-        matcher = tempPrePattern.matcher(html);
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            int i = Integer.parseInt(matcher.group(1));
-            if (preBlocks.size() > i) {
-                matcher.appendReplacement(sb, Matcher.quoteReplacement(preBlocks.get(i)));
+            char c = html.charAt(p);
+            if (c == '>') {
+                attributes.setEndSpace(spaceStart, p);
+                return p + 1;
+            }
+            if (c == '/' && p + 1 < length && html.charAt(p + 1) == '>') {
+                attributes.setEndSpace(spaceStart, p);
+                attributes.setSelfClosing(true);
+                return p + 2;
             }
-        }
-        matcher.appendTail(sb);
-        html = sb.toString();
 
-        //put event blocks back
-        matcher = tempEventPattern.matcher(html);
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            int i = Integer.parseInt(matcher.group(1));
-            if (eventBlocks.size() > i) {
-                matcher.appendReplacement(sb, Matcher.quoteReplacement(eventBlocks.get(i)));
+            //attribute name
+            int nameStart = p;
+            p++;
+            while (p < length && html.charAt(p) != '=' && !isTagNameEnd(html, p)) {
+                p++;
             }
-        }
-        matcher.appendTail(sb);
-        html = sb.toString();
+            int nameEnd = p;
 
-        //put conditional comments back
-        matcher = tempCondCommentPattern.matcher(html);
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            int i = Integer.parseInt(matcher.group(1));
-            if (condCommentBlocks.size() > i) {
-                matcher.appendReplacement(sb, Matcher.quoteReplacement(condCommentBlocks.get(i)));
+            //look for a value
+            int valueSearch = p;
+            while (valueSearch < length && Character.isWhitespace(html.charAt(valueSearch))) {
+                valueSearch++;
+            }
+            if (valueSearch >= length || html.charAt(valueSearch) != '=') {
+                attributes.add(spaceStart, nameStart, nameEnd, nameEnd, nameEnd, TagAttributeBuffer.NO_VALUE);
+                continue;
             }
-        }
-        matcher.appendTail(sb);
-        html = sb.toString();
 
-        //put skip blocks back
-        matcher = tempSkipPattern.matcher(html);
-        sb = new StringBuffer();
-        while (matcher.find()) {
-            int i = Integer.parseInt(matcher.group(1));
-            if (skipBlocks.size() > i) {
-                matcher.appendReplacement(sb, Matcher.quoteReplacement(skipBlocks.get(i)));
+            p = valueSearch + 1;
+            while (p < length && Character.isWhitespace(html.charAt(p))) {
+                p++;
+            }
+            if (p >= length) {
+                return -1;
             }
-        }
-        matcher.appendTail(sb);
-        html = sb.toString();
 
-        //put user blocks back
-        if (preservePatterns != null) {
-            for (int p = preservePatterns.size() - 1; p >= 0; p--) {
-                Pattern tempUserPattern = Pattern.compile("%%%~COMPRESS~USER" + p + "~(\\d+?)~%%%");
-                matcher = tempUserPattern.matcher(html);
-                sb = new StringBuffer();
-                while (matcher.find()) {
-                    int i = Integer.parseInt(matcher.group(1));
-                    if (userBlocks.size() > p && userBlocks.get(p).size() > i) {
-                        matcher.appendReplacement(sb, Matcher.quoteReplacement(userBlocks.get(p).get(i)));
-                    }
+            c = html.charAt(p);
+            if (c == '"' || c == '\'') {
+                int valueEnd = html.indexOf(c, p + 1);
+                if (valueEnd < 0) {
+                    return -1;
+                }
+                attributes.add(spaceStart, nameStart, nameEnd, p + 1, valueEnd, c);
+                p = valueEnd + 1;
+            } else {
+                int valueStart = p;
+                while (p < length && html.charAt(p) != '>' && !Character.isWhitespace(html.charAt(p))
+                    && !(preserveLineBreaks && html.startsWith(tempLineBreakPrefix, p))) {
+                    p++;
                 }
-                matcher.appendTail(sb);
-                html = sb.toString();
+                attributes.add(spaceStart, nameStart, nameEnd, valueStart, p, (char) 0);
             }
         }
 
-        return html;
+        return -1;
     }
 
-    protected String processHtml(String html) {
-
-        //remove comments
-        html = removeComments(html);
-
-        //simplify doctype
-        html = simpleDoctype(html);
-
-        //remove script attributes
-        html = removeScriptAttributes(html);
-
-        //remove style attributes
-        html = removeStyleAttributes(html);
-
-        //remove link attributes
-        html = removeLinkAttributes(html);
-
-        //remove form attributes
-        html = removeFormAttributes(html);
+    /**
+     * Applies all enabled attribute options to the parsed start tag.
+     */
+    private void rewriteAttributes(TagAttributeBuffer attributes, int rewrites) {
+        int size = attributes.size();
+        if (size == 0) {
+            return;
+        }
 
-        //remove input attributes
-        html = removeInputAttributes(html);
+        if ((rewrites & REWRITE_SCRIPT_ATTRIBUTES) != 0 && attributes.isTag("script")) {
+            //remove type and language from script tags
+            for (int i = 0; i < size; i++) {
+                if ((attributes.isName(i, "type") && (attributes.isValue(i, "text/javascript") || attributes.isValue(i, "application/javascript")))
+                    || (attributes.isName(i, "language") && attributes.isValue(i, "javascript"))) {
+                    attributes.setAction(i, TagAttributeBuffer.REMOVE);
+                }
+            }
+        } else if ((rewrites & REWRITE_STYLE_ATTRIBUTES) != 0 && attributes.isTag("style")) {
+            //remove type from style tags
+            removeAttribute(attributes, "type", "text/style");
+        } else if ((rewrites & REWRITE_LINK_ATTRIBUTES) != 0 && attributes.isTag("link")) {
+            //remove type from link tags with rel=stylesheet
+            int rel = attributes.indexOf("rel");
+            if (rel >= 0 && attributes.isRelValue(rel, "stylesheet")) {
+                removeAttribute(attributes, "type", "text/css");
+                removeAttribute(attributes, "type", "text/plain");
+            }
+        } else if ((rewrites & REWRITE_FORM_ATTRIBUTES) != 0 && attributes.isTag("form")) {
+            //remove method from form tags
+            removeAttribute(attributes, "method", "get");
+        } else if ((rewrites & REWRITE_INPUT_ATTRIBUTES) != 0 && attributes.isTag("input")) {
+            //remove type from input tags
+            removeAttribute(attributes, "type", "text");
+        }
 
         //simplify boolean attributes
-        html = simpleBooleanAttributes(html);
-
-        //remove http from attributes
-        html = removeHttpProtocol(html);
-
-        //remove https from attributes
-        html = removeHttpsProtocol(html);
-
-        //remove inter-tag spaces
-        html = removeIntertagSpaces(html);
-
-        //remove multi whitespace characters
-        html = removeMultiSpaces(html);
-
-        //remove spaces around equals sign and ending spaces
-        html = removeSpacesInsideTags(html);
-
-        //remove quotes from tag attributes
-        html = removeQuotesInsideTags(html);
+        if ((rewrites & REWRITE_BOOLEAN_ATTRIBUTES) != 0) {
+            for (int i = 0; i < size; i++) {
+                if (attributes.hasValue(i) && attributes.isWordValue(i)
+                    && (attributes.isName(i, "checked") || attributes.isName(i, "selected") || attributes.isName(i, "disabled") || attributes.isName(i, "readonly"))) {
+                    attributes.setAction(i, TagAttributeBuffer.DROP_VALUE);
+                }
+            }
+        }
 
-        //remove surrounding spaces
-        html = removeSurroundingSpaces(html);
+        //remove http and https protocol from tag attributes if rel!=external
+        if ((rewrites & (REWRITE_HTTP_PROTOCOL | REWRITE_HTTPS_PROTOCOL)) != 0) {
+            int rel = attributes.indexOf("rel");
+            if (rel < 0 || !attributes.isRelValue(rel, "external")) {
+                for (int i = 0; i < size; i++) {
+                    if (attributes.isName(i, "href") || attributes.isName(i, "src") || attributes.isName(i, "cite") || attributes.isName(i, "action")) {
+                        if ((rewrites & REWRITE_HTTP_PROTOCOL) != 0 && attributes.valueStartsWith(i, "http://")) {
+                            attributes.setValueSkip(i, 5);
+                        } else if ((rewrites & REWRITE_HTTPS_PROTOCOL) != 0 && attributes.valueStartsWith(i, "https://")) {
+                            attributes.setValueSkip(i, 6);
+                        }
+                    }
+                }
+            }
+        }
 
-        return html.trim();
+        //sort attributes unless names contain preserved blocks or template markup
+        if ((rewrites & REWRITE_SORT_ATTRIBUTES) != 0 && size > 1) {
+            for (int i = 0; i < size; i++) {
+                if (attributes.nameContainsAny(i, TEMPLATE_CHARS)) {
+                    return;
+                }
+            }
+            attributes.sortByName();
+        }
     }
 
-    protected String removeSurroundingSpaces(String html) {
-        //remove spaces around provided tags
-        Pattern pattern = getRemoveSurroundingSpacesPattern();
-        if (pattern != null) {
-            Matcher matcher = pattern.matcher(html);
-            StringBuffer sb = new StringBuffer();
-            while (matcher.find()) {
-                matcher.appendReplacement(sb, "$1");
+    private void removeAttribute(TagAttributeBuffer attributes, String name, String value) {
+        for (int i = 0; i < attributes.size(); i++) {
+            if (attributes.isName(i, name) && attributes.isValue(i, value)) {
+                attributes.setAction(i, TagAttributeBuffer.REMOVE);
             }
-            matcher.appendTail(sb);
-            html = sb.toString();
         }
-        return html;
     }
 
-    protected String removeQuotesInsideTags(String html) {
-        //remove quotes from tag attributes
-        if (removeQuotes) {
-            Matcher matcher = tagQuotePattern.matcher(html);
-            StringBuffer sb = new StringBuffer();
-            while (matcher.find()) {
-                //if quoted attribute is followed by "/" add extra space
-                if (matcher.group(3).trim().length() == 0) {
-                    matcher.appendReplacement(sb, "=$2");
+    /**
+     * Writes the parsed start tag without spaces around equal signs and before the tag end.
+     */
+    private void writeStartTag(String html, TagAttributeBuffer attributes, int rewrites, StringBuilder sb) {
+        sb.append('<').append(html, attributes.getNameStart(), attributes.getNameEnd());
+
+        boolean lastUnquoted = false;
+        boolean lastQuoted = false;
+        int previous = -1;
+        for (int n = 0; n < attributes.size(); n++) {
+            int i = attributes.getOrder(n);
+            int action = attributes.getAction(i);
+            if (action == TagAttributeBuffer.REMOVE) {
+                continue;
+            }
+
+            //attributes without space before need one if they follow a different attribute than in the source
+            if (attributes.getSpaceStart(i) == attributes.getNameStart(i) && previous != i - 1 && !lastQuoted) {
+                sb.append(' ');
+            }
+            sb.append(html, attributes.getSpaceStart(i), attributes.getNameEnd(i));
+            lastUnquoted = false;
+            lastQuoted = false;
+            previous = i;
+
+            if (action != TagAttributeBuffer.DROP_VALUE && attributes.hasValue(i)) {
+                int valueStart = attributes.getValueStart(i) + attributes.getValueSkip(i);
+                char quote = attributes.getQuote(i);
+
+                sb.append('=');
+                if (quote == 0 || ((rewrites & REWRITE_QUOTES) != 0 && attributes.isSafeUnquotedValue(i))) {
+                    sb.append(html, valueStart, attributes.getValueEnd(i));
+                    lastUnquoted = true;
+                } else if ((rewrites & REWRITE_SORT_CLASS_NAMES) != 0 && attributes.isName(i, "class") && attributes.valueContains(i, ' ')) {
+                    sb.append(quote);
+                    appendClassNames(html, valueStart, attributes.getValueEnd(i), sb);
+                    sb.append(quote);
+                    lastQuoted = true;
                 } else {
-                    matcher.appendReplacement(sb, "=$2 $3");
+                    sb.append(quote).append(html, valueStart, attributes.getValueEnd(i)).append(quote);
+                    lastQuoted = true;
                 }
             }
-            matcher.appendTail(sb);
-            html = sb.toString();
         }
-        return html;
-    }
 
-    protected String removeSpacesInsideTags(String html) {
-        //remove spaces around equals sign inside tags
-        html = tagPropertyPattern.matcher(html).replaceAll("$1=");
-
-        //remove ending spaces inside tags
-        //html = tagEndSpacePattern.matcher(html).replaceAll("$1$2");
-        Matcher matcher = tagEndSpacePattern.matcher(html);
-        StringBuffer sb = new StringBuffer();
-        while (matcher.find()) {
-            //keep space if attribute value is unquoted before trailing slash
-            if (matcher.group(2).startsWith("/") && tagLastUnquotedValuePattern.matcher(matcher.group(1)).find()) {
-                matcher.appendReplacement(sb, "$1 $2");
-            } else {
-                matcher.appendReplacement(sb, "$1$2");
+        //keep preserved line breaks before the tag end
+        if (preserveLineBreaks) {
+            int p = attributes.getEndSpaceStart();
+            while (p < attributes.getEndSpaceEnd()) {
+                if (html.startsWith(tempLineBreakPrefix, p)) {
+                    int end = html.indexOf("~%%%", p + tempLineBreakPrefix.length()) + 4;
+                    sb.append(html, p, end);
+                    p = end;
+                } else {
+                    p++;
+                }
             }
         }
-        matcher.appendTail(sb);
-        html = sb.toString();
 
-        return html;
+        if (attributes.isSelfClosing()) {
+            //keep space if attribute value is unquoted before trailing slash
+            sb.append(lastUnquoted ? " />" : "/>");
+        } else {
+            sb.append('>');
+        }
     }
 
-    protected String removeMultiSpaces(String html) {
-        //collapse multiple spaces
-        if (removeMultiSpaces) {
-            html = multispacePattern.matcher(html).replaceAll(" ");
+    /**
+     * Appends the sorted class names of a <code>class</code> attribute value separated by single spaces.
+     * Values with preserved blocks or template markup are appended as they are.
+     */
+    private static void appendClassNames(String html, int start, int end, StringBuilder sb) {
+        for (int p = start; p < end; p++) {
+            if (TEMPLATE_CHARS.indexOf(html.charAt(p)) >= 0) {
+                sb.append(html, start, end);
+                return;
+            }
         }
-        return html;
-    }
 
-    protected String removeIntertagSpaces(String html) {
-        //remove inter-tag spaces
-        if (removeIntertagSpaces) {
-            html = intertagPattern_TagTag.matcher(html).replaceAll("><");
-            html = intertagPattern_TagCustom.matcher(html).replaceAll(">%%%~");
-            html = intertagPattern_CustomTag.matcher(html).replaceAll("~%%%<");
-            html = intertagPattern_CustomCustom.matcher(html).replaceAll("~%%%%%%~");
+        List<String> names = new ArrayList<String>();
+        int p = start;
+        while (p < end) {
+            if (isSpace(html.charAt(p))) {
+                p++;
+            } else {
+                int nameStart = p;
+                while (p < end && !isSpace(html.charAt(p))) {
+                    p++;
+                }
+                names.add(html.substring(nameStart, p));
+            }
         }
-        return html;
-    }
 
-    protected String removeComments(String html) {
-        //remove comments
-        if (removeComments) {
-            html = commentPattern.matcher(html).replaceAll("");
+        Collections.sort(names);
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(names.get(i));
         }
-        return html;
     }
 
-    protected String simpleDoctype(String html) {
-        //simplify doctype
-        if (simpleDoctype) {
-            html = doctypePattern.matcher(html).replaceAll("<!DOCTYPE html>");
+    /**
+     * Removes quotes from tag attribute values that do not need them.
+     *
+     * @deprecated tags are rewritten in a single pass by {@link #rewriteTags(String)}, which no longer
+     * calls this method. Tags are rewritten with this option only and spaces inside them are removed.
+     */
+    @Deprecated
+    protected String removeQuotesInsideTags(String html) {
+        if (removeQuotes) {
+            html = rewriteTags(html, REWRITE_QUOTES);
         }
         return html;
     }
 
-    protected String removeScriptAttributes(String html) {
+    /**
+     * Removes spaces around equal signs and before the end of tags.
+     *
+     * @deprecated tags are rewritten in a single pass by {@link #rewriteTags(String)}, which no longer
+     * calls this method. Tags are rewritten without any other option.
+     */
+    @Deprecated
+    protected String removeSpacesInsideTags(String html) {
+        return rewriteTags(html, 0);
+    }
 
+    /**
+     * Removes default <code>type</code> and <code>language</code> attributes from script tags.
+     *
+     * @deprecated tags are rewritten in a single pass by {@link #rewriteTags(String)}, which no longer
+     * calls this method. Tags are rewritten with this option only and spaces inside them are removed.
+     */
+    @Deprecated
+    protected String removeScriptAttributes(String html) {
         if (removeScriptAttributes) {
-            //remove type from script tags
-            html = jsTypeAttrPattern.matcher(html).replaceAll("$1$3");
-
-            //remove language from script tags
-            html = jsLangAttrPattern.matcher(html).replaceAll("$1$3");
+            html = rewriteTags(html, REWRITE_SCRIPT_ATTRIBUTES);
         }
         return html;
     }
 
+    /**
+     * Removes the default <code>type</code> attribute from style tags.
+     *
+     * @deprecated tags are rewritten in a single pass by {@link #rewriteTags(String)}, which no longer
+     * calls this method. Tags are rewritten with this option only and spaces inside them are removed.
+     */
+    @Deprecated
     protected String removeStyleAttributes(String html) {
-        //remove type from style tags
         if (removeStyleAttributes) {
-            html = styleTypeAttrPattern.matcher(html).replaceAll("$1$3");
+            html = rewriteTags(html, REWRITE_STYLE_ATTRIBUTES);
         }
         return html;
     }
 
+    /**
+     * Removes the default <code>type</code> attribute from stylesheet link tags.
+     *
+     * @deprecated tags are rewritten in a single pass by {@link #rewriteTags(String)}, which no longer
+     * calls this method. Tags are rewritten with this option only and spaces inside them are removed.
+     */
+    @Deprecated
     protected String removeLinkAttributes(String html) {
-        //remove type from link tags with rel=stylesheet
         if (removeLinkAttributes) {
-            Matcher matcher = linkTypeAttrPattern.matcher(html);
-            StringBuffer sb = new StringBuffer();
-            while (matcher.find()) {
-                //if rel=stylesheet
-                if (linkRelAttrPattern.matcher(matcher.group(0)).matches()) {
-                    matcher.appendReplacement(sb, "$1$3");
-                } else {
-                    matcher.appendReplacement(sb, "$0");
-                }
-            }
-            matcher.appendTail(sb);
-            html = sb.toString();
+            html = rewriteTags(html, REWRITE_LINK_ATTRIBUTES);
         }
         return html;
     }
 
+    /**
+     * Removes the default <code>method</code> attribute from form tags.
+     *
+     * @deprecated tags are rewritten in a single pass by {@link #rewriteTags(String)}, which no longer
+     * calls this method. Tags are rewritten with this option only and spaces inside them are removed.
+     */
+    @Deprecated
     protected String removeFormAttributes(String html) {
-        //remove method from form tags
         if (removeFormAttributes) {
-            html = formMethodAttrPattern.matcher(html).replaceAll("$1$3");
+            html = rewriteTags(html, REWRITE_FORM_ATTRIBUTES);
         }
         return html;
     }
 
+    /**
+     * Removes the default <code>type</code> attribute from input tags.
+     *
+     * @deprecated tags are rewritten in a single pass by {@link #rewriteTags(String)}, which no longer
+     * calls this method. Tags are rewritten with this option only and spaces inside them are removed.
+     */
+    @Deprecated
     protected String removeInputAttributes(String html) {
-        //remove type from input tags
         if (removeInputAttributes) {
-            html = inputTypeAttrPattern.matcher(html).replaceAll("$1$3");
+            html = rewriteTags(html, REWRITE_INPUT_ATTRIBUTES);
         }
         return html;
     }
 
+    /**
+     * Removes values of boolean attributes.
+     *
+     * @deprecated tags are rewritten in a single pass by {@link #rewriteTags(String)}, which no longer
+     * calls this method. Tags are rewritten with this option only and spaces inside them are removed.
+     */
+    @Deprecated
     protected String simpleBooleanAttributes(String html) {
-        //simplify boolean attributes
         if (simpleBooleanAttributes) {
-            html = booleanAttrPattern.matcher(html).replaceAll("$1$2$4");
+            html = rewriteTags(html, REWRITE_BOOLEAN_ATTRIBUTES);
         }
         return html;
     }
 
+    /**
+     * Removes <code>http:</code> protocol from tag attributes unless <code>rel=external</code>.
+     *
+     * @deprecated tags are rewritten in a single pass by {@link #rewriteTags(String)}, which no longer
+     * calls this method. Tags are rewritten with this option only and spaces inside them are removed.
+     */
+    @Deprecated
     protected String removeHttpProtocol(String html) {
-        //remove http protocol from tag attributes
         if (removeHttpProtocol) {
-            Matcher matcher = httpProtocolPattern.matcher(html);
-            StringBuffer sb = new StringBuffer();
-            while (matcher.find()) {
-                //if rel!=external
-                if (!relExternalPattern.matcher(matcher.group(0)).matches()) {
-                    matcher.appendReplacement(sb, "$1$2");
-                } else {
-                    matcher.appendReplacement(sb, "$0");
-                }
-            }
-            matcher.appendTail(sb);
-            html = sb.toString();
+            html = rewriteTags(html, REWRITE_HTTP_PROTOCOL);
         }
         return html;
     }
 
+    /**
+     * Removes <code>https:</code> protocol from tag attributes unless <code>rel=external</code>.
+     *
+     * @deprecated tags are rewritten in a single pass by {@link #rewriteTags(String)}, which no longer
+     * calls this method. Tags are rewritten with this option only and spaces inside them are removed.
+     */
+    @Deprecated
     protected String removeHttpsProtocol(String html) {
-        //remove https protocol from tag attributes
         if (removeHttpsProtocol) {
-            Matcher matcher = httpsProtocolPattern.matcher(html);
-            StringBuffer sb = new StringBuffer();
-            while (matcher.find()) {
-                //if rel!=external
-                if (!relExternalPattern.matcher(matcher.group(0)).matches()) {
-                    matcher.appendReplacement(sb, "$1$2");
+            html = rewriteTags(html, REWRITE_HTTPS_PROTOCOL);
+        }
+        return html;
+    }
+
+    protected String removeOptionalTags(String html) {
+        //remove end and start tags that could be omitted
+        if (removeOptionalTags) {
+            html = new OptionalTagRemover().process(html);
+        }
+        return html;
+    }
+
+    protected String removeMultiSpaces(String html) {
+        //collapse multiple spaces
+        if (removeMultiSpaces) {
+            html = Replacements.replaceAll(CompressionScratch.matcher(multispacePattern, html), html, " ");
+        }
+        return html;
+    }
+
+    protected String removeIntertagSpaces(String html) {
+        //remove inter-tag spaces
+        if (removeIntertagSpaces) {
+            html = Replacements.replaceAll(CompressionScratch.matcher(intertagPattern_TagTag, html), html, "><");
+            html = Replacements.replaceAll(CompressionScratch.matcher(intertagPattern_TagCustom, html), html, ">%%%~");
+            html = Replacements.replaceAll(CompressionScratch.matcher(intertagPattern_CustomTag, html), html, "~%%%<");
+            html = Replacements.replaceAll(CompressionScratch.matcher(intertagPattern_CustomCustom, html), html, "~%%%%%%~");
+        }
+        return html;
+    }
+
+    protected String removeComments(String html) {
+        //remove comments
+        if (removeComments) {
+            int pos = html.indexOf("<!--");
+            if (pos < 0) {
+                return html;
+            }
+
+            StringBuilder sb = CompressionScratch.builder(html.length());
+            int last = 0;
+            while (pos >= 0) {
+                int end;
+                if (html.startsWith("-->", pos + 4)) {
+                    //empty comment
+                    end = pos + 7;
+                } else if (pos + 4 < html.length() && html.charAt(pos + 4) != '[') {
+                    //keep conditional comments, remove all others
+                    end = html.indexOf("-->", pos + 5);
+                    if (end < 0) {
+                        break;
+                    }
+                    end += 3;
                 } else {
-                    matcher.appendReplacement(sb, "$0");
+                    pos = html.indexOf("<!--", pos + 1);
+                    continue;
+                }
+
+                sb.append(html, last, pos);
+                last = end;
+                pos = html.indexOf("<!--", end);
+            }
+            html = last == 0 ? html : sb.append(html, last, html.length()).toString();
+        }
+        return html;
+    }
+
+    protected String simpleDoctype(String html) {
+        //simplify doctype
+        if (simpleDoctype) {
+            int pos = indexOfIgnoreCase(html, "<!doctype", 0);
+            if (pos < 0) {
+                return html;
+            }
+
+            StringBuilder sb = CompressionScratch.builder(html.length());
+            int last = 0;
+            while (pos >= 0) {
+                int end = html.indexOf('>', pos + 9);
+                if (end < 0) {
+                    break;
                 }
+                sb.append(html, last, pos).append("<!DOCTYPE html>");
+                last = end + 1;
+                pos = indexOfIgnoreCase(html, "<!doctype", last);
             }
-            matcher.appendTail(sb);
-            html = sb.toString();
+            html = last == 0 ? html : sb.append(html, last, html.length()).toString();
         }
         return html;
     }
 
-    protected void processPreservedBlocks(List<String> preBlocks, List<String> taBlocks, List<String> scriptBlocks, List<String> styleBlocks, List<String> styleAttributeBlocks, List<String> eventBlocks, List<String> condCommentBlocks, List<String> skipBlocks, List<String> lineBreakBlocks, List<List<String>> userBlocks) {
+    protected void processPreservedBlocks(List<String> preBlocks, List<String> taBlocks, List<String> scriptBlocks, List<String> styleBlocks, List<String> svgBlocks, List<String> styleAttributeBlocks, List<String> eventBlocks, List<String> condCommentBlocks, List<String> skipBlocks, List<String> lineBreakBlocks, List<List<String>> userBlocks) {
         processPreBlocks(preBlocks);
         processTextAreaBlocks(taBlocks);
         processScriptBlocks(scriptBlocks);
         processStyleBlocks(styleBlocks);
+        processSvgBlocks(svgBlocks);
         processStyleAttributeBlocks(styleAttributeBlocks);
         processEventBlocks(eventBlocks);
         processCondCommentBlocks(condCommentBlocks);
@@ -929,7 +2210,7 @@ public class HtmlCompressor implements Compressor {
 
         Matcher matcher = eventJsProtocolPattern.matcher(source);
         if (matcher.matches()) {
-            result = matcher.replaceFirst("$1");
+            result = matcher.group(1);
         }
 
         if (generateStatistics) {
@@ -982,10 +2263,26 @@ public class HtmlCompressor implements Compressor {
             }
         }
 
-        if (generateStatistics) {
-            for (String block : styleBlocks) {
-                statistics.getCompressedMetrics().setInlineStyleSize(statistics.getCompressedMetrics().getInlineStyleSize() + block.length());
-            }
+        if (generateStatistics) {
+            for (String block : styleBlocks) {
+                statistics.getCompressedMetrics().setInlineStyleSize(statistics.getCompressedMetrics().getInlineStyleSize() + block.length());
+            }
+        }
+    }
+
+    protected void processSvgBlocks(List<String> svgBlocks) {
+        if (svgBlocks.isEmpty()) {
+            return;
+        }
+
+        //compression might have been enabled after the plan was compiled
+        Compressor compressor = getPlan().svgCompressor;
+        if (compressor == null) {
+            compressor = createSvgCompressor();
+        }
+
+        for (int i = 0; i < svgBlocks.size(); i++) {
+            svgBlocks.set(i, compressBlock(StatisticsCollector.BLOCK_SVG, compressor, svgBlocks.get(i)));
         }
     }
 
@@ -1036,22 +2333,14 @@ public class HtmlCompressor implements Compressor {
         //Optimize the source if possible
         String result = source;
         if (compressJavaScriptWithPreservedBlocks || !hasPreservedUserBlocks(source)) {
-            if (javaScriptCompressor == null) {
-                YuiJavaScriptCompressor yuiJsCompressor = new YuiJavaScriptCompressor();
-                yuiJsCompressor.setNoMunge(yuiJsNoMunge);
-                yuiJsCompressor.setPreserveAllSemiColons(yuiJsPreserveAllSemiColons);
-                yuiJsCompressor.setDisableOptimizations(yuiJsDisableOptimizations);
-                yuiJsCompressor.setLineBreak(yuiJsLineBreak);
-
-                if (yuiErrorReporter != null) {
-                    yuiJsCompressor.setErrorReporter(yuiErrorReporter);
-                }
-
-                javaScriptCompressor = yuiJsCompressor;
+            //compression might have been enabled after the plan was compiled
+            Compressor compressor = getPlan().javaScriptCompressor;
+            if (compressor == null) {
+                compressor = createJavaScriptCompressor();
             }
 
             //Optimize the js
-            result = javaScriptCompressor.compress(source);
+            result = compressBlock(StatisticsCollector.BLOCK_SCRIPT, compressor, source);
         }
 
         //Rebuild the cdata
@@ -1072,15 +2361,14 @@ public class HtmlCompressor implements Compressor {
 
         String result = source;
         if (compressCssWithPreservedBlocks || !hasPreservedUserBlocks(source)) {
-            if (cssCompressor == null) {
-                YuiCssCompressor yuiCssCompressor = new YuiCssCompressor();
-                yuiCssCompressor.setLineBreak(yuiCssLineBreak);
-
-                cssCompressor = yuiCssCompressor;
+            //compression might have been enabled after the plan was compiled
+            Compressor compressor = getPlan().cssCompressor;
+            if (compressor == null) {
+                compressor = createCssCompressor();
             }
 
             //Optimize the css content
-            result = cssCompressor.compress(source);
+            result = compressBlock(StatisticsCollector.BLOCK_STYLE, compressor, source);
         }
 
         //Rebuild the cdata
@@ -1142,6 +2430,7 @@ public class HtmlCompressor implements Compressor {
         HtmlCompressor clone = new HtmlCompressor();
         clone.setJavaScriptCompressor(javaScriptCompressor);
         clone.setCssCompressor(cssCompressor);
+        clone.setSvgCompressor(svgCompressor);
         clone.setRemoveComments(removeComments);
         clone.setRemoveMultiSpaces(removeMultiSpaces);
         clone.setRemoveIntertagSpaces(removeIntertagSpaces);
@@ -1160,6 +2449,13 @@ public class HtmlCompressor implements Compressor {
         clone.setRemoveJavaScriptProtocol(removeJavaScriptProtocol);
         clone.setRemoveHttpProtocol(removeHttpProtocol);
         clone.setRemoveHttpsProtocol(removeHttpsProtocol);
+        clone.setSortAttributes(sortAttributes);
+        clone.setSortClassNames(sortClassNames);
+        clone.setRemoveOptionalTags(removeOptionalTags);
+        clone.setCompressJson(compressJson);
+        clone.setCompressHtmlTemplates(compressHtmlTemplates);
+        clone.setCompressSvg(compressSvg);
+        clone.setSvgPrecision(svgPrecision);
         clone.setPreservePatterns(preservePatterns);
         clone.setYuiJsNoMunge(yuiJsNoMunge);
         clone.setYuiJsPreserveAllSemiColons(yuiJsPreserveAllSemiColons);
@@ -1167,6 +2463,10 @@ public class HtmlCompressor implements Compressor {
         clone.setYuiJsLineBreak(yuiJsLineBreak);
         clone.setYuiCssLineBreak(yuiCssLineBreak);
         clone.setYuiErrorReporter(yuiErrorReporter);
+        clone.setBlockCache(blockCache);
+        clone.defaultJavaScriptCompressor = defaultJavaScriptCompressor;
+        clone.defaultCssCompressor = defaultCssCompressor;
+        clone.defaultSvgCompressor = defaultSvgCompressor;
 
         return clone;
     }
@@ -1196,6 +2496,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setCompressJavaScript(boolean compressJavaScript) {
         this.compressJavaScript = compressJavaScript;
+        this.plan = null;
     }
 
     /**
@@ -1218,6 +2519,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setCompressJavaScriptWithPreservedBlocks(boolean compressJavaScriptWithPreservedBlocks) {
         this.compressJavaScriptWithPreservedBlocks = compressJavaScriptWithPreservedBlocks;
+        this.plan = null;
     }
 
     /**
@@ -1245,6 +2547,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setCompressCss(boolean compressCss) {
         this.compressCss = compressCss;
+        this.plan = null;
     }
 
     /**
@@ -1266,6 +2569,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setCompressCssWithPreservedBlocks(boolean compressCssWithPreservedBlocks) {
         this.compressCssWithPreservedBlocks = compressCssWithPreservedBlocks;
+        this.plan = null;
     }
 
     /**
@@ -1291,6 +2595,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setYuiJsNoMunge(boolean yuiJsNoMunge) {
         this.yuiJsNoMunge = yuiJsNoMunge;
+        this.plan = null;
     }
 
     /**
@@ -1317,6 +2622,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setYuiJsPreserveAllSemiColons(boolean yuiJsPreserveAllSemiColons) {
         this.yuiJsPreserveAllSemiColons = yuiJsPreserveAllSemiColons;
+        this.plan = null;
     }
 
     /**
@@ -1344,6 +2650,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setYuiJsDisableOptimizations(boolean yuiJsDisableOptimizations) {
         this.yuiJsDisableOptimizations = yuiJsDisableOptimizations;
+        this.plan = null;
     }
 
     /**
@@ -1370,6 +2677,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setYuiJsLineBreak(int yuiJsLineBreak) {
         this.yuiJsLineBreak = yuiJsLineBreak;
+        this.plan = null;
     }
 
     /**
@@ -1396,6 +2704,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setYuiCssLineBreak(int yuiCssLineBreak) {
         this.yuiCssLineBreak = yuiCssLineBreak;
+        this.plan = null;
     }
 
     /**
@@ -1419,6 +2728,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setRemoveQuotes(boolean removeQuotes) {
         this.removeQuotes = removeQuotes;
+        this.plan = null;
     }
 
     /**
@@ -1457,6 +2767,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setRemoveComments(boolean removeComments) {
         this.removeComments = removeComments;
+        this.plan = null;
     }
 
     /**
@@ -1477,6 +2788,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setRemoveMultiSpaces(boolean removeMultiSpaces) {
         this.removeMultiSpaces = removeMultiSpaces;
+        this.plan = null;
     }
 
     /**
@@ -1500,6 +2812,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setRemoveIntertagSpaces(boolean removeIntertagSpaces) {
         this.removeIntertagSpaces = removeIntertagSpaces;
+        this.plan = null;
     }
 
     /**
@@ -1529,6 +2842,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setPreservePatterns(List<Pattern> preservePatterns) {
         this.preservePatterns = preservePatterns;
+        this.plan = null;
     }
 
     /**
@@ -1557,6 +2871,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setYuiErrorReporter(ErrorReporter yuiErrorReporter) {
         this.yuiErrorReporter = yuiErrorReporter;
+        this.plan = null;
     }
 
     /**
@@ -1593,6 +2908,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setJavaScriptCompressor(Compressor javaScriptCompressor) {
         this.javaScriptCompressor = javaScriptCompressor;
+        this.plan = null;
     }
 
     /**
@@ -1624,6 +2940,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setCssCompressor(Compressor cssCompressor) {
         this.cssCompressor = cssCompressor;
+        this.plan = null;
     }
 
     /**
@@ -1643,6 +2960,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setSimpleDoctype(boolean simpleDoctype) {
         this.simpleDoctype = simpleDoctype;
+        this.plan = null;
     }
 
     /**
@@ -1668,6 +2986,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setRemoveScriptAttributes(boolean removeScriptAttributes) {
         this.removeScriptAttributes = removeScriptAttributes;
+        this.plan = null;
     }
 
     /**
@@ -1686,6 +3005,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setRemoveStyleAttributes(boolean removeStyleAttributes) {
         this.removeStyleAttributes = removeStyleAttributes;
+        this.plan = null;
     }
 
     /**
@@ -1710,6 +3030,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setRemoveLinkAttributes(boolean removeLinkAttributes) {
         this.removeLinkAttributes = removeLinkAttributes;
+        this.plan = null;
     }
 
     /**
@@ -1728,6 +3049,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setRemoveFormAttributes(boolean removeFormAttributes) {
         this.removeFormAttributes = removeFormAttributes;
+        this.plan = null;
     }
 
     /**
@@ -1746,6 +3068,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setRemoveInputAttributes(boolean removeInputAttributes) {
         this.removeInputAttributes = removeInputAttributes;
+        this.plan = null;
     }
 
     /**
@@ -1774,6 +3097,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setSimpleBooleanAttributes(boolean simpleBooleanAttributes) {
         this.simpleBooleanAttributes = simpleBooleanAttributes;
+        this.plan = null;
     }
 
     /**
@@ -1796,6 +3120,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setRemoveJavaScriptProtocol(boolean removeJavaScriptProtocol) {
         this.removeJavaScriptProtocol = removeJavaScriptProtocol;
+        this.plan = null;
     }
 
     /**
@@ -1824,6 +3149,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setRemoveHttpProtocol(boolean removeHttpProtocol) {
         this.removeHttpProtocol = removeHttpProtocol;
+        this.plan = null;
     }
 
     /**
@@ -1852,6 +3178,221 @@ public class HtmlCompressor implements Compressor {
      */
     public void setRemoveHttpsProtocol(boolean removeHttpsProtocol) {
         this.removeHttpsProtocol = removeHttpsProtocol;
+        this.plan = null;
+    }
+
+    /**
+     * Returns <code>true</code> if attributes inside start tags are sorted by name.
+     *
+     * @return <code>true</code> if attributes inside start tags are sorted by name.
+     */
+    public boolean isSortAttributes() {
+        return sortAttributes;
+    }
+
+    /**
+     * If set to <code>true</code>, attributes inside start tags will be sorted by name, ignoring case.
+     * The document stays the same, but tags written with a consistent attribute order repeat more
+     * often, which makes the gzipped document smaller.
+     * <p/>
+     * <p>Duplicate attributes keep their order. Tags with attribute names that contain preserved
+     * blocks or template markup are not sorted.
+     * <p/>
+     * <p>For example:
+     * <p><code>&lta id="a" href="/" class="b"></code>
+     * <p>would become:
+     * <p><code>&lta class="b" href="/" id="a"></code>
+     * <p/>
+     * <p>Default is <code>false</code>.
+     *
+     * @param sortAttributes set <code>true</code> to sort attributes inside start tags
+     */
+    public void setSortAttributes(boolean sortAttributes) {
+        this.sortAttributes = sortAttributes;
+        this.plan = null;
+    }
+
+    /**
+     * Returns <code>true</code> if class names inside <code>class</code> attributes are sorted.
+     *
+     * @return <code>true</code> if class names inside <code>class</code> attributes are sorted.
+     */
+    public boolean isSortClassNames() {
+        return sortClassNames;
+    }
+
+    /**
+     * If set to <code>true</code>, the class names inside <code>class</code> attributes will be sorted
+     * and separated by single spaces, which makes the gzipped document smaller like
+     * {@link #setSortAttributes(boolean)}.
+     * <p/>
+     * <p>Values that contain preserved blocks or template markup are not changed.
+     * <p/>
+     * <p>Default is <code>false</code>.
+     *
+     * @param sortClassNames set <code>true</code> to sort class names
+     */
+    public void setSortClassNames(boolean sortClassNames) {
+        this.sortClassNames = sortClassNames;
+        this.plan = null;
+    }
+
+    /**
+     * Returns <code>true</code> if optional end and start tags are removed.
+     *
+     * @return <code>true</code> if optional end and start tags are removed.
+     */
+    public boolean isRemoveOptionalTags() {
+        return removeOptionalTags;
+    }
+
+    /**
+     * If set to <code>true</code>, end and start tags that HTML5 allows to omit will be removed,
+     * e.g. <code>&lt;/li></code>, <code>&lt;/p></code>, <code>&lt;/td></code>, <code>&lt;/tr></code>,
+     * <code>&lt;/option></code>, <code>&lt;/head></code>, <code>&lt;/body></code>, <code>&lt;/html></code>
+     * and start tags like <code>&lt;head></code> and <code>&lt;tbody></code> without attributes.
+     * A tag is only removed if it is directly followed by a tag the rules allow, so this works best
+     * together with {@link #setRemoveIntertagSpaces(boolean)}.
+     * <p/>
+     * <p>For example:
+     * <p><code>&ltul>&ltli>a&lt/li>&ltli>b&lt/li>&lt/ul></code>
+     * <p>would become:
+     * <p><code>&ltul>&ltli>a&ltli>b&lt/ul></code>
+     * <p/>
+     * <p>Default is <code>false</code>.
+     *
+     * @param removeOptionalTags set <code>true</code> to remove optional tags
+     */
+    public void setRemoveOptionalTags(boolean removeOptionalTags) {
+        this.removeOptionalTags = removeOptionalTags;
+        this.plan = null;
+    }
+
+    /**
+     * Returns <code>true</code> if inline JSON scripts are minified.
+     *
+     * @return <code>true</code> if inline JSON scripts are minified.
+     */
+    public boolean isCompressJson() {
+        return compressJson;
+    }
+
+    /**
+     * If set to <code>true</code>, the content of <code>&lt;script></code> tags with a JSON type
+     * like <code>application/json</code>, <code>application/ld+json</code> or <code>importmap</code>
+     * will be minified by removing all whitespace outside of strings. This does not need a
+     * JavaScript compressor and does not depend on {@link #setCompressJavaScript(boolean)}.
+     * Content that is not plain JSON is left as it is.
+     * <p/>
+     * <p>Default is <code>false</code>.
+     *
+     * @param compressJson set <code>true</code> to minify inline JSON
+     * @see JsonCompressor
+     */
+    public void setCompressJson(boolean compressJson) {
+        this.compressJson = compressJson;
+        this.plan = null;
+    }
+
+    /**
+     * Returns <code>true</code> if client side HTML templates inside script tags are compressed.
+     *
+     * @return <code>true</code> if HTML templates are compressed.
+     */
+    public boolean isCompressHtmlTemplates() {
+        return compressHtmlTemplates;
+    }
+
+    /**
+     * If set to <code>true</code>, the content of <code>&lt;script></code> tags holding HTML templates,
+     * i.e. with type <code>text/html</code>, <code>text/template</code>, <code>text/x-template</code>,
+     * <code>text/ng-template</code>, <code>text/x-handlebars-template</code> or
+     * <code>text/x-kendo-template</code>, will be compressed as HTML with the same settings as
+     * the document. Otherwise such scripts are left as they are.
+     * <p/>
+     * <p><b>Note:</b> comments inside templates are removed too if comment removal is enabled,
+     * so templates relying on comments should use preserve patterns.</p>
+     * <p/>
+     * <p>Default is <code>false</code>.
+     *
+     * @param compressHtmlTemplates set <code>true</code> to compress HTML templates
+     */
+    public void setCompressHtmlTemplates(boolean compressHtmlTemplates) {
+        this.compressHtmlTemplates = compressHtmlTemplates;
+        this.plan = null;
+    }
+
+    /**
+     * Returns <code>true</code> if inline SVG images are compressed.
+     *
+     * @return <code>true</code> if inline SVG images are compressed.
+     */
+    public boolean isCompressSvg() {
+        return compressSvg;
+    }
+
+    /**
+     * If set to <code>true</code>, inline <code>&lt;svg></code> images will be preserved as blocks of their
+     * own and compressed with {@link SvgCompressor}, which removes editor metadata, rounds path
+     * coordinates to {@link #setSvgPrecision(int) the SVG precision} and removes attributes set to
+     * their default value. Comments and inter-tag spaces are removed like in the rest of the document.
+     * <p/>
+     * <p>Default is <code>false</code>.
+     *
+     * @param compressSvg set <code>true</code> to compress inline SVG images
+     * @see #setSvgCompressor(Compressor)
+     */
+    public void setCompressSvg(boolean compressSvg) {
+        this.compressSvg = compressSvg;
+        this.plan = null;
+    }
+
+    /**
+     * Returns the number of decimal places SVG coordinates are rounded to.
+     *
+     * @return number of decimal places, <code>-1</code> if coordinates are not rounded
+     */
+    public int getSvgPrecision() {
+        return svgPrecision;
+    }
+
+    /**
+     * Sets the number of decimal places the coordinates of inline SVG paths and point lists
+     * are rounded to. This option has effect only if SVG compression is enabled and no custom
+     * SVG compressor is set.
+     * Default is <code>3</code>.
+     *
+     * @param svgPrecision number of decimal places, <code>-1</code> to keep coordinates as they are
+     * @see SvgCompressor#setPrecision(int)
+     */
+    public void setSvgPrecision(int svgPrecision) {
+        this.svgPrecision = svgPrecision;
+        this.plan = null;
+    }
+
+    /**
+     * Returns SVG compressor implementation that will be used
+     * to compress inline SVG images.
+     *
+     * @return <code>Compressor</code> implementation that will be used
+     *         to compress inline SVG images.
+     */
+    public Compressor getSvgCompressor() {
+        return svgCompressor;
+    }
+
+    /**
+     * Sets SVG compressor implementation that will be used
+     * to compress inline SVG images.
+     * <p/>
+     * <p>If no compressor is set {@link SvgCompressor} will be used by default.
+     *
+     * @param svgCompressor {@link Compressor} implementation that will be used for inline SVG compression
+     * @see SvgCompressor
+     */
+    public void setSvgCompressor(Compressor svgCompressor) {
+        this.svgCompressor = svgCompressor;
+        this.plan = null;
     }
 
     /**
@@ -1889,6 +3430,150 @@ public class HtmlCompressor implements Compressor {
         return statistics;
     }
 
+    /**
+     * Returns the collector that aggregates the statistics of all compressions, if set.
+     *
+     * @return collector of compression statistics or <code>null</code>
+     * @see #setStatisticsCollector(StatisticsCollector)
+     */
+    public StatisticsCollector getStatisticsCollector() {
+        return statisticsCollector;
+    }
+
+    /**
+     * Sets a collector that aggregates sizes and times of all following compressions.
+     * Unlike {@link #setGenerateStatistics(boolean)}, this keeps the compressor thread safe,
+     * and the same collector could be shared by any number of compressors.
+     * <p/>
+     * <p>Default is <code>null</code>.
+     *
+     * @param statisticsCollector collector of compression statistics, <code>null</code> to disable
+     * @see StatisticsCollector
+     */
+    public void setStatisticsCollector(StatisticsCollector statisticsCollector) {
+        this.statisticsCollector = statisticsCollector;
+    }
+
+    /**
+     * Returns the listener that receives an event for every compressed document and block.
+     *
+     * @return listener or <code>null</code>
+     * @see #setCompressionListener(CompressionListener)
+     */
+    public CompressionListener getCompressionListener() {
+        return compressionListener;
+    }
+
+    /**
+     * Sets a listener that receives an event for every compressed document and every
+     * script or style block passed to its compressor, e.g. to record profiling events.
+     * Without a listener nothing is measured.
+     * <p/>
+     * <p>Default is <code>null</code>.
+     *
+     * @param compressionListener listener of compression events, <code>null</code> to disable
+     * @see CompressionListener
+     */
+    public void setCompressionListener(CompressionListener compressionListener) {
+        this.compressionListener = compressionListener;
+    }
+
+    /**
+     * Returns the sampler that keeps documents which took too long to compress, if set.
+     *
+     * @return sampler of slow documents or <code>null</code>
+     * @see #setSlowDocumentSampler(SlowDocumentSampler)
+     */
+    public SlowDocumentSampler getSlowDocumentSampler() {
+        return slowDocumentSampler;
+    }
+
+    /**
+     * Sets a sampler that records the stage times and optionally the input of every
+     * document which takes longer than the threshold of the sampler to compress.
+     * The same sampler could be shared by any number of compressors.
+     * <p/>
+     * <p>Default is <code>null</code>.
+     *
+     * @param slowDocumentSampler sampler of slow documents, <code>null</code> to disable
+     * @see SlowDocumentSampler
+     */
+    public void setSlowDocumentSampler(SlowDocumentSampler slowDocumentSampler) {
+        this.slowDocumentSampler = slowDocumentSampler;
+    }
+
+    /**
+     * Returns the cache of compressed blocks, if set.
+     *
+     * @return cache of compressed blocks or <code>null</code>
+     * @see #setBlockCache(BlockCache)
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Sets a cache for the results of inline scripts, styles, style attributes, SVG images,
+     * JSON scripts, HTML templates and conditional comments, so blocks that are the same on
+     * many pages are compressed only once. The same cache could be shared by any number of
+     * compressors, results of different compressors and options are kept apart.
+     * <p/>
+     * <p>Default is <code>null</code>.
+     *
+     * @param blockCache cache of compressed blocks, <code>null</code> to disable
+     * @see BlockCache
+     */
+    public void setBlockCache(BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    /**
+     * Returns the size below which documents are returned unchanged.
+     *
+     * @return minimal document size in characters
+     */
+    public int getMinimumSize() {
+        return minimumSize;
+    }
+
+    /**
+     * Documents shorter than the given size are returned unchanged, e.g. small
+     * AJAX fragments where the compression costs more than the saved bytes are worth.
+     * Skipped documents are counted by the {@link StatisticsCollector}, if set.
+     * <p/>
+     * <p>Default is <code>0</code>.
+     *
+     * @param minimumSize minimal document size in characters
+     */
+    public void setMinimumSize(int minimumSize) {
+        this.minimumSize = minimumSize;
+    }
+
+    /**
+     * Returns the expected gain below which documents are returned unchanged.
+     *
+     * @return minimal expected gain in percent
+     */
+    public double getMinimumExpectedGain() {
+        return minimumExpectedGain;
+    }
+
+    /**
+     * Documents that are predicted to shrink by less than the given percentage are returned
+     * unchanged, e.g. responses that are already minified. The prediction samples comments
+     * and spaces in the first {@value #GAIN_SAMPLE_SIZE} characters only, so it underestimates
+     * the gain of documents with large inline scripts or styles.
+     * Skipped documents are counted by the {@link StatisticsCollector}, if set.
+     * <p/>
+     * <p>Default is <code>0</code>, which disables the prediction.
+     *
+     * @param minimumExpectedGain minimal expected gain in percent
+     * @see #predictGain(String)
+     */
+    public void setMinimumExpectedGain(double minimumExpectedGain) {
+        this.minimumExpectedGain = minimumExpectedGain;
+    }
+
     /**
      * Returns <code>true</code> if line breaks will be preserved.
      *
@@ -1907,6 +3592,7 @@ public class HtmlCompressor implements Compressor {
      */
     public void setPreserveLineBreaks(boolean preserveLineBreaks) {
         this.preserveLineBreaks = preserveLineBreaks;
+        this.plan = null;
     }
 
     /**
@@ -1933,31 +3619,263 @@ public class HtmlCompressor implements Compressor {
             tagList = null;
         }
         this.removeSurroundingSpaces = tagList;
-        this.removeSurroundingSpacesPattern = null;
+        this.plan = null;
     }
 
     /**
-     * Return the pattern the should use to remove the surrounding spaces.
-     *
-     * @return <code>Pattern</code> if tags was configured otherwise <code>false</code>.
+     * Returns the lower case names of the tags around which spaces will be removed,
+     * <code>null</code> if spaces around all tags will be removed.
      */
-    public Pattern getRemoveSurroundingSpacesPattern() {
-        if (null != removeSurroundingSpaces) {
-            if (null == removeSurroundingSpacesPattern) {
-                if (removeSurroundingSpaces.equals(BLOCK_TAGS_MIN)) {
-                    removeSurroundingSpacesPattern = surroundingSpacesMinPattern;
-                } else if (removeSurroundingSpaces.equals(BLOCK_TAGS_MAX)) {
-                    removeSurroundingSpacesPattern = surroundingSpacesMaxPattern;
-                } else if (removeSurroundingSpaces.equals(ALL_TAGS)) {
-                    removeSurroundingSpacesPattern = surroundingSpacesAllPattern;
-                } else {
-                    removeSurroundingSpacesPattern = Pattern.compile("\\s*(</?(?:" + removeSurroundingSpaces.replaceAll(",", "|") + ")(?:>|[\\s/][^>]*>))\\s*", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    private Set<String> getRemoveSurroundingSpacesTags() {
+        return getPlan().surroundingSpacesTags;
+    }
+
+    /**
+     * Compiles the current options into an immutable plan: the enabled stages in their order,
+     * the tags around which spaces are removed and the JavaScript and CSS compressors. Nothing
+     * is looked up or created lazily while compressing afterwards. Otherwise the plan is compiled
+     * by the first compression after an option was changed.
+     * <p/>
+     * <p>Integrations that configure a compressor once and reuse it should call this method
+     * after the configuration.
+     */
+    public void compile() {
+        plan = new Plan(this);
+    }
+
+    private Plan getPlan() {
+        Plan current = plan;
+        if (current == null) {
+            current = new Plan(this);
+            plan = current;
+        }
+        return current;
+    }
+
+    /**
+     * Step of the HTML processing that is only part of a {@link Plan} if enabled.
+     */
+    private abstract static class Stage {
+
+        abstract String process(HtmlCompressor compressor, Plan plan, String html);
+    }
+
+    private static final Stage REMOVE_COMMENTS = new Stage() {
+        @Override
+        String process(HtmlCompressor compressor, Plan plan, String html) {
+            return compressor.removeComments(html);
+        }
+    };
+
+    private static final Stage SIMPLE_DOCTYPE = new Stage() {
+        @Override
+        String process(HtmlCompressor compressor, Plan plan, String html) {
+            return compressor.simpleDoctype(html);
+        }
+    };
+
+    private static final Stage REMOVE_INTERTAG_SPACES = new Stage() {
+        @Override
+        String process(HtmlCompressor compressor, Plan plan, String html) {
+            return compressor.removeIntertagSpaces(html);
+        }
+    };
+
+    private static final Stage REMOVE_MULTI_SPACES = new Stage() {
+        @Override
+        String process(HtmlCompressor compressor, Plan plan, String html) {
+            return compressor.removeMultiSpaces(html);
+        }
+    };
+
+    private static final Stage REMOVE_OPTIONAL_TAGS = new Stage() {
+        @Override
+        String process(HtmlCompressor compressor, Plan plan, String html) {
+            return compressor.removeOptionalTags(html);
+        }
+    };
+
+    private static final Stage REWRITE_TAGS = new Stage() {
+        @Override
+        String process(HtmlCompressor compressor, Plan plan, String html) {
+            return compressor.rewriteTags(html, plan.rewrites);
+        }
+    };
+
+    private static final Stage REMOVE_SURROUNDING_SPACES = new Stage() {
+        @Override
+        String process(HtmlCompressor compressor, Plan plan, String html) {
+            return compressor.removeSurroundingSpaces(html);
+        }
+    };
+
+    /**
+     * Immutable options of a compressor compiled by {@link HtmlCompressor#compile()}.
+     */
+    private static final class Plan {
+
+        //stages applied to the whole document, stages that could be applied to chunks
+        //and stages applied to the whole document after the tags were rewritten
+        private final Stage[] documentStages;
+        private final Stage[] tagStages;
+        private final Stage[] finalStages;
+
+        private final Set<String> surroundingSpacesTags;
+        private final Pattern surroundingSpacesPattern;
+        private final Compressor javaScriptCompressor;
+        private final Compressor cssCompressor;
+        private final Compressor svgCompressor;
+
+        //REWRITE_* options applied by rewriteTags
+        private final int rewrites;
+
+        //block cache key of the results of compressor clones
+        private final Object cloneOwner;
+        private final String cloneConfiguration;
+
+        Plan(HtmlCompressor compressor) {
+            List<Stage> stages = new ArrayList<Stage>();
+            if (compressor.removeComments) {
+                stages.add(REMOVE_COMMENTS);
+            }
+            if (compressor.simpleDoctype) {
+                stages.add(SIMPLE_DOCTYPE);
+            }
+            if (compressor.removeIntertagSpaces) {
+                stages.add(REMOVE_INTERTAG_SPACES);
+            }
+            if (compressor.removeMultiSpaces) {
+                stages.add(REMOVE_MULTI_SPACES);
+            }
+            documentStages = stages.toArray(new Stage[stages.size()]);
+
+            //spaces and quotes inside tags are always rewritten
+            String tagList = compressor.removeSurroundingSpaces;
+            tagStages = tagList == null ? new Stage[]{REWRITE_TAGS} : new Stage[]{REWRITE_TAGS, REMOVE_SURROUNDING_SPACES};
+
+            //optional tags are removed last, so other stages see the same tags as without
+            finalStages = compressor.removeOptionalTags ? new Stage[]{REMOVE_OPTIONAL_TAGS} : new Stage[0];
+
+            if (tagList == null || tagList.equals(ALL_TAGS)) {
+                surroundingSpacesTags = null;
+            } else {
+                Set<String> tags = new HashSet<String>();
+                for (String tag : tagList.split(",")) {
+                    tags.add(tag.trim().toLowerCase());
+                }
+                surroundingSpacesTags = Collections.unmodifiableSet(tags);
+            }
+
+            if (tagList == null) {
+                surroundingSpacesPattern = null;
+            } else if (tagList.equals(BLOCK_TAGS_MIN)) {
+                surroundingSpacesPattern = surroundingSpacesMinPattern;
+            } else if (tagList.equals(BLOCK_TAGS_MAX)) {
+                surroundingSpacesPattern = surroundingSpacesMaxPattern;
+            } else if (tagList.equals(ALL_TAGS)) {
+                surroundingSpacesPattern = surroundingSpacesAllPattern;
+            } else {
+                surroundingSpacesPattern = Pattern.compile("\\s*(</?(?:" + tagList.replaceAll(",", "|") + ")(?:>|[\\s/][^>]*>))\\s*", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+            }
+
+            javaScriptCompressor = compressor.compressJavaScript ? compressor.createJavaScriptCompressor() : null;
+            cssCompressor = compressor.compressCss ? compressor.createCssCompressor() : null;
+            svgCompressor = compressor.compressSvg ? compressor.createSvgCompressor() : null;
+
+            int tagRewrites = 0;
+            tagRewrites |= compressor.removeScriptAttributes ? REWRITE_SCRIPT_ATTRIBUTES : 0;
+            tagRewrites |= compressor.removeStyleAttributes ? REWRITE_STYLE_ATTRIBUTES : 0;
+            tagRewrites |= compressor.removeLinkAttributes ? REWRITE_LINK_ATTRIBUTES : 0;
+            tagRewrites |= compressor.removeFormAttributes ? REWRITE_FORM_ATTRIBUTES : 0;
+            tagRewrites |= compressor.removeInputAttributes ? REWRITE_INPUT_ATTRIBUTES : 0;
+            tagRewrites |= compressor.simpleBooleanAttributes ? REWRITE_BOOLEAN_ATTRIBUTES : 0;
+            tagRewrites |= compressor.removeHttpProtocol ? REWRITE_HTTP_PROTOCOL : 0;
+            tagRewrites |= compressor.removeHttpsProtocol ? REWRITE_HTTPS_PROTOCOL : 0;
+            tagRewrites |= compressor.removeQuotes ? REWRITE_QUOTES : 0;
+            tagRewrites |= compressor.sortAttributes ? REWRITE_SORT_ATTRIBUTES : 0;
+            tagRewrites |= compressor.sortClassNames ? REWRITE_SORT_CLASS_NAMES : 0;
+            rewrites = tagRewrites;
+
+            //describe the options copied by createCompressorClone()
+            StringBuilder options = new StringBuilder();
+            options.append(compressor.removeComments).append(',').append(compressor.removeMultiSpaces).append(',')
+                .append(compressor.removeIntertagSpaces).append(',').append(compressor.removeQuotes).append(',')
+                .append(compressor.compressJavaScript).append(',').append(compressor.compressJavaScriptWithPreservedBlocks).append(',')
+                .append(compressor.compressCss).append(',').append(compressor.compressCssWithPreservedBlocks).append(',')
+                .append(compressor.simpleDoctype).append(',').append(compressor.removeScriptAttributes).append(',')
+                .append(compressor.removeStyleAttributes).append(',').append(compressor.removeLinkAttributes).append(',')
+                .append(compressor.removeFormAttributes).append(',').append(compressor.removeInputAttributes).append(',')
+                .append(compressor.simpleBooleanAttributes).append(',').append(compressor.removeJavaScriptProtocol).append(',')
+                .append(compressor.removeHttpProtocol).append(',').append(compressor.removeHttpsProtocol).append(',')
+                .append(compressor.sortAttributes).append(',').append(compressor.sortClassNames).append(',')
+                .append(compressor.removeOptionalTags).append(',').append(compressor.compressJson).append(',')
+                .append(compressor.compressHtmlTemplates).append(',').append(compressor.compressSvg).append(',')
+                .append(compressor.svgPrecision).append(',').append(compressor.yuiJsNoMunge).append(',')
+                .append(compressor.yuiJsPreserveAllSemiColons).append(',').append(compressor.yuiJsDisableOptimizations).append(',')
+                .append(compressor.yuiJsLineBreak).append(',').append(compressor.yuiCssLineBreak);
+            if (compressor.preservePatterns != null) {
+                for (Pattern pattern : compressor.preservePatterns) {
+                    options.append('\n').append(pattern.flags()).append(' ').append(pattern.pattern());
+                }
+            }
+
+            //compressors without a description are told apart by equality
+            List<Compressor> unknown = new ArrayList<Compressor>();
+            for (Compressor blockCompressor : new Compressor[]{compressor.javaScriptCompressor, compressor.cssCompressor, compressor.svgCompressor}) {
+                String description = blockCompressor != null ? describeCompressor(blockCompressor) : "default";
+                if (description == null) {
+                    unknown.add(blockCompressor);
+                    description = blockCompressor.getClass().getName();
                 }
+                options.append('\n').append(description);
             }
 
-            return removeSurroundingSpacesPattern;
+            if (unknown.isEmpty()) {
+                cloneOwner = compressor;
+                cloneConfiguration = options.toString();
+            } else {
+                cloneOwner = new CloneKey(compressor.getClass(), options.toString(), unknown);
+                cloneConfiguration = null;
+            }
         }
+    }
 
-        return null;
+    /**
+     * Block cache owner of the results of compressor clones that use compressors without a description.
+     */
+    private static final class CloneKey {
+
+        private final Class<?> type;
+        private final String options;
+        private final List<Compressor> compressors;
+
+        CloneKey(Class<?> type, String options, List<Compressor> compressors) {
+            this.type = type;
+            this.options = options;
+            this.compressors = compressors;
+        }
+
+        @Override
+        public int hashCode() {
+            return (type.hashCode() * 31 + options.hashCode()) * 31 + compressors.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CloneKey)) {
+                return false;
+            }
+            CloneKey other = (CloneKey) obj;
+            return type == other.type && options.equals(other.options) && compressors.equals(other.compressors);
+        }
+    }
+
+    /**
+     * Return the pattern the should use to remove the surrounding spaces.
+     *
+     * @return <code>Pattern</code> if tags was configured otherwise <code>false</code>.
+     */
+    public Pattern getRemoveSurroundingSpacesPattern() {
+        return getPlan().surroundingSpacesPattern;
     }
 }
\ No newline at end of file
@@ -23,6 +23,13 @@ package com.googlecode.htmlcompressor.compressor;
  */
 public class HtmlCompressorStatistics {
 
+    /**
+     * Names of the fields written by {@link #toCsv()}.
+     */
+    public static final String CSV_HEADER = "time,preservedSize,"
+        + HtmlMetrics.CSV_HEADER.replaceAll("(\\w+)", "original.$1") + ","
+        + HtmlMetrics.CSV_HEADER.replaceAll("(\\w+)", "compressed.$1");
+
     private HtmlMetrics originalMetrics = new HtmlMetrics();
     private HtmlMetrics compressedMetrics = new HtmlMetrics();
     private long time = 0;
@@ -104,4 +111,24 @@ public class HtmlCompressorStatistics {
     public String toString() {
         return String.format("Time=%d, Preserved=%d, Original={%s}, Compressed={%s}", time, preservedSize, originalMetrics.toString(), compressedMetrics.toString());
     }
+
+    /**
+     * Returns the statistics as a JSON object.
+     *
+     * @return JSON object with time, preserved size and both metrics
+     * @see StatisticsFormat
+     */
+    public String toJson() {
+        return String.format("{\"time\":%d,\"preservedSize\":%d,\"original\":%s,\"compressed\":%s}", time, preservedSize, originalMetrics.toJson(), compressedMetrics.toJson());
+    }
+
+    /**
+     * Returns the statistics as CSV fields in the order of {@link #CSV_HEADER}.
+     *
+     * @return comma separated statistics
+     * @see StatisticsFormat
+     */
+    public String toCsv() {
+        return String.format("%d,%d,%s,%s", time, preservedSize, originalMetrics.toCsv(), compressedMetrics.toCsv());
+    }
 }
@@ -22,6 +22,11 @@ package com.googlecode.htmlcompressor.compressor;
  */
 public class HtmlMetrics {
 
+    /**
+     * Names of the fields written by {@link #toCsv()}.
+     */
+    public static final String CSV_HEADER = "filesize,emptyChars,inlineScriptSize,inlineStyleSize,inlineEventSize";
+
     private int filesize = 0;
     private int emptyChars = 0;
     private int inlineScriptSize = 0;
@@ -112,4 +117,22 @@ public class HtmlMetrics {
     public String toString() {
         return String.format("Filesize=%d, Empty Chars=%d, Script Size=%d, Style Size=%d, Event Handler Size=%d", filesize, emptyChars, inlineScriptSize, inlineStyleSize, inlineEventSize);
     }
+
+    /**
+     * Returns the metrics as a JSON object.
+     *
+     * @return JSON object with all metrics
+     */
+    public String toJson() {
+        return String.format("{\"filesize\":%d,\"emptyChars\":%d,\"inlineScriptSize\":%d,\"inlineStyleSize\":%d,\"inlineEventSize\":%d}", filesize, emptyChars, inlineScriptSize, inlineStyleSize, inlineEventSize);
+    }
+
+    /**
+     * Returns the metrics as CSV fields in the order of {@link #CSV_HEADER}.
+     *
+     * @return comma separated metrics
+     */
+    public String toCsv() {
+        return String.format("%d,%d,%d,%d,%d", filesize, emptyChars, inlineScriptSize, inlineStyleSize, inlineEventSize);
+    }
 }
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+/**
+ * JSON compressor that removes all whitespace outside of strings in a single pass, without
+ * parsing the values. It is used by {@link HtmlCompressor} for inline <code>application/json</code>
+ * and <code>application/ld+json</code> scripts. Content that does not look like JSON, for example
+ * because it contains comments or JavaScript, is returned unchanged.
+ *
+ * @see HtmlCompressor#setCompressJson(boolean)
+ */
+public class JsonCompressor implements Compressor {
+
+    public JsonCompressor() {
+    }
+
+    @Override
+    public String compress(String source) {
+        int length = source.length();
+        char[] result = null;
+        int resultLength = 0;
+        boolean space = false;
+        char last = 0;
+
+        for (int i = 0; i < length; i++) {
+            char c = source.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                if (result == null) {
+                    //first space, copy what we have so far
+                    result = new char[length];
+                    source.getChars(0, i, result, 0);
+                    resultLength = i;
+                }
+                space = true;
+                continue;
+            }
+
+            if (c == '"') {
+                //copy the whole string with its escapes
+                int end = i + 1;
+                while (end < length && source.charAt(end) != '"') {
+                    end += source.charAt(end) == '\\' ? 2 : 1;
+                }
+                if (end >= length) {
+                    return source;
+                }
+                end++;
+                if (result != null) {
+                    source.getChars(i, end, result, resultLength);
+                    resultLength += end - i;
+                }
+                i = end - 1;
+                last = c;
+            } else if (isStructural(c)) {
+                if (result != null) {
+                    result[resultLength++] = c;
+                }
+                last = c;
+            } else if (isLiteral(c)) {
+                //two literals separated by spaces would be joined
+                if (space && isLiteral(last)) {
+                    return source;
+                }
+                if (result != null) {
+                    result[resultLength++] = c;
+                }
+                last = c;
+            } else {
+                //not json
+                return source;
+            }
+            space = false;
+        }
+
+        return result == null ? source : new String(result, 0, resultLength);
+    }
+
+    private static boolean isStructural(char c) {
+        return c == '{' || c == '}' || c == '[' || c == ']' || c == ':' || c == ',';
+    }
+
+    /**
+     * Returns <code>true</code> for characters of numbers and of <code>true</code>,
+     * <code>false</code> and <code>null</code>.
+     */
+    private static boolean isLiteral(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '-' || c == '+' || c == '.' || c == 'E';
+    }
+}
\ No newline at end of file
@@ -0,0 +1,380 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Stores compressed results outside of the Java heap, so large caches neither fill the old
+ * generation nor lengthen garbage collection pauses.
+ * <p>Results are UTF-8 encoded into direct byte buffers of a fixed size, called slabs. Results
+ * are appended to the current slab, once it is full the oldest slab is cleared and reused, so the
+ * oldest results are evicted first. Results are found by their 128 bit key in an open addressing
+ * index that consists of a few primitive arrays.
+ * <p>Results could be written to an output stream without decoding them into strings. All methods
+ * are safe for concurrent use.
+ *
+ * @see CachingCompressor#setOffHeapStore(OffHeapStore)
+ */
+public class OffHeapStore {
+
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+    private static final long EMPTY = -1;
+    private static final int MINIMUM_INDEX_SIZE = 16;
+
+    private final long capacity;
+    private final int slabSize;
+
+    private final ByteBuffer[] slabs;
+    private final int[] generations;
+    private final int[] slabEntries;
+    private final int[] slabBytes;
+    private int current = 0;
+    private int position = 0;
+
+    //index slots: key, slab and offset of the result, generation of the slab
+    private long[] highs;
+    private long[] lows;
+    private long[] locations;
+    private int[] slotGenerations;
+    private int usedSlots = 0;
+
+    private int entries = 0;
+    private long size = 0;
+    private long evictions = 0;
+
+    /**
+     * @param capacity maximal size of the stored results in bytes
+     */
+    public OffHeapStore(long capacity) {
+        this(capacity, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param capacity maximal size of the stored results in bytes
+     * @param slabSize size of the buffers the results are stored in, results larger than a slab are not stored
+     */
+    public OffHeapStore(long capacity, int slabSize) {
+        if (slabSize <= 4 || capacity < 2L * slabSize) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity + ", slab size: " + slabSize);
+        }
+        this.capacity = capacity;
+        this.slabSize = slabSize;
+
+        //slabs are allocated on first use
+        int count = (int) Math.min(Integer.MAX_VALUE, capacity / slabSize);
+        slabs = new ByteBuffer[count];
+        generations = new int[count];
+        slabEntries = new int[count];
+        slabBytes = new int[count];
+        createIndex(MINIMUM_INDEX_SIZE);
+    }
+
+    private void createIndex(int slots) {
+        highs = new long[slots];
+        lows = new long[slots];
+        locations = new long[slots];
+        slotGenerations = new int[slots];
+        Arrays.fill(locations, EMPTY);
+        usedSlots = 0;
+    }
+
+    /**
+     * Stores a result unless a result with the same key is stored already.
+     *
+     * @param high upper half of the key
+     * @param low lower half of the key
+     * @param value result to store
+     * @return <code>false</code> if the result is larger than a slab
+     */
+    public boolean put(long high, long low, String value) {
+        return put(high, low, encode(value));
+    }
+
+    /**
+     * Stores an UTF-8 encoded result unless a result with the same key is stored already.
+     *
+     * @param high upper half of the key
+     * @param low lower half of the key
+     * @param bytes UTF-8 encoded result to store
+     * @return <code>false</code> if the result is larger than a slab
+     */
+    public boolean put(long high, long low, byte[] bytes) {
+        int recordSize = 4 + bytes.length;
+        if (recordSize > slabSize) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (find(high, low) >= 0) {
+                return true;
+            }
+
+            if (position + recordSize > slabSize) {
+                advance();
+            }
+            ByteBuffer slab = slabs[current];
+            if (slab == null) {
+                slab = ByteBuffer.allocateDirect(slabSize);
+                slabs[current] = slab;
+            }
+            slab.putInt(position, bytes.length);
+            ByteBuffer view = slab.duplicate();
+            view.position(position + 4);
+            view.put(bytes);
+
+            insert(high, low, ((long) current << 32) | position, generations[current]);
+            position += recordSize;
+            slabEntries[current]++;
+            slabBytes[current] += recordSize;
+            entries++;
+            size += recordSize;
+        }
+        return true;
+    }
+
+    /**
+     * Evicts all results of the next slab and continues there.
+     */
+    private void advance() {
+        current = (current + 1) % slabs.length;
+        generations[current]++;
+        entries -= slabEntries[current];
+        evictions += slabEntries[current];
+        size -= slabBytes[current];
+        slabEntries[current] = 0;
+        slabBytes[current] = 0;
+        position = 0;
+    }
+
+    /**
+     * Returns the stored result with the given key.
+     *
+     * @param high upper half of the key
+     * @param low lower half of the key
+     * @return stored result or <code>null</code> if not stored
+     */
+    public String get(long high, long low) {
+        byte[] bytes = read(high, low);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes the UTF-8 encoded result with the given key to the stream.
+     *
+     * @param high upper half of the key
+     * @param low lower half of the key
+     * @param out stream for the result
+     * @return <code>false</code> if the result is not stored, so nothing was written
+     * @throws IOException if the stream could not be written
+     */
+    public boolean writeTo(long high, long low, OutputStream out) throws IOException {
+        //copied first, so slow streams do not block other threads
+        byte[] bytes = read(high, low);
+        if (bytes == null) {
+            return false;
+        }
+        out.write(bytes);
+        return true;
+    }
+
+    private synchronized byte[] read(long high, long low) {
+        int slot = find(high, low);
+        if (slot < 0) {
+            return null;
+        }
+        ByteBuffer view = slabs[(int) (locations[slot] >>> 32)].duplicate();
+        int offset = (int) locations[slot];
+        byte[] bytes = new byte[view.getInt(offset)];
+        view.position(offset + 4);
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Removes the result with the given key. Its bytes are reused once its slab is reused.
+     *
+     * @param high upper half of the key
+     * @param low lower half of the key
+     * @return <code>true</code> if the result was stored
+     */
+    public synchronized boolean remove(long high, long low) {
+        int slot = find(high, low);
+        if (slot < 0) {
+            return false;
+        }
+        int slab = (int) (locations[slot] >>> 32);
+        int recordSize = 4 + slabs[slab].getInt((int) locations[slot]);
+
+        //generations only grow, so the slot never becomes live again
+        slotGenerations[slot] = generations[slab] - 1;
+        slabEntries[slab]--;
+        slabBytes[slab] -= recordSize;
+        entries--;
+        size -= recordSize;
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if a result with the given key is stored.
+     *
+     * @param high upper half of the key
+     * @param low lower half of the key
+     * @return <code>true</code> if stored
+     */
+    public synchronized boolean contains(long high, long low) {
+        return find(high, low) >= 0;
+    }
+
+    private int find(long high, long low) {
+        int mask = locations.length - 1;
+        for (int slot = slot(high, low, mask); locations[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (highs[slot] == high && lows[slot] == low && isLive(slot)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long high, long low, long location, int generation) {
+        //keep at least half of the slots empty
+        if ((usedSlots + 1) * 2 > locations.length) {
+            rebuildIndex();
+        }
+
+        int mask = locations.length - 1;
+        int slot = slot(high, low, mask);
+        while (locations[slot] != EMPTY && isLive(slot)) {
+            slot = (slot + 1) & mask;
+        }
+        if (locations[slot] == EMPTY) {
+            usedSlots++;
+        }
+        highs[slot] = high;
+        lows[slot] = low;
+        locations[slot] = location;
+        slotGenerations[slot] = generation;
+    }
+
+    /**
+     * Drops the slots of evicted results and resizes the index for the live results.
+     */
+    private void rebuildIndex() {
+        long[] oldHighs = highs;
+        long[] oldLows = lows;
+        long[] oldLocations = locations;
+        int[] oldGenerations = slotGenerations;
+
+        int slots = MINIMUM_INDEX_SIZE;
+        while (slots < (entries + 1) * 4) {
+            slots *= 2;
+        }
+        createIndex(slots);
+
+        for (int i = 0; i < oldLocations.length; i++) {
+            long location = oldLocations[i];
+            if (location != EMPTY && generations[(int) (location >>> 32)] == oldGenerations[i]) {
+                insert(oldHighs[i], oldLows[i], location, oldGenerations[i]);
+            }
+        }
+    }
+
+    private boolean isLive(int slot) {
+        return generations[(int) (locations[slot] >>> 32)] == slotGenerations[slot];
+    }
+
+    private static int slot(long high, long low, int mask) {
+        long hash = (high ^ low) * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Removes all results. The slabs are kept for reuse, the counters are not reset.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < slabs.length; i++) {
+            generations[i]++;
+            slabEntries[i] = 0;
+            slabBytes[i] = 0;
+        }
+        createIndex(MINIMUM_INDEX_SIZE);
+        current = 0;
+        position = 0;
+        entries = 0;
+        size = 0;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Returns the number of stored results.
+     *
+     * @return number of stored results
+     */
+    public synchronized int getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the size of the stored results in bytes.
+     *
+     * @return size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of results removed with their slab to make room for other results.
+     *
+     * @return number of evicted results
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Entries=%d, Size=%d, Capacity=%d, Evictions=%d", entries, size, capacity, evictions);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,361 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Removes the end tags and start tags that HTML5 allows to omit, like <code>&lt;/li></code> before
+ * the next list item or <code>&lt;/td></code> before the end of the table row. A stack of the open
+ * elements tells the parent of an element. Tags are only omitted if they are directly followed by
+ * the tag that the rules require, so no whitespace, text or comment moves into another element.
+ * Start tags are only omitted if they have no attributes.
+ *
+ * @see HtmlCompressor#setRemoveOptionalTags(boolean)
+ */
+class OptionalTagRemover {
+
+    private static final Set<String> VOID_ELEMENTS = new HashSet<String>(Arrays.asList(
+        "area", "base", "br", "col", "embed", "hr", "img", "input", "keygen", "link", "meta", "param", "source", "track", "wbr"));
+
+    //elements with text content that is not parsed for tags
+    private static final Set<String> RAW_TEXT_ELEMENTS = new HashSet<String>(Arrays.asList(
+        "script", "style", "textarea", "title", "xmp", "iframe", "noembed", "noframes"));
+
+    //elements that close an open p element, except table which does not in quirks mode
+    private static final Set<String> P_CLOSERS = new HashSet<String>(Arrays.asList(
+        "address", "article", "aside", "blockquote", "details", "dialog", "div", "dl", "fieldset", "figcaption", "figure",
+        "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hgroup", "hr", "main", "menu", "nav", "ol", "p",
+        "pre", "section", "ul"));
+
+    //parents that keep the end tag of their last p element
+    private static final Set<String> P_KEEP_PARENTS = new HashSet<String>(Arrays.asList(
+        "a", "audio", "del", "ins", "map", "noscript", "video"));
+
+    //first elements of a body that keep the body start tag
+    private static final Set<String> BODY_KEEP_FIRST = new HashSet<String>(Arrays.asList(
+        "meta", "noscript", "link", "script", "style", "template"));
+
+    private String[] stack = new String[32];
+    private int depth = 0;
+
+    /**
+     * Returns the given HTML without the optional tags.
+     */
+    String process(String html) {
+        int length = html.length();
+        StringBuilder sb = new StringBuilder(length);
+        int last = 0;
+
+        //an end tag of a table section was omitted right before
+        boolean sectionOmitted = false;
+
+        int pos = html.indexOf('<');
+        while (pos >= 0 && pos < length - 1) {
+            char next = html.charAt(pos + 1);
+            int end;
+
+            if (isLetter(next)) {
+                //start tag
+                int nameEnd = nameEnd(html, pos + 1);
+                String name = html.substring(pos + 1, nameEnd).toLowerCase();
+                end = tagEnd(html, nameEnd);
+                if (end < 0) {
+                    break;
+                }
+
+                closeImplied(name);
+                if (isPlain(html, nameEnd, end) && !isForeign() && isStartTagOptional(name, html, end, sectionOmitted)) {
+                    sb.append(html, last, pos);
+                    last = end;
+                }
+                sectionOmitted = false;
+
+                boolean selfClosing = html.charAt(end - 2) == '/';
+                if (!VOID_ELEMENTS.contains(name) && !(selfClosing && isForeign())) {
+                    push(name);
+                }
+
+                if (RAW_TEXT_ELEMENTS.contains(name)) {
+                    //continue at the end tag
+                    pos = indexOfEndTag(html, name, end);
+                    if (pos < 0) {
+                        break;
+                    }
+                    continue;
+                }
+            } else if (next == '/' && pos + 2 < length && isLetter(html.charAt(pos + 2))) {
+                //end tag
+                int nameEnd = nameEnd(html, pos + 2);
+                String name = html.substring(pos + 2, nameEnd).toLowerCase();
+                end = html.indexOf('>', nameEnd);
+                if (end < 0) {
+                    break;
+                }
+                end++;
+
+                int index = lastIndexOf(name);
+                boolean omit = index >= 0 && index == depth - 1 && isPlain(html, nameEnd, end) && !isForeign()
+                    && isEndTagOptional(name, index > 0 ? stack[index - 1] : null, html, end);
+                if (omit) {
+                    sb.append(html, last, pos);
+                    last = end;
+                }
+                sectionOmitted = omit && (name.equals("tbody") || name.equals("thead") || name.equals("tfoot"));
+
+                if (index >= 0) {
+                    depth = index;
+                }
+            } else if (html.startsWith("<!--", pos)) {
+                end = html.indexOf("-->", pos + 4);
+                if (end < 0) {
+                    break;
+                }
+                end += 3;
+                sectionOmitted = false;
+            } else if (next == '!' || next == '?') {
+                end = html.indexOf('>', pos + 2);
+                if (end < 0) {
+                    break;
+                }
+                end++;
+                sectionOmitted = false;
+            } else {
+                //not a tag
+                end = pos + 1;
+                sectionOmitted = false;
+            }
+
+            pos = html.indexOf('<', end);
+        }
+        sb.append(html, last, length);
+
+        return sb.toString();
+    }
+
+    private boolean isStartTagOptional(String name, String html, int end, boolean sectionOmitted) {
+        String nextStart = startTagName(html, end);
+        if (name.equals("html")) {
+            return nextStart != null;
+        } else if (name.equals("head")) {
+            return nextStart != null || "head".equals(endTagName(html, end));
+        } else if (name.equals("body")) {
+            return nextStart != null && !BODY_KEEP_FIRST.contains(nextStart);
+        } else if (name.equals("tbody")) {
+            return "tr".equals(nextStart) && !sectionOmitted;
+        }
+        return false;
+    }
+
+    private boolean isEndTagOptional(String name, String parent, String html, int end) {
+        String nextStart = startTagName(html, end);
+        boolean parentEnds = parent != null && parent.equals(endTagName(html, end));
+
+        if (name.equals("li")) {
+            return "li".equals(nextStart) || parentEnds;
+        } else if (name.equals("p")) {
+            return (nextStart != null && P_CLOSERS.contains(nextStart))
+                || (parentEnds && !P_KEEP_PARENTS.contains(parent) && parent.indexOf('-') < 0);
+        } else if (name.equals("td") || name.equals("th")) {
+            return "td".equals(nextStart) || "th".equals(nextStart) || parentEnds;
+        } else if (name.equals("tr")) {
+            return "tr".equals(nextStart) || parentEnds;
+        } else if (name.equals("option")) {
+            return "option".equals(nextStart) || "optgroup".equals(nextStart) || parentEnds;
+        } else if (name.equals("optgroup")) {
+            return "optgroup".equals(nextStart) || parentEnds;
+        } else if (name.equals("dt")) {
+            return "dt".equals(nextStart) || "dd".equals(nextStart);
+        } else if (name.equals("dd")) {
+            return "dd".equals(nextStart) || "dt".equals(nextStart) || parentEnds;
+        } else if (name.equals("rt") || name.equals("rp")) {
+            return "rt".equals(nextStart) || "rp".equals(nextStart) || parentEnds;
+        } else if (name.equals("thead")) {
+            return "tbody".equals(nextStart) || "tfoot".equals(nextStart);
+        } else if (name.equals("tbody")) {
+            return "tbody".equals(nextStart) || "tfoot".equals(nextStart) || parentEnds;
+        } else if (name.equals("tfoot")) {
+            return parentEnds;
+        } else if (name.equals("head")) {
+            return nextStart != null;
+        } else if (name.equals("body")) {
+            //only whitespace and the html end tag may follow
+            int p = skipSpaces(html, end);
+            return p == html.length() || ("html".equals(endTagName(html, p)) && skipSpaces(html, html.indexOf('>', p) + 1) == html.length());
+        } else if (name.equals("html")) {
+            return skipSpaces(html, end) == html.length();
+        }
+        return false;
+    }
+
+    /**
+     * Pops the elements that the given start tag closes implicitly.
+     */
+    private void closeImplied(String name) {
+        if (depth == 0) {
+            return;
+        }
+        if (P_CLOSERS.contains(name) || name.equals("li") || name.equals("dd") || name.equals("dt")) {
+            popIf("p");
+        }
+        if (name.equals("li")) {
+            popIf("li");
+        } else if (name.equals("dd") || name.equals("dt")) {
+            popIf("dd", "dt");
+        } else if (name.equals("td") || name.equals("th")) {
+            popIf("td", "th");
+        } else if (name.equals("tr")) {
+            popIf("td", "th");
+            popIf("tr");
+        } else if (name.equals("tbody") || name.equals("thead") || name.equals("tfoot")) {
+            popIf("td", "th");
+            popIf("tr");
+            popIf("tbody", "thead", "tfoot");
+        } else if (name.equals("option")) {
+            popIf("option");
+        } else if (name.equals("optgroup")) {
+            popIf("option");
+            popIf("optgroup");
+        } else if (name.equals("body")) {
+            popIf("head");
+        }
+    }
+
+    private void popIf(String... names) {
+        if (depth > 0) {
+            for (String name : names) {
+                if (stack[depth - 1].equals(name)) {
+                    depth--;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void push(String name) {
+        if (depth == stack.length) {
+            String[] newStack = new String[depth * 2];
+            System.arraycopy(stack, 0, newStack, 0, depth);
+            stack = newStack;
+        }
+        stack[depth++] = name;
+    }
+
+    private int lastIndexOf(String name) {
+        for (int i = depth - 1; i >= 0; i--) {
+            if (stack[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns <code>true</code> inside SVG and MathML, where the HTML rules do not apply.
+     */
+    private boolean isForeign() {
+        for (int i = 0; i < depth; i++) {
+            if (stack[i].equals("svg") || stack[i].equals("math")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String startTagName(String html, int pos) {
+        if (pos + 1 < html.length() && html.charAt(pos) == '<' && isLetter(html.charAt(pos + 1))) {
+            return html.substring(pos + 1, nameEnd(html, pos + 1)).toLowerCase();
+        }
+        return null;
+    }
+
+    private static String endTagName(String html, int pos) {
+        if (pos + 2 < html.length() && html.charAt(pos) == '<' && html.charAt(pos + 1) == '/' && isLetter(html.charAt(pos + 2))) {
+            return html.substring(pos + 2, nameEnd(html, pos + 2)).toLowerCase();
+        }
+        return null;
+    }
+
+    private static int nameEnd(String html, int pos) {
+        int length = html.length();
+        while (pos < length) {
+            char c = html.charAt(pos);
+            if (c == '>' || c == '/' || Character.isWhitespace(c)) {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the position after the end of the start tag, skipping quoted attribute values.
+     */
+    private static int tagEnd(String html, int pos) {
+        int length = html.length();
+        while (pos < length) {
+            char c = html.charAt(pos);
+            if (c == '>') {
+                return pos + 1;
+            }
+            if (c == '"' || c == '\'') {
+                pos = html.indexOf(c, pos + 1);
+                if (pos < 0) {
+                    return -1;
+                }
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns <code>true</code> if there is nothing but whitespace between the tag name and the tag end.
+     */
+    private static boolean isPlain(String html, int nameEnd, int end) {
+        for (int p = nameEnd; p < end - 1; p++) {
+            if (!Character.isWhitespace(html.charAt(p))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOfEndTag(String html, String name, int pos) {
+        String endTag = "</" + name;
+        while ((pos = html.indexOf("</", pos)) >= 0) {
+            if (html.regionMatches(true, pos, endTag, 0, endTag.length())) {
+                return pos;
+            }
+            pos += 2;
+        }
+        return -1;
+    }
+
+    private static int skipSpaces(String html, int pos) {
+        while (pos < html.length() && Character.isWhitespace(html.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
\ No newline at end of file
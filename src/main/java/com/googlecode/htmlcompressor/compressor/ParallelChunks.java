@@ -0,0 +1,96 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Processes the chunks of a document in parallel and joins the results in document order.
+ * Chunks are given as <code>start, end</code> pairs of offsets into the source. The text
+ * between two chunks is either copied as it is or dropped.
+ *
+ * @see HtmlCompressor#compress(String, ExecutorService)
+ * @see XmlCompressor#compress(String, ExecutorService)
+ */
+abstract class ParallelChunks {
+
+    /**
+     * Processes a single chunk. Called concurrently by the threads of the executor.
+     */
+    abstract String process(String chunk);
+
+    String run(final String source, int[] chunks, boolean keepGaps, ExecutorService executor) {
+        List<Future<String>> results = new ArrayList<Future<String>>(chunks.length / 2);
+        for (int i = 0; i < chunks.length; i += 2) {
+            final int start = chunks[i];
+            final int end = chunks[i + 1];
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return process(source.substring(start, end));
+                }
+            }));
+        }
+
+        StringBuilder sb = new StringBuilder(source.length());
+        try {
+            for (int i = 0; i < results.size(); i++) {
+                if (i > 0 && keepGaps) {
+                    sb.append(source, chunks[2 * i - 1], chunks[2 * i]);
+                }
+                sb.append(results.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            cancel(results);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while compressing chunks", e);
+        } catch (ExecutionException e) {
+            cancel(results);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        return sb.toString();
+    }
+
+    private static void cancel(List<Future<String>> results) {
+        for (Future<String> result : results) {
+            result.cancel(true);
+        }
+    }
+
+    /**
+     * Converts a list of chunk offsets to an array.
+     */
+    static int[] toArray(List<Integer> chunks) {
+        int[] result = new int[chunks.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = chunks.get(i);
+        }
+        return result;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * Replacement loops of the compressors, built on the string builder of the current
+ * {@link CompressionScratch} instead of the synchronized <code>StringBuffer</code> of
+ * {@link Matcher#appendReplacement(StringBuffer, String)}. Replacements are always copied
+ * literally, so they are neither parsed for group references nor quoted beforehand.
+ * A source without replaced matches is returned as it is.
+ *
+ * @see HtmlCompressor
+ * @see XmlCompressor
+ */
+final class Replacements {
+
+    private Replacements() {
+    }
+
+    /**
+     * Replaces every match with the given literal replacement.
+     */
+    static String replaceAll(Matcher matcher, String source, String replacement) {
+        if (!matcher.find()) {
+            return source;
+        }
+
+        StringBuilder sb = CompressionScratch.builder(source.length());
+        int last = 0;
+        do {
+            sb.append(source, last, matcher.start()).append(replacement);
+            last = matcher.end();
+        } while (matcher.find());
+        return sb.append(source, last, source.length()).toString();
+    }
+
+    /**
+     * Replaces every match with the text of its groups followed by the given literal suffix,
+     * like a replacement of <code>$1$2</code> plus the suffix would.
+     */
+    static String replaceWithGroups(Matcher matcher, String source, String suffix) {
+        if (!matcher.find()) {
+            return source;
+        }
+
+        StringBuilder sb = CompressionScratch.builder(source.length());
+        int last = 0;
+        do {
+            sb.append(source, last, matcher.start());
+            for (int group = 1; group <= matcher.groupCount(); group++) {
+                if (matcher.start(group) >= 0) {
+                    sb.append(source, matcher.start(group), matcher.end(group));
+                }
+            }
+            sb.append(suffix);
+            last = matcher.end();
+        } while (matcher.find());
+        return sb.append(source, last, source.length()).toString();
+    }
+
+    /**
+     * Replaces every placeholder with the preserved block whose index is captured by the first group.
+     * Placeholders without a block are kept.
+     */
+    static String returnBlocks(Matcher matcher, String source, List<String> blocks) {
+        if (blocks.isEmpty()) {
+            return source;
+        }
+
+        StringBuilder sb = null;
+        int last = 0;
+        while (matcher.find()) {
+            int i = parseIndex(source, matcher.start(1), matcher.end(1));
+            if (i < 0 || i >= blocks.size()) {
+                continue;
+            }
+            if (sb == null) {
+                sb = CompressionScratch.builder(source.length() + HtmlCompressor.totalLength(blocks));
+            }
+            sb.append(source, last, matcher.start()).append(blocks.get(i));
+            last = matcher.end();
+        }
+        return sb == null ? source : sb.append(source, last, source.length()).toString();
+    }
+
+    /**
+     * Returns the decimal number in the given range or <code>-1</code> if it is too large.
+     */
+    private static int parseIndex(String source, int start, int end) {
+        int index = 0;
+        for (int p = start; p < end; p++) {
+            index = index * 10 + source.charAt(p) - '0';
+            if (index < 0 || p - start > 9) {
+                return -1;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Appends the placeholder of a preserved block like <code>MessageFormat.format(template, index)</code>
+     * would, without parsing the template as a message format.
+     */
+    static void appendPlaceholder(StringBuilder sb, String template, int index) {
+        appendPlaceholder(sb, template, index, 0);
+    }
+
+    /**
+     * Appends a placeholder with two <code>{n,number,#}</code> arguments, like
+     * <code>MessageFormat.format(template, first, second)</code> would.
+     */
+    static void appendPlaceholder(StringBuilder sb, String template, int first, int second) {
+        int last = 0;
+        int argument = template.indexOf('{');
+        while (argument >= 0) {
+            int end = template.indexOf('}', argument);
+            sb.append(template, last, argument).append(template.charAt(argument + 1) == '0' ? first : second);
+            last = end + 1;
+            argument = template.indexOf('{', last);
+        }
+        sb.append(template, last, template.length());
+    }
+}
\ No newline at end of file
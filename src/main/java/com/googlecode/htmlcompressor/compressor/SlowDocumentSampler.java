@@ -0,0 +1,315 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps documents that took longer than a threshold to compress, so the worst cases
+ * could be reproduced and benchmarked offline. For every slow document the stage times,
+ * the size and a SHA-1 hash of the input are recorded.
+ * <p>If a spool directory is set, the beginning of every slow input is also saved there.
+ * Only the most recent samples are kept, older samples and their files are deleted.
+ * The same input is saved only once while it is kept.
+ * <p>The sampler is thread safe and could be shared by any number of compressors.
+ * Failures to write the spool directory never affect the compression.
+ *
+ * @see HtmlCompressor#setSlowDocumentSampler(SlowDocumentSampler)
+ * @see XmlCompressor#setSlowDocumentSampler(SlowDocumentSampler)
+ */
+public class SlowDocumentSampler {
+
+    public static final int DEFAULT_MAX_SAMPLES = 20;
+    public static final int DEFAULT_MAX_INPUT_SIZE = 256 * 1024;
+
+    private final long threshold;
+    private File spoolDirectory = null;
+    private int maxSamples = DEFAULT_MAX_SAMPLES;
+    private int maxInputSize = DEFAULT_MAX_INPUT_SIZE;
+
+    private final LinkedList<Sample> samples = new LinkedList<Sample>();
+
+    /**
+     * @param threshold minimal compression time of a sampled document
+     * @param unit unit of the threshold
+     */
+    public SlowDocumentSampler(long threshold, TimeUnit unit) {
+        this.threshold = unit.toNanos(threshold);
+    }
+
+    /**
+     * Returns <code>true</code> if a document with the given compression time should be sampled.
+     *
+     * @param time compression time in nanoseconds
+     * @return <code>true</code> if the time exceeds the threshold
+     */
+    public boolean isSlow(long time) {
+        return time >= threshold;
+    }
+
+    /**
+     * Records a slow document.
+     *
+     * @param type type of the document, e.g. <code>html</code>, used as file extension
+     * @param source uncompressed document
+     * @param time compression time in nanoseconds
+     * @param stageTimes description of the time spent in each compression stage
+     */
+    public void sample(String type, String source, long time, String stageTimes) {
+        //hashing and saving the input happen outside the lock, so concurrent samples do not wait for them
+        String hash = hash(source);
+
+        File directory;
+        int inputSize;
+        File file;
+        synchronized (this) {
+            directory = spoolDirectory;
+            inputSize = maxInputSize;
+            file = findFile(hash);
+        }
+
+        File spooled = null;
+        if (file == null && directory != null) {
+            spooled = spool(directory, inputSize, type, hash, source);
+        }
+
+        List<File> deleted = new ArrayList<File>();
+        synchronized (this) {
+            //save each input only once, also if it was saved or evicted meanwhile
+            file = findFile(hash);
+            if (file == null) {
+                file = spooled;
+            } else if (spooled != null && !spooled.equals(file)) {
+                deleted.add(spooled);
+            }
+
+            samples.addLast(new Sample(type, source.length(), time, hash, stageTimes, file));
+            while (samples.size() > maxSamples) {
+                File evicted = evict(samples.removeFirst());
+                if (evicted != null) {
+                    deleted.add(evicted);
+                }
+            }
+        }
+
+        for (File evicted : deleted) {
+            evicted.delete();
+        }
+    }
+
+    private File findFile(String hash) {
+        for (Sample sample : samples) {
+            if (sample.getHash().equals(hash) && sample.getFile() != null) {
+                return sample.getFile();
+            }
+        }
+        return null;
+    }
+
+    private static File spool(File directory, int inputSize, String type, String hash, String source) {
+        File file = new File(directory, type + "-" + System.currentTimeMillis() + "-" + hash.substring(0, 12) + "." + type);
+        Writer writer = null;
+        try {
+            directory.mkdirs();
+            writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write(source, 0, Math.min(source.length(), inputSize));
+            return file;
+        } catch (IOException e) {
+            //sampling must never break compression
+            return null;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return file of the evicted sample that is no longer used by any kept sample
+     */
+    private File evict(Sample evicted) {
+        if (evicted.getFile() == null) {
+            return null;
+        }
+        for (Sample sample : samples) {
+            if (evicted.getFile().equals(sample.getFile())) {
+                return null;
+            }
+        }
+        return evicted.getFile();
+    }
+
+    private static String hash(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b & 0xFF));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the kept samples, oldest first.
+     *
+     * @return copy of the kept samples
+     */
+    public synchronized List<Sample> getSamples() {
+        return new ArrayList<Sample>(samples);
+    }
+
+    /**
+     * Removes all samples and their files.
+     */
+    public synchronized void clear() {
+        while (!samples.isEmpty()) {
+            File evicted = evict(samples.removeFirst());
+            if (evicted != null) {
+                evicted.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the minimal compression time of a sampled document in nanoseconds.
+     *
+     * @return threshold in nanoseconds
+     */
+    public long getThreshold() {
+        return threshold;
+    }
+
+    public synchronized File getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * Sets the directory where slow inputs are saved. Default is <code>null</code>,
+     * so only the stage times and the hash are recorded.
+     *
+     * @param spoolDirectory directory for slow inputs, created if missing
+     */
+    public synchronized void setSpoolDirectory(File spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public synchronized int getMaxSamples() {
+        return maxSamples;
+    }
+
+    /**
+     * Sets the number of recent samples to keep. Default is {@value #DEFAULT_MAX_SAMPLES}.
+     *
+     * @param maxSamples number of samples to keep
+     */
+    public synchronized void setMaxSamples(int maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    public synchronized int getMaxInputSize() {
+        return maxInputSize;
+    }
+
+    /**
+     * Sets the number of characters saved from the beginning of a slow input.
+     * Default is {@value #DEFAULT_MAX_INPUT_SIZE}.
+     *
+     * @param maxInputSize maximal number of characters to save
+     */
+    public synchronized void setMaxInputSize(int maxInputSize) {
+        this.maxInputSize = maxInputSize;
+    }
+
+    /**
+     * Slow document recorded by a {@link SlowDocumentSampler}.
+     */
+    public static final class Sample {
+
+        private final String type;
+        private final int size;
+        private final long time;
+        private final String hash;
+        private final String stageTimes;
+        private final File file;
+
+        private Sample(String type, int size, long time, String hash, String stageTimes, File file) {
+            this.type = type;
+            this.size = size;
+            this.time = time;
+            this.hash = hash;
+            this.stageTimes = stageTimes;
+            this.file = file;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return compression time in nanoseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return SHA-1 hash of the whole input in hex
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        public String getStageTimes() {
+            return stageTimes;
+        }
+
+        /**
+         * @return file with the beginning of the input or <code>null</code> if not saved
+         */
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Type=%s, Size=%d, Time=%dns, Hash=%s, Stages={%s}, File=%s", type, size, time, hash, stageTimes, file);
+        }
+    }
+}
\ No newline at end of file
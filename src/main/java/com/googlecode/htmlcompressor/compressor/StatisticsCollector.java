@@ -0,0 +1,388 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe collector that aggregates statistics of any number of compress calls,
+ * e.g. since the start of an application. The same collector could be shared by all
+ * compressors of an application, see {@link HtmlCompressor#setStatisticsCollector(StatisticsCollector)}.
+ * <p>All counters are <code>long</code> values that are updated without locks. Besides the totals,
+ * the collector keeps histograms of the compression time and the size of documents, so
+ * percentiles could be reported.
+ * <p>A {@link Snapshot} is a consistent copy of each single counter, but a document compressed
+ * while the snapshot is taken might only be partly included. {@link #snapshotAndReset()} never
+ * loses counts, they are reported in the next snapshot instead.
+ *
+ * @see HtmlCompressorStatistics
+ */
+public class StatisticsCollector {
+
+    /**
+     * Stage that takes out preserved blocks.
+     */
+    public static final int STAGE_PRESERVE = 0;
+
+    /**
+     * Stage that compresses the HTML without preserved blocks.
+     */
+    public static final int STAGE_HTML = 1;
+
+    /**
+     * Stage that compresses the preserved blocks, i.e. inline scripts and styles.
+     */
+    public static final int STAGE_BLOCKS = 2;
+
+    /**
+     * Stage that puts preserved blocks back.
+     */
+    public static final int STAGE_RETURN = 3;
+
+    /**
+     * Inline <code>&lt;script></code> blocks.
+     */
+    public static final int BLOCK_SCRIPT = 0;
+
+    /**
+     * Inline <code>&lt;style></code> blocks and <code>style</code> attributes.
+     */
+    public static final int BLOCK_STYLE = 1;
+
+    /**
+     * Inline event handlers.
+     */
+    public static final int BLOCK_EVENT = 2;
+
+    /**
+     * Inline <code>&lt;svg></code> images.
+     */
+    public static final int BLOCK_SVG = 3;
+
+    private static final String[] STAGE_NAMES = {"preserve", "html", "blocks", "return"};
+    private static final String[] BLOCK_NAMES = {"script", "style", "event", "svg"};
+
+    //counter layout
+    private static final int DOCUMENTS = 0;
+    private static final int ORIGINAL_SIZE = 1;
+    private static final int COMPRESSED_SIZE = 2;
+    private static final int TIME = 3;
+    private static final int BLOCK_FAILURES = 4;
+    private static final int SKIPPED_DOCUMENTS = 5;
+    private static final int SKIPPED_SIZE = 6;
+    private static final int STAGE_TIME = 7;
+    private static final int BLOCK_ORIGINAL_SIZE = STAGE_TIME + STAGE_NAMES.length;
+    private static final int BLOCK_COMPRESSED_SIZE = BLOCK_ORIGINAL_SIZE + BLOCK_NAMES.length;
+    private static final int COUNTERS = BLOCK_COMPRESSED_SIZE + BLOCK_NAMES.length;
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+    private final Histogram timeHistogram = new Histogram();
+    private final Histogram sizeHistogram = new Histogram();
+
+    /**
+     * Adds a compressed document.
+     *
+     * @param originalSize size of the document before compression
+     * @param compressedSize size of the compression result
+     * @param time compression time in nanoseconds
+     */
+    public void recordDocument(long originalSize, long compressedSize, long time) {
+        counters.incrementAndGet(DOCUMENTS);
+        counters.addAndGet(ORIGINAL_SIZE, originalSize);
+        counters.addAndGet(COMPRESSED_SIZE, compressedSize);
+        counters.addAndGet(TIME, time);
+        timeHistogram.record(time);
+        sizeHistogram.record(originalSize);
+    }
+
+    /**
+     * Adds the time spent in a compression stage.
+     *
+     * @param stage one of the <code>STAGE_*</code> constants
+     * @param time time in nanoseconds
+     */
+    public void recordStage(int stage, long time) {
+        counters.addAndGet(STAGE_TIME + stage, time);
+    }
+
+    /**
+     * Adds the sizes of all blocks of a type within a document.
+     *
+     * @param blockType one of the <code>BLOCK_*</code> constants
+     * @param originalSize size of the blocks before compression
+     * @param compressedSize size of the blocks after compression
+     */
+    public void recordBlocks(int blockType, long originalSize, long compressedSize) {
+        counters.addAndGet(BLOCK_ORIGINAL_SIZE + blockType, originalSize);
+        counters.addAndGet(BLOCK_COMPRESSED_SIZE + blockType, compressedSize);
+    }
+
+    /**
+     * Adds a document that was returned unchanged by the skip heuristics.
+     *
+     * @param size size of the document
+     * @see HtmlCompressor#setMinimumSize(int)
+     * @see HtmlCompressor#setMinimumExpectedGain(double)
+     */
+    public void recordSkippedDocument(long size) {
+        counters.incrementAndGet(SKIPPED_DOCUMENTS);
+        counters.addAndGet(SKIPPED_SIZE, size);
+    }
+
+    /**
+     * Adds a script or style block whose compressor failed with an exception.
+     */
+    public void recordBlockFailure() {
+        counters.incrementAndGet(BLOCK_FAILURES);
+    }
+
+    /**
+     * Returns the number of compressed documents without copying the other statistics.
+     *
+     * @return number of documents
+     */
+    public long getDocuments() {
+        return counters.get(DOCUMENTS);
+    }
+
+    public long getOriginalSize() {
+        return counters.get(ORIGINAL_SIZE);
+    }
+
+    public long getCompressedSize() {
+        return counters.get(COMPRESSED_SIZE);
+    }
+
+    public long getTime() {
+        return counters.get(TIME);
+    }
+
+    public long getSkippedDocuments() {
+        return counters.get(SKIPPED_DOCUMENTS);
+    }
+
+    public long getBlockFailures() {
+        return counters.get(BLOCK_FAILURES);
+    }
+
+    /**
+     * @param stage one of the <code>STAGE_*</code> constants
+     * @return total time spent in the stage
+     */
+    public long getStageTime(int stage) {
+        return counters.get(STAGE_TIME + stage);
+    }
+
+    /**
+     * @param blockType one of the <code>BLOCK_*</code> constants
+     * @return total size of the blocks before compression
+     */
+    public long getBlockOriginalSize(int blockType) {
+        return counters.get(BLOCK_ORIGINAL_SIZE + blockType);
+    }
+
+    /**
+     * @param blockType one of the <code>BLOCK_*</code> constants
+     * @return total size of the blocks after compression
+     */
+    public long getBlockCompressedSize(int blockType) {
+        return counters.get(BLOCK_COMPRESSED_SIZE + blockType);
+    }
+
+    /**
+     * Returns the compression time that the given percentage of documents did not exceed,
+     * copying only the time histogram.
+     *
+     * @param percentile percentile between <code>0</code> and <code>100</code>, e.g. <code>99</code>
+     * @return upper bound of the compression time
+     */
+    public long getTimePercentile(double percentile) {
+        return Histogram.percentile(timeHistogram.snapshot(false), percentile);
+    }
+
+    /**
+     * Returns a copy of all statistics collected so far.
+     *
+     * @return current statistics
+     */
+    public Snapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * Returns a copy of all statistics collected so far and starts over.
+     *
+     * @return statistics since the last reset
+     */
+    public Snapshot snapshotAndReset() {
+        return snapshot(true);
+    }
+
+    /**
+     * Clears all statistics.
+     */
+    public void reset() {
+        for (int i = 0; i < COUNTERS; i++) {
+            counters.set(i, 0);
+        }
+        timeHistogram.reset();
+        sizeHistogram.reset();
+    }
+
+    private Snapshot snapshot(boolean reset) {
+        long[] values = new long[COUNTERS];
+        for (int i = 0; i < COUNTERS; i++) {
+            values[i] = reset ? counters.getAndSet(i, 0) : counters.get(i);
+        }
+        return new Snapshot(values, timeHistogram.snapshot(reset), sizeHistogram.snapshot(reset));
+    }
+
+    /**
+     * Immutable copy of the statistics of a {@link StatisticsCollector}.
+     * Sizes are given in characters, times in nanoseconds.
+     */
+    public static final class Snapshot {
+
+        private final long[] values;
+        private final long[] timeCounts;
+        private final long[] sizeCounts;
+
+        private Snapshot(long[] values, long[] timeCounts, long[] sizeCounts) {
+            this.values = values;
+            this.timeCounts = timeCounts;
+            this.sizeCounts = sizeCounts;
+        }
+
+        public long getDocuments() {
+            return values[DOCUMENTS];
+        }
+
+        public long getOriginalSize() {
+            return values[ORIGINAL_SIZE];
+        }
+
+        public long getCompressedSize() {
+            return values[COMPRESSED_SIZE];
+        }
+
+        public long getSavedSize() {
+            return values[ORIGINAL_SIZE] - values[COMPRESSED_SIZE];
+        }
+
+        public long getTime() {
+            return values[TIME];
+        }
+
+        public long getSkippedDocuments() {
+            return values[SKIPPED_DOCUMENTS];
+        }
+
+        public long getSkippedSize() {
+            return values[SKIPPED_SIZE];
+        }
+
+        public long getBlockFailures() {
+            return values[BLOCK_FAILURES];
+        }
+
+        /**
+         * @param stage one of the <code>STAGE_*</code> constants
+         * @return total time spent in the stage
+         */
+        public long getStageTime(int stage) {
+            return values[STAGE_TIME + stage];
+        }
+
+        /**
+         * @param blockType one of the <code>BLOCK_*</code> constants
+         * @return total size of the blocks before compression
+         */
+        public long getBlockOriginalSize(int blockType) {
+            return values[BLOCK_ORIGINAL_SIZE + blockType];
+        }
+
+        /**
+         * @param blockType one of the <code>BLOCK_*</code> constants
+         * @return total size of the blocks after compression
+         */
+        public long getBlockCompressedSize(int blockType) {
+            return values[BLOCK_COMPRESSED_SIZE + blockType];
+        }
+
+        /**
+         * Returns the compression time that the given percentage of documents did not exceed.
+         *
+         * @param percentile percentile between <code>0</code> and <code>100</code>, e.g. <code>99</code>
+         * @return upper bound of the compression time
+         */
+        public long getTimePercentile(double percentile) {
+            return Histogram.percentile(timeCounts, percentile);
+        }
+
+        /**
+         * Returns the document size that the given percentage of documents did not exceed.
+         *
+         * @param percentile percentile between <code>0</code> and <code>100</code>, e.g. <code>99</code>
+         * @return upper bound of the document size
+         */
+        public long getSizePercentile(double percentile) {
+            return Histogram.percentile(sizeCounts, percentile);
+        }
+
+        /**
+         * Returns the statistics as a JSON object.
+         *
+         * @return JSON object with totals, stage times, block sizes and percentiles
+         * @see StatisticsFormat
+         */
+        public String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"documents\":").append(getDocuments());
+            json.append(",\"originalSize\":").append(getOriginalSize());
+            json.append(",\"compressedSize\":").append(getCompressedSize());
+            json.append(",\"time\":").append(getTime());
+            json.append(",\"skippedDocuments\":").append(getSkippedDocuments());
+            json.append(",\"skippedSize\":").append(getSkippedSize());
+            json.append(",\"blockFailures\":").append(getBlockFailures());
+
+            json.append(",\"stageTime\":{");
+            for (int i = 0; i < STAGE_NAMES.length; i++) {
+                json.append(i > 0 ? "," : "").append(StatisticsFormat.toJsonString(STAGE_NAMES[i])).append(':').append(getStageTime(i));
+            }
+
+            json.append("},\"blocks\":{");
+            for (int i = 0; i < BLOCK_NAMES.length; i++) {
+                json.append(i > 0 ? "," : "").append(StatisticsFormat.toJsonString(BLOCK_NAMES[i]));
+                json.append(":{\"originalSize\":").append(getBlockOriginalSize(i)).append(",\"compressedSize\":").append(getBlockCompressedSize(i)).append('}');
+            }
+
+            json.append("},\"timePercentiles\":").append(formatPercentiles(timeCounts));
+            json.append(",\"sizePercentiles\":").append(formatPercentiles(sizeCounts));
+            return json.append('}').toString();
+        }
+
+        private String formatPercentiles(long[] counts) {
+            return String.format("{\"p50\":%d,\"p95\":%d,\"p99\":%d}", Histogram.percentile(counts, 50), Histogram.percentile(counts, 95), Histogram.percentile(counts, 99));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Documents=%d, Original=%d, Compressed=%d, Time=%d, Time p50/p95/p99=%d/%d/%d, Size p50/p95/p99=%d/%d/%d", getDocuments(), getOriginalSize(), getCompressedSize(), getTime(),
+                getTimePercentile(50), getTimePercentile(95), getTimePercentile(99), getSizePercentile(50), getSizePercentile(95), getSizePercentile(99));
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+/**
+ * Machine readable formats for compression statistics and analyzer reports. Values are
+ * written without any additional library, so this class only provides the quoting rules.
+ *
+ * @see HtmlCompressorStatistics#toJson()
+ * @see HtmlCompressorStatistics#toCsv()
+ */
+public final class StatisticsFormat {
+
+    public static final String TEXT = "text";
+    public static final String JSON = "json";
+    public static final String CSV = "csv";
+
+    private StatisticsFormat() {
+    }
+
+    /**
+     * Returns the given value as a quoted JSON string or <code>null</code>.
+     *
+     * @param value value to quote, might be <code>null</code>
+     * @return JSON string literal
+     */
+    public static String toJsonString(String value) {
+        if (value == null) {
+            return "null";
+        }
+
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Returns the given value as a CSV field. The value is quoted only if it contains
+     * separators, quotes or line breaks.
+     *
+     * @param value value to quote, <code>null</code> is written as an empty field
+     * @return CSV field
+     */
+    public static String toCsvField(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,321 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Class that compresses SVG images. On top of the {@link XmlCompressor} rules it removes
+ * editor metadata and namespaces, rounds the coordinates of path data and point lists
+ * to a given precision and removes attributes that are set to their default value.
+ * It is used by {@link HtmlCompressor} for inline <code>&lt;svg></code> images and could
+ * be used for standalone SVG files as well.
+ *
+ * @see HtmlCompressor#setCompressSvg(boolean)
+ */
+public class SvgCompressor extends XmlCompressor {
+
+    private int precision = 3;
+
+    //elements with x and y attributes defaulting to 0
+    private static final Set<String> ZERO_POSITION_ELEMENTS = new HashSet<String>(Arrays.asList("rect", "use", "image", "svg", "foreignObject", "pattern"));
+
+    //editor namespaces
+    protected static final String editorPrefixes = "inkscape|sodipodi|sketch|serif";
+
+    //compiled regex patterns
+    protected static final Pattern metadataPattern = Pattern.compile("<(metadata|(?:" + editorPrefixes + "):[\\w.-]+)\\b[^>]*?(?:/>|>.*?</\\1\\s*>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    protected static final Pattern editorAttributePattern = Pattern.compile("\\s(?:xmlns:)?(?:" + editorPrefixes + ")(?::[\\w.-]+)?\\s*=\\s*(?:\"[^\"]*\"|'[^']*')", Pattern.CASE_INSENSITIVE);
+    protected static final Pattern metadataNamespacePattern = Pattern.compile("\\sxmlns:(rdf|cc|dc)\\s*=\\s*(?:\"[^\"]*\"|'[^']*')");
+    protected static final Pattern tagPattern = Pattern.compile("<([a-zA-Z][\\w:.-]*)(\\s[^>]*?)?(/?)>", Pattern.DOTALL);
+    protected static final Pattern attributePattern = Pattern.compile("(\\s+)([\\w:.-]+)\\s*=\\s*(\"[^\"]*\"|'[^']*')");
+    protected static final Pattern textSpacePattern = Pattern.compile(">([^<]*?\\s\\s[^<]*?)<");
+
+    @Override
+    protected String processXml(String xml) {
+        xml = super.processXml(xml);
+
+        //remove editor metadata
+        xml = removeMetadata(xml);
+
+        //round coordinates and remove default attributes
+        xml = rewriteAttributes(xml);
+
+        //collapse spaces in text, they are only kept with xml:space
+        if (xml.indexOf("xml:space") < 0) {
+            xml = collapseTextSpaces(xml);
+        }
+
+        return xml;
+    }
+
+    protected String removeMetadata(String xml) {
+        xml = metadataPattern.matcher(xml).replaceAll("");
+        xml = editorAttributePattern.matcher(xml).replaceAll("");
+
+        //namespaces of the metadata, unless still used
+        Matcher matcher = CompressionScratch.matcher(metadataNamespacePattern, xml);
+        StringBuilder sb = CompressionScratch.builder(xml.length());
+        int last = 0;
+        while (matcher.find()) {
+            String prefix = matcher.group(1) + ":";
+            boolean used = xml.indexOf("<" + prefix) >= 0 || xml.indexOf(" " + prefix) >= 0;
+            if (!used) {
+                sb.append(xml, last, matcher.start());
+                last = matcher.end();
+            }
+        }
+        return last == 0 ? xml : sb.append(xml, last, xml.length()).toString();
+    }
+
+    protected String rewriteAttributes(String xml) {
+        Matcher tagMatcher = tagPattern.matcher(xml);
+        StringBuilder sb = null;
+        int last = 0;
+        while (tagMatcher.find()) {
+            if (tagMatcher.group(2) == null) {
+                continue;
+            }
+            String tag = tagMatcher.group(1);
+            String attributes = tagMatcher.group(2);
+            String result = rewriteAttributes(tag, attributes);
+            if (!result.equals(attributes)) {
+                if (sb == null) {
+                    sb = new StringBuilder(xml.length());
+                }
+                sb.append(xml, last, tagMatcher.start(2)).append(result);
+                last = tagMatcher.end(2);
+            }
+        }
+        return sb == null ? xml : sb.append(xml, last, xml.length()).toString();
+    }
+
+    private String rewriteAttributes(String tag, String attributes) {
+        Matcher matcher = attributePattern.matcher(attributes);
+        StringBuilder sb = new StringBuilder(attributes.length());
+        int last = 0;
+        while (matcher.find()) {
+            String name = matcher.group(2);
+            String quoted = matcher.group(3);
+            String value = quoted.substring(1, quoted.length() - 1);
+
+            sb.append(attributes, last, matcher.start());
+            last = matcher.end();
+            if (isDefaultValue(tag, name, value)) {
+                continue;
+            }
+
+            String rounded = null;
+            if (precision >= 0 && (name.equals("d") || name.equals("points"))) {
+                rounded = roundNumbers(value, name.equals("d"));
+            }
+            if (rounded == null) {
+                sb.append(matcher.group());
+            } else {
+                sb.append(matcher.group(1)).append(name).append('=').append(quoted.charAt(0)).append(rounded).append(quoted.charAt(0));
+            }
+        }
+        return sb.append(attributes, last, attributes.length()).toString();
+    }
+
+    /**
+     * Returns <code>true</code> for attributes that are set to their default value and that are
+     * not inherited, so removing them never changes the rendering.
+     */
+    protected boolean isDefaultValue(String tag, String name, String value) {
+        if (name.equals("opacity")) {
+            return value.equals("1");
+        }
+        if (name.equals("x") || name.equals("y")) {
+            //filters and masks default to -10%, text continues from the previous chunk
+            return value.equals("0") && ZERO_POSITION_ELEMENTS.contains(tag);
+        }
+        if (name.equals("version")) {
+            return tag.equals("svg");
+        }
+        return false;
+    }
+
+    /**
+     * Rounds the numbers of path data or a point list. Arc flags are kept as they are.
+     *
+     * @return rounded data or <code>null</code> if the data could not be read
+     */
+    private String roundNumbers(String data, boolean path) {
+        StringBuilder sb = new StringBuilder(data.length());
+        char command = 0;
+        int parameter = 0;
+        //the number written last if nothing followed it yet
+        String previous = null;
+        int i = 0;
+        int length = data.length();
+        while (i < length) {
+            char c = data.charAt(i);
+            if (c == ' ' || c == ',' || c == '\t' || c == '\n' || c == '\r') {
+                sb.append(c);
+                previous = null;
+                i++;
+            } else if (path && ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) && c != 'e' && c != 'E') {
+                command = c;
+                parameter = 0;
+                sb.append(c);
+                previous = null;
+                i++;
+            } else if ((command == 'a' || command == 'A') && (parameter % 7 == 3 || parameter % 7 == 4) && (c == '0' || c == '1')) {
+                //flags are single characters and could be written without separator
+                sb.append(c);
+                previous = null;
+                parameter++;
+                i++;
+            } else {
+                int end = numberEnd(data, i);
+                if (end == i) {
+                    return null;
+                }
+                String number = roundNumber(data.substring(i, end));
+                if (previous != null && needsSeparator(previous, number)) {
+                    //the sign or the dot that kept the numbers apart was rounded away
+                    sb.append(' ');
+                }
+                sb.append(number);
+                previous = number;
+                parameter++;
+                i = end;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns <code>true</code> if the number would continue the directly preceding number.
+     */
+    private static boolean needsSeparator(String previous, String number) {
+        char first = number.charAt(0);
+        if (isDigit(first)) {
+            return true;
+        }
+        //a dot starts a new number only after a fraction or an exponent
+        return first == '.' && previous.indexOf('.') < 0 && previous.indexOf('e') < 0 && previous.indexOf('E') < 0;
+    }
+
+    private static int numberEnd(String data, int start) {
+        int i = start;
+        int length = data.length();
+        if (i < length && (data.charAt(i) == '-' || data.charAt(i) == '+')) {
+            i++;
+        }
+        int digits = i;
+        while (i < length && isDigit(data.charAt(i))) {
+            i++;
+        }
+        if (i < length && data.charAt(i) == '.') {
+            i++;
+            while (i < length && isDigit(data.charAt(i))) {
+                i++;
+            }
+        }
+        if (i == digits || (i == digits + 1 && data.charAt(digits) == '.')) {
+            return start;
+        }
+        if (i < length && (data.charAt(i) == 'e' || data.charAt(i) == 'E')) {
+            int exponent = i + 1;
+            if (exponent < length && (data.charAt(exponent) == '-' || data.charAt(exponent) == '+')) {
+                exponent++;
+            }
+            if (exponent < length && isDigit(data.charAt(exponent))) {
+                i = exponent;
+                while (i < length && isDigit(data.charAt(i))) {
+                    i++;
+                }
+            }
+        }
+        return i;
+    }
+
+    private String roundNumber(String number) {
+        int dot = number.indexOf('.');
+        if (dot < 0 || number.length() - dot - 1 <= precision || number.indexOf('e') >= 0 || number.indexOf('E') >= 0) {
+            return number;
+        }
+
+        BigDecimal rounded = new BigDecimal(number).setScale(precision, RoundingMode.HALF_UP);
+        if (rounded.signum() == 0) {
+            return "0";
+        }
+
+        String result = rounded.stripTrailingZeros().toPlainString();
+        if (result.startsWith("0.")) {
+            result = result.substring(1);
+        } else if (result.startsWith("-0.")) {
+            result = "-" + result.substring(2);
+        }
+        return result;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    protected String collapseTextSpaces(String xml) {
+        Matcher matcher = CompressionScratch.matcher(textSpacePattern, xml);
+        StringBuilder sb = CompressionScratch.builder(xml.length());
+        int last = 0;
+        while (matcher.find()) {
+            sb.append(xml, last, matcher.start(1));
+
+            //collapse runs of spaces into single spaces
+            boolean space = false;
+            for (int p = matcher.start(1); p < matcher.end(1); p++) {
+                char c = xml.charAt(p);
+                if (!isSpace(c)) {
+                    sb.append(c);
+                } else if (!space) {
+                    sb.append(' ');
+                }
+                space = isSpace(c);
+            }
+            last = matcher.end(1);
+        }
+        return last == 0 ? xml : sb.append(xml, last, xml.length()).toString();
+    }
+
+    /**
+     * Returns the number of decimal places coordinates are rounded to.
+     *
+     * @return number of decimal places, <code>-1</code> if coordinates are not rounded
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Sets the number of decimal places the coordinates of path data (<code>d</code>) and point
+     * lists (<code>points</code>) are rounded to. Numbers with fewer decimal places are not changed.
+     * Default is <code>3</code>.
+     *
+     * @param precision number of decimal places, <code>-1</code> to keep coordinates as they are
+     */
+    public void setPrecision(int precision) {
+        this.precision = precision;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,349 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+/**
+ * Reusable buffer that holds the attributes of a single start tag as offsets
+ * into the source document. The buffer is reset for every tag, so parsing
+ * a document allocates nothing beyond the initial arrays.
+ *
+ * @see HtmlCompressor
+ */
+class TagAttributeBuffer {
+
+    //attribute rewrite actions
+    static final int KEEP = 0;
+    static final int REMOVE = 1;
+    static final int DROP_VALUE = 2;
+
+    //marker for attributes without value
+    static final char NO_VALUE = 0xFFFF;
+
+    private CharSequence source;
+
+    private int nameStart;
+    private int nameEnd;
+    private boolean selfClosing;
+    private int endSpaceStart;
+    private int endSpaceEnd;
+
+    private int size = 0;
+    private int[] spaceStarts = new int[8];
+    private int[] nameStarts = new int[8];
+    private int[] nameEnds = new int[8];
+    private int[] valueStarts = new int[8];
+    private int[] valueEnds = new int[8];
+    private char[] quotes = new char[8];
+    private int[] actions = new int[8];
+    private int[] valueSkips = new int[8];
+    private int[] order = new int[8];
+
+    /**
+     * Clears the buffer for the tag with the given name.
+     */
+    void reset(CharSequence source, int nameStart, int nameEnd) {
+        this.source = source;
+        this.nameStart = nameStart;
+        this.nameEnd = nameEnd;
+        this.selfClosing = false;
+        this.size = 0;
+    }
+
+    /**
+     * Adds an attribute. <code>quote</code> is <code>0</code> for unquoted values
+     * and {@link #NO_VALUE} for attributes without value.
+     */
+    void add(int spaceStart, int nameStart, int nameEnd, int valueStart, int valueEnd, char quote) {
+        if (size == nameStarts.length) {
+            grow();
+        }
+
+        spaceStarts[size] = spaceStart;
+        nameStarts[size] = nameStart;
+        nameEnds[size] = nameEnd;
+        valueStarts[size] = valueStart;
+        valueEnds[size] = valueEnd;
+        quotes[size] = quote;
+        actions[size] = KEEP;
+        valueSkips[size] = 0;
+        order[size] = size;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = size * 2;
+        spaceStarts = copyOf(spaceStarts, capacity);
+        nameStarts = copyOf(nameStarts, capacity);
+        nameEnds = copyOf(nameEnds, capacity);
+        valueStarts = copyOf(valueStarts, capacity);
+        valueEnds = copyOf(valueEnds, capacity);
+        actions = copyOf(actions, capacity);
+        valueSkips = copyOf(valueSkips, capacity);
+        order = copyOf(order, capacity);
+
+        char[] newQuotes = new char[capacity];
+        System.arraycopy(quotes, 0, newQuotes, 0, size);
+        quotes = newQuotes;
+    }
+
+    private int[] copyOf(int[] array, int capacity) {
+        int[] result = new int[capacity];
+        System.arraycopy(array, 0, result, 0, size);
+        return result;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isSelfClosing() {
+        return selfClosing;
+    }
+
+    void setSelfClosing(boolean selfClosing) {
+        this.selfClosing = selfClosing;
+    }
+
+    /**
+     * Sets the bounds of the spaces between the last attribute and the tag end.
+     */
+    void setEndSpace(int endSpaceStart, int endSpaceEnd) {
+        this.endSpaceStart = endSpaceStart;
+        this.endSpaceEnd = endSpaceEnd;
+    }
+
+    int getEndSpaceStart() {
+        return endSpaceStart;
+    }
+
+    int getEndSpaceEnd() {
+        return endSpaceEnd;
+    }
+
+    int getNameStart() {
+        return nameStart;
+    }
+
+    int getNameEnd() {
+        return nameEnd;
+    }
+
+    /**
+     * Returns <code>true</code> if the tag name equals the given lower case name, ignoring case.
+     */
+    boolean isTag(String name) {
+        return regionEquals(nameStart, nameEnd, name);
+    }
+
+    /**
+     * Returns the index of the first attribute with the given lower case name or <code>-1</code>.
+     */
+    int indexOf(String name) {
+        for (int i = 0; i < size; i++) {
+            if (isName(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    boolean isName(int i, String name) {
+        return regionEquals(nameStarts[i], nameEnds[i], name);
+    }
+
+    boolean hasValue(int i) {
+        return quotes[i] != NO_VALUE;
+    }
+
+    boolean isValue(int i, String value) {
+        return hasValue(i) && regionEquals(valueStarts[i], valueEnds[i], value);
+    }
+
+    boolean valueStartsWith(int i, String prefix) {
+        return hasValue(i) && valueEnds[i] - valueStarts[i] >= prefix.length()
+            && regionEquals(valueStarts[i], valueStarts[i] + prefix.length(), prefix);
+    }
+
+    /**
+     * Returns <code>true</code> if the value of the attribute consists of word characters only.
+     */
+    boolean isWordValue(int i) {
+        for (int p = valueStarts[i]; p < valueEnds[i]; p++) {
+            char c = source.charAt(p);
+            if (!(c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the value could be written without quotes.
+     */
+    boolean isSafeUnquotedValue(int i) {
+        if (valueEnds[i] == valueStarts[i]) {
+            return false;
+        }
+        for (int p = valueStarts[i]; p < valueEnds[i]; p++) {
+            char c = source.charAt(p);
+            if (!(c == '-' || c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the value equals the given lower case token,
+     * optionally preceded by <code>alternate</code>.
+     */
+    boolean isRelValue(int i, String token) {
+        if (!hasValue(i)) {
+            return false;
+        }
+        int start = valueStarts[i];
+        int end = valueEnds[i];
+        if (regionEquals(start, end, token)) {
+            return true;
+        }
+        if (end - start <= 9 + token.length() || !regionEquals(start, start + 9, "alternate")) {
+            return false;
+        }
+        int p = start + 9;
+        if (!Character.isWhitespace(source.charAt(p))) {
+            return false;
+        }
+        while (p < end && Character.isWhitespace(source.charAt(p))) {
+            p++;
+        }
+        return regionEquals(p, end, token);
+    }
+
+    /**
+     * Returns <code>true</code> if the value contains the given character.
+     */
+    boolean valueContains(int i, char c) {
+        for (int p = valueStarts[i]; p < valueEnds[i]; p++) {
+            if (source.charAt(p) == c) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns <code>true</code> if the name contains one of the given characters.
+     */
+    boolean nameContainsAny(int i, String chars) {
+        for (int p = nameStarts[i]; p < nameEnds[i]; p++) {
+            if (chars.indexOf(source.charAt(p)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sorts the attributes by their names ignoring case. Attributes with equal names keep
+     * their order, so the first of duplicate attributes still wins.
+     *
+     * @see #getOrder(int)
+     */
+    void sortByName() {
+        for (int i = 1; i < size; i++) {
+            int attribute = order[i];
+            int j = i;
+            while (j > 0 && compareNames(order[j - 1], attribute) > 0) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = attribute;
+        }
+    }
+
+    private int compareNames(int a, int b) {
+        int lengthA = nameEnds[a] - nameStarts[a];
+        int lengthB = nameEnds[b] - nameStarts[b];
+        for (int p = 0; p < lengthA && p < lengthB; p++) {
+            char c1 = Character.toLowerCase(source.charAt(nameStarts[a] + p));
+            char c2 = Character.toLowerCase(source.charAt(nameStarts[b] + p));
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    /**
+     * Returns the index of the attribute at the given position in the written order.
+     */
+    int getOrder(int position) {
+        return order[position];
+    }
+
+    private boolean regionEquals(int start, int end, String lowerCase) {
+        if (end - start != lowerCase.length()) {
+            return false;
+        }
+        for (int p = 0; p < lowerCase.length(); p++) {
+            if (Character.toLowerCase(source.charAt(start + p)) != lowerCase.charAt(p)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getSpaceStart(int i) {
+        return spaceStarts[i];
+    }
+
+    int getNameStart(int i) {
+        return nameStarts[i];
+    }
+
+    int getNameEnd(int i) {
+        return nameEnds[i];
+    }
+
+    int getValueStart(int i) {
+        return valueStarts[i];
+    }
+
+    int getValueEnd(int i) {
+        return valueEnds[i];
+    }
+
+    char getQuote(int i) {
+        return quotes[i];
+    }
+
+    int getAction(int i) {
+        return actions[i];
+    }
+
+    void setAction(int i, int action) {
+        actions[i] = action;
+    }
+
+    int getValueSkip(int i) {
+        return valueSkips[i];
+    }
+
+    void setValueSkip(int i, int valueSkip) {
+        valueSkips[i] = valueSkip;
+    }
+}
@@ -15,9 +15,12 @@
  */
 package com.googlecode.htmlcompressor.compressor;
 
-import java.text.MessageFormat;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,6 +38,11 @@ public class XmlCompressor implements Compressor {
     private boolean removeComments = true;
     private boolean removeIntertagSpaces = true;
 
+    private SlowDocumentSampler slowDocumentSampler = null;
+
+    //buffers reused by the following compressions
+    private final CompressionScratch.Pool scratchPool = new CompressionScratch.Pool();
+
     //temp replacements for preserved blocks
     protected static final String tempCdataBlock = "%%%COMPRESS~CDATA~{0,number,#}%%%";
 
@@ -48,6 +56,9 @@ public class XmlCompressor implements Compressor {
 
     protected static final Pattern tempCdataPattern = Pattern.compile("%%%COMPRESS~CDATA~(\\d+?)%%%", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
 
+    //minimal length of chunks compressed in parallel
+    protected static final int PARALLEL_CHUNK_SIZE = 1024 * 1024;
+
     /**
      * The main method that compresses given XML source and returns compressed result.
      *
@@ -60,47 +71,207 @@ public class XmlCompressor implements Compressor {
             return xml;
         }
 
-        //preserved block containers
-        List<String> cdataBlocks = new ArrayList<String>();
+        SlowDocumentSampler sampler = slowDocumentSampler;
+        long startTime = sampler != null ? System.nanoTime() : 0;
+        String source = xml;
+        long preserveTime;
+        long xmlTime;
+
+        CompressionScratch scratch = scratchPool.acquire();
+        try {
+            //preserved block containers
+            List<String> cdataBlocks = scratch.list();
+
+            //preserve blocks
+            xml = preserveBlocks(xml, cdataBlocks);
+            preserveTime = sampler != null ? System.nanoTime() : 0;
+
+            //process pure xml
+            xml = processXml(xml);
+            xmlTime = sampler != null ? System.nanoTime() : 0;
+
+            //return preserved blocks
+            xml = returnBlocks(xml, cdataBlocks);
+        } finally {
+            scratchPool.release(scratch);
+        }
 
-        //preserve blocks
-        xml = preserveBlocks(xml, cdataBlocks);
+        if (sampler != null) {
+            long endTime = System.nanoTime();
+            if (sampler.isSlow(endTime - startTime)) {
+                sampler.sample("xml", source, endTime - startTime, String.format("preserve=%dns, xml=%dns, return=%dns",
+                    preserveTime - startTime, xmlTime - preserveTime, endTime - xmlTime));
+            }
+        }
 
-        //process pure xml
-        xml = processXml(xml);
+        return xml.trim();
+    }
 
-        //return preserved blocks
-        xml = returnBlocks(xml, cdataBlocks);
+    /**
+     * Compresses XML read from the given reader and writes the result to the given writer.
+     * The document is processed in a single pass holding only whitespace following a tag
+     * besides fixed size buffers, so this method is suited for documents too large to be held
+     * in a <code>String</code>.
+     * <p/>
+     * <p>Unlike {@link #compress(String)} spaces inside quoted attribute values are kept as they are.
+     * Neither stream is closed.
+     *
+     * @param reader XML content to compress
+     * @param writer receives the compressed content
+     * @throws IOException if reading or writing fails
+     */
+    public void compress(Reader reader, Writer writer) throws IOException {
+        if (!enabled) {
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                writer.write(buffer, 0, read);
+            }
+            writer.flush();
+            return;
+        }
 
-        return xml.trim();
+        new XmlStreamCompressor(removeComments, removeIntertagSpaces).compress(reader, writer);
+    }
+
+    /**
+     * Compresses given XML source in parallel chunks using the given executor and returns
+     * the same result as {@link #compress(String)}. The document is split between tags
+     * outside of CDATA blocks and comments, so this only pays off for very large documents.
+     * Smaller documents are compressed in the calling thread.
+     *
+     * @param xml XML content to compress
+     * @param executor runs the compression of the chunks
+     * @return compressed content.
+     */
+    public String compress(String xml, ExecutorService executor) {
+        return compress(xml, executor, PARALLEL_CHUNK_SIZE);
+    }
+
+    protected String compress(String xml, ExecutorService executor, int chunkSize) {
+        if (!enabled || xml == null || xml.length() == 0) {
+            return xml;
+        }
+
+        int[] chunks = findChunks(xml, chunkSize);
+        if (chunks.length == 2) {
+            return compress(xml);
+        }
+
+        //spaces between chunks always separate two tags
+        return new ParallelChunks() {
+            @Override
+            String process(String chunk) {
+                List<String> cdataBlocks = new ArrayList<String>();
+                chunk = preserveBlocks(chunk, cdataBlocks);
+                chunk = processXml(chunk);
+                return returnBlocks(chunk, cdataBlocks);
+            }
+        }.run(xml, chunks, !removeIntertagSpaces, executor).trim();
+    }
+
+    /**
+     * Splits the source into chunks of at least the given length that can be compressed
+     * independently. A chunk ends with a <code>&gt;</code> and the next one starts with
+     * a <code>&lt;</code>, only spaces are left in between. CDATA blocks and comments
+     * are never split.
+     *
+     * @return <code>start, end</code> pairs of the chunks
+     */
+    private static int[] findChunks(String xml, int chunkSize) {
+        List<Integer> chunks = new ArrayList<Integer>();
+        int start = 0;
+        //end of the last CDATA block or comment
+        int textStart = 0;
+        int pos = xml.indexOf('<');
+
+        while (pos >= 0) {
+            if (isCdataStart(xml, pos)) {
+                int end = xml.indexOf("]]>", pos + 9);
+                if (end < 0) {
+                    break;
+                }
+                pos = textStart = end + 3;
+            } else if (xml.startsWith("<!--", pos)) {
+                int end = findCommentEnd(xml, pos + 4);
+                if (end < 0) {
+                    break;
+                }
+                pos = textStart = end;
+            } else {
+                if (pos - start >= chunkSize) {
+                    int spaceStart = pos;
+                    while (spaceStart > textStart && isSpace(xml.charAt(spaceStart - 1))) {
+                        spaceStart--;
+                    }
+                    if (spaceStart > textStart && xml.charAt(spaceStart - 1) == '>') {
+                        chunks.add(start);
+                        chunks.add(spaceStart);
+                        start = pos;
+                    }
+                }
+                pos++;
+            }
+            pos = xml.indexOf('<', pos);
+        }
+
+        chunks.add(start);
+        chunks.add(xml.length());
+        return ParallelChunks.toArray(chunks);
+    }
+
+    /**
+     * Returns the position after the end of the comment whose content starts at the given position.
+     * CDATA blocks inside the comment are skipped like {@link #preserveBlocks(String, List)} does.
+     */
+    private static int findCommentEnd(String xml, int from) {
+        while (true) {
+            int end = xml.indexOf("-->", from);
+            if (end < 0) {
+                return -1;
+            }
+            int cdata = xml.indexOf("<![", from);
+            while (cdata >= 0 && cdata < end && !isCdataStart(xml, cdata)) {
+                cdata = xml.indexOf("<![", cdata + 3);
+            }
+            if (cdata < 0 || cdata > end) {
+                return end + 3;
+            }
+            int cdataEnd = xml.indexOf("]]>", cdata + 9);
+            if (cdataEnd < 0) {
+                return -1;
+            }
+            from = cdataEnd + 3;
+        }
+    }
+
+    private static boolean isCdataStart(String xml, int pos) {
+        return xml.regionMatches(true, pos, "<![CDATA[", 0, 9);
+    }
+
+    static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
     }
 
     protected String preserveBlocks(String xml, List<String> cdataBlocks) {
         //preserve CDATA blocks
-        Matcher matcher = cdataPattern.matcher(xml);
+        Matcher matcher = CompressionScratch.matcher(cdataPattern, xml);
         int index = 0;
-        StringBuffer sb = new StringBuffer();
+        int last = 0;
+        StringBuilder sb = CompressionScratch.builder(xml.length());
         while (matcher.find()) {
             cdataBlocks.add(matcher.group(0));
-            matcher.appendReplacement(sb, MessageFormat.format(tempCdataBlock, index++));
+            Replacements.appendPlaceholder(sb.append(xml, last, matcher.start()), tempCdataBlock, index++);
+            last = matcher.end();
         }
-        matcher.appendTail(sb);
-        xml = sb.toString();
+        xml = last == 0 ? xml : sb.append(xml, last, xml.length()).toString();
 
         return xml;
     }
 
     protected String returnBlocks(String xml, List<String> cdataBlocks) {
         //put CDATA blocks back
-        Matcher matcher = tempCdataPattern.matcher(xml);
-        StringBuffer sb = new StringBuffer();
-        while (matcher.find()) {
-            matcher.appendReplacement(sb, Matcher.quoteReplacement(cdataBlocks.get(Integer.parseInt(matcher.group(1)))));
-        }
-        matcher.appendTail(sb);
-        xml = sb.toString();
-
-        return xml;
+        return Replacements.returnBlocks(CompressionScratch.matcher(tempCdataPattern, xml), xml, cdataBlocks);
     }
 
     protected String processXml(String xml) {
@@ -118,20 +289,20 @@ public class XmlCompressor implements Compressor {
 
     protected String removeSpacesInsideTags(String xml) {
         //replace miltiple spaces inside tags with single spaces
-        xml = multispacePattern.matcher(xml).replaceAll(" ");
+        xml = Replacements.replaceAll(CompressionScratch.matcher(multispacePattern, xml), xml, " ");
 
         //remove spaces around equal sign inside tags
-        xml = tagPropertyPattern.matcher(xml).replaceAll("$1=");
+        xml = Replacements.replaceWithGroups(CompressionScratch.matcher(tagPropertyPattern, xml), xml, "=");
 
         //remove ending spaces inside tags
-        xml = tagEndSpacePattern.matcher(xml).replaceAll("$1$2");
+        xml = Replacements.replaceWithGroups(CompressionScratch.matcher(tagEndSpacePattern, xml), xml, "");
         return xml;
     }
 
     protected String removeIntertagSpaces(String xml) {
         //remove inter-tag spaces
         if (removeIntertagSpaces) {
-            xml = intertagPattern.matcher(xml).replaceAll("><");
+            xml = Replacements.replaceAll(CompressionScratch.matcher(intertagPattern, xml), xml, "><");
         }
         return xml;
     }
@@ -139,7 +310,7 @@ public class XmlCompressor implements Compressor {
     protected String removeComments(String xml) {
         //remove comments
         if (removeComments) {
-            xml = commentPattern.matcher(xml).replaceAll("");
+            xml = Replacements.replaceAll(CompressionScratch.matcher(commentPattern, xml), xml, "");
         }
         return xml;
     }
@@ -200,4 +371,25 @@ public class XmlCompressor implements Compressor {
     public void setRemoveIntertagSpaces(boolean removeIntertagSpaces) {
         this.removeIntertagSpaces = removeIntertagSpaces;
     }
+
+    /**
+     * Returns the sampler that keeps documents which took too long to compress, if set.
+     *
+     * @return sampler of slow documents or <code>null</code>
+     */
+    public SlowDocumentSampler getSlowDocumentSampler() {
+        return slowDocumentSampler;
+    }
+
+    /**
+     * Sets a sampler that records the stage times and optionally the input of every
+     * document which takes longer than the threshold of the sampler to compress.
+     * Default is <code>null</code>.
+     *
+     * @param slowDocumentSampler sampler of slow documents, <code>null</code> to disable
+     * @see SlowDocumentSampler
+     */
+    public void setSlowDocumentSampler(SlowDocumentSampler slowDocumentSampler) {
+        this.slowDocumentSampler = slowDocumentSampler;
+    }
 }
\ No newline at end of file
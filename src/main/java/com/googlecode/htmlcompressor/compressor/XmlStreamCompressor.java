@@ -0,0 +1,280 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Compresses XML read from a stream in a single pass while holding only small fixed size
+ * buffers in memory. Comments and inter-tag spaces are handled like in {@link XmlCompressor},
+ * CDATA blocks and attribute values are copied as they are. Only whitespace following a tag
+ * is held back until the next tag or content decides whether it is inter-tag space.
+ * <p>Unlike {@link XmlCompressor#compress(String)} spaces inside quoted attribute values are not
+ * collapsed, and trailing whitespace in text is only removed up to the buffer size.
+ *
+ * @see XmlCompressor#compress(Reader, Writer)
+ */
+class XmlStreamCompressor {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final boolean removeComments;
+    private final boolean removeIntertagSpaces;
+
+    private Reader reader;
+    private final char[] input = new char[BUFFER_SIZE];
+    private int inputPos = 0;
+    private int inputLimit = 0;
+
+    private Writer writer;
+    private final char[] output = new char[BUFFER_SIZE];
+    private int outputPos = 0;
+
+    //whitespace that is written only if followed by content
+    private char[] spaces = new char[BUFFER_SIZE];
+    private int spacesLength = 0;
+    private boolean started = false;
+    private char lastChar = 0;
+
+    XmlStreamCompressor(boolean removeComments, boolean removeIntertagSpaces) {
+        this.removeComments = removeComments;
+        this.removeIntertagSpaces = removeIntertagSpaces;
+    }
+
+    /**
+     * Compresses the whole content of the reader into the writer. Neither stream is closed.
+     */
+    void compress(Reader reader, Writer writer) throws IOException {
+        this.reader = reader;
+        this.writer = writer;
+
+        while (ensure(1)) {
+            char c = input[inputPos];
+            if (c == '<') {
+                if (startsWith("<!--")) {
+                    comment();
+                } else if (startsWith("<![CDATA[")) {
+                    cdata();
+                } else {
+                    tag();
+                }
+            } else if (isSpace(c)) {
+                space(c);
+                inputPos++;
+            } else {
+                writeSpaces();
+                write(c);
+                inputPos++;
+            }
+        }
+
+        //trailing spaces are dropped
+        flush();
+    }
+
+    private void comment() throws IOException {
+        if (removeComments) {
+            //pending spaces stay, so spaces around the comment are joined
+            inputPos += 4;
+            skipPast("-->", false);
+        } else {
+            writeIntertagSpaces();
+            copyPast("-->", 4);
+        }
+    }
+
+    private void cdata() throws IOException {
+        writeSpaces();
+        copyPast("]]>", 9);
+
+        //spaces after CDATA blocks are never inter-tag spaces
+        lastChar = 0;
+    }
+
+    private void tag() throws IOException {
+        writeIntertagSpaces();
+        write('<');
+        inputPos++;
+
+        boolean space = false;
+        boolean afterEquals = false;
+        while (ensure(1)) {
+            char c = input[inputPos];
+            if (isSpace(c)) {
+                space = true;
+                inputPos++;
+            } else if (c == '>' || (c == '/' && ensure(2) && input[inputPos + 1] == '>')) {
+                //remove ending spaces
+                if (c == '/') {
+                    write('/');
+                    inputPos++;
+                }
+                write('>');
+                inputPos++;
+                return;
+            } else if (c == '=') {
+                //remove spaces around equal sign
+                write('=');
+                inputPos++;
+                space = false;
+                afterEquals = true;
+            } else {
+                if (space && !afterEquals) {
+                    write(' ');
+                }
+                space = false;
+                afterEquals = false;
+
+                if (c == '"' || c == '\'') {
+                    inputPos++;
+                    write(c);
+                    skipPast(String.valueOf(c), true);
+                } else {
+                    write(c);
+                    inputPos++;
+                }
+            }
+        }
+    }
+
+    private void space(char c) throws IOException {
+        if (!started) {
+            //leading spaces are dropped
+            return;
+        }
+        if (spacesLength == spaces.length) {
+            if (removeIntertagSpaces && lastChar == '>') {
+                //might still be inter-tag spaces, so all of them are needed
+                spaces = Arrays.copyOf(spaces, spaces.length * 2);
+            } else {
+                //spaces following content are never removed unless they end the input
+                writeSpaces();
+            }
+        }
+        spaces[spacesLength++] = c;
+    }
+
+    /**
+     * Writes pending spaces unless they are inter-tag spaces that should be removed.
+     */
+    private void writeIntertagSpaces() throws IOException {
+        if (removeIntertagSpaces && lastChar == '>') {
+            spacesLength = 0;
+        } else {
+            writeSpaces();
+        }
+    }
+
+    private void writeSpaces() throws IOException {
+        if (started) {
+            for (int i = 0; i < spacesLength; i++) {
+                write(spaces[i]);
+            }
+        }
+        spacesLength = 0;
+    }
+
+    /**
+     * Copies the construct starting with a prefix of the given length up to and including the terminator.
+     */
+    private void copyPast(String terminator, int prefixLength) throws IOException {
+        for (int i = 0; i < prefixLength; i++) {
+            write(input[inputPos++]);
+        }
+        skipPast(terminator, true);
+    }
+
+    /**
+     * Skips or copies all input up to and including the terminator or the end of the input.
+     * The terminator has at most three characters.
+     */
+    private void skipPast(String terminator, boolean copy) throws IOException {
+        int length = terminator.length();
+        char previous = 0;
+        char beforePrevious = 0;
+        while (ensure(1)) {
+            char c = input[inputPos++];
+            if (copy) {
+                write(c);
+            }
+
+            if (c == terminator.charAt(length - 1)
+                && (length < 2 || previous == terminator.charAt(length - 2))
+                && (length < 3 || beforePrevious == terminator.charAt(length - 3))) {
+                return;
+            }
+            beforePrevious = previous;
+            previous = c;
+        }
+    }
+
+    private boolean startsWith(String prefix) throws IOException {
+        if (!ensure(prefix.length())) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (input[inputPos + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure that at least the given number of characters is buffered.
+     *
+     * @return <code>false</code> if the input ends before
+     */
+    private boolean ensure(int count) throws IOException {
+        if (inputLimit - inputPos >= count) {
+            return true;
+        }
+
+        System.arraycopy(input, inputPos, input, 0, inputLimit - inputPos);
+        inputLimit -= inputPos;
+        inputPos = 0;
+
+        int read;
+        while (inputLimit < count && (read = reader.read(input, inputLimit, input.length - inputLimit)) >= 0) {
+            inputLimit += read;
+        }
+        return inputLimit >= count;
+    }
+
+    private void write(char c) throws IOException {
+        if (outputPos == output.length) {
+            writer.write(output, 0, outputPos);
+            outputPos = 0;
+        }
+        output[outputPos++] = c;
+        lastChar = c;
+        started = true;
+    }
+
+    private void flush() throws IOException {
+        writer.write(output, 0, outputPos);
+        outputPos = 0;
+        writer.flush();
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+}
\ No newline at end of file
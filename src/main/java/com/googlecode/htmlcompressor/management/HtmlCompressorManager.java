@@ -0,0 +1,281 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.management;
+
+import com.googlecode.htmlcompressor.compressor.BlockCache;
+import com.googlecode.htmlcompressor.compressor.HtmlCompressor;
+import com.googlecode.htmlcompressor.compressor.StatisticsCollector;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * JMX MBean that exposes the cumulated statistics of an {@link HtmlCompressor}
+ * and allows to switch expensive options while the application is running, e.g.
+ * to shed load. Compressions that are already running are not affected by a switch.
+ * <p>The MBean is not registered automatically:
+ * <br><code>new HtmlCompressorManager(compressor).register("com.googlecode.htmlcompressor:type=HtmlCompressor");</code>
+ * <p>If the compressor has no {@link StatisticsCollector} yet, a new one is set.
+ * Several compressors could be managed together by giving them the same collector,
+ * but the options are only switched on the managed compressor.
+ *
+ * @see HtmlCompressor#setStatisticsCollector(StatisticsCollector)
+ */
+public class HtmlCompressorManager implements HtmlCompressorManagerMBean {
+
+    private final HtmlCompressor compressor;
+    private final StatisticsCollector collector;
+    private ObjectName objectName = null;
+
+    public HtmlCompressorManager(HtmlCompressor compressor) {
+        if (compressor.getStatisticsCollector() == null) {
+            compressor.setStatisticsCollector(new StatisticsCollector());
+        }
+        this.compressor = compressor;
+        this.collector = compressor.getStatisticsCollector();
+    }
+
+    /**
+     * Registers this MBean with the platform MBean server.
+     *
+     * @param name object name of the MBean, e.g. <code>com.googlecode.htmlcompressor:type=HtmlCompressor</code>
+     * @return the registered object name
+     * @throws JMException if the name is invalid or already registered
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        objectName = server.registerMBean(this, new ObjectName(name)).getObjectName();
+        return objectName;
+    }
+
+    /**
+     * Removes this MBean from the platform MBean server, if registered.
+     *
+     * @throws JMException if the MBean could not be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    public HtmlCompressor getCompressor() {
+        return compressor;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return compressor.isEnabled();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        compressor.setEnabled(enabled);
+    }
+
+    @Override
+    public boolean isCompressJavaScript() {
+        return compressor.isCompressJavaScript();
+    }
+
+    @Override
+    public void setCompressJavaScript(boolean compressJavaScript) {
+        compressor.setCompressJavaScript(compressJavaScript);
+    }
+
+    @Override
+    public boolean isCompressCss() {
+        return compressor.isCompressCss();
+    }
+
+    @Override
+    public void setCompressCss(boolean compressCss) {
+        compressor.setCompressCss(compressCss);
+    }
+
+    @Override
+    public boolean isCompressSvg() {
+        return compressor.isCompressSvg();
+    }
+
+    @Override
+    public void setCompressSvg(boolean compressSvg) {
+        compressor.setCompressSvg(compressSvg);
+    }
+
+    @Override
+    public boolean isCompressJson() {
+        return compressor.isCompressJson();
+    }
+
+    @Override
+    public void setCompressJson(boolean compressJson) {
+        compressor.setCompressJson(compressJson);
+    }
+
+    @Override
+    public boolean isCompressHtmlTemplates() {
+        return compressor.isCompressHtmlTemplates();
+    }
+
+    @Override
+    public void setCompressHtmlTemplates(boolean compressHtmlTemplates) {
+        compressor.setCompressHtmlTemplates(compressHtmlTemplates);
+    }
+
+    @Override
+    public boolean isRemoveOptionalTags() {
+        return compressor.isRemoveOptionalTags();
+    }
+
+    @Override
+    public void setRemoveOptionalTags(boolean removeOptionalTags) {
+        compressor.setRemoveOptionalTags(removeOptionalTags);
+    }
+
+    @Override
+    public boolean isSortAttributes() {
+        return compressor.isSortAttributes();
+    }
+
+    @Override
+    public void setSortAttributes(boolean sortAttributes) {
+        compressor.setSortAttributes(sortAttributes);
+    }
+
+    @Override
+    public long getDocuments() {
+        return collector.getDocuments();
+    }
+
+    @Override
+    public long getOriginalSize() {
+        return collector.getOriginalSize();
+    }
+
+    @Override
+    public long getCompressedSize() {
+        return collector.getCompressedSize();
+    }
+
+    @Override
+    public long getSavedSize() {
+        return collector.getOriginalSize() - collector.getCompressedSize();
+    }
+
+    @Override
+    public long getTime() {
+        return collector.getTime();
+    }
+
+    @Override
+    public long getTimeP50() {
+        return collector.getTimePercentile(50);
+    }
+
+    @Override
+    public long getTimeP95() {
+        return collector.getTimePercentile(95);
+    }
+
+    @Override
+    public long getTimeP99() {
+        return collector.getTimePercentile(99);
+    }
+
+    @Override
+    public long getPreserveTime() {
+        return collector.getStageTime(StatisticsCollector.STAGE_PRESERVE);
+    }
+
+    @Override
+    public long getHtmlTime() {
+        return collector.getStageTime(StatisticsCollector.STAGE_HTML);
+    }
+
+    @Override
+    public long getBlocksTime() {
+        return collector.getStageTime(StatisticsCollector.STAGE_BLOCKS);
+    }
+
+    @Override
+    public long getReturnTime() {
+        return collector.getStageTime(StatisticsCollector.STAGE_RETURN);
+    }
+
+    @Override
+    public long getScriptOriginalSize() {
+        return collector.getBlockOriginalSize(StatisticsCollector.BLOCK_SCRIPT);
+    }
+
+    @Override
+    public long getScriptCompressedSize() {
+        return collector.getBlockCompressedSize(StatisticsCollector.BLOCK_SCRIPT);
+    }
+
+    @Override
+    public long getStyleOriginalSize() {
+        return collector.getBlockOriginalSize(StatisticsCollector.BLOCK_STYLE);
+    }
+
+    @Override
+    public long getStyleCompressedSize() {
+        return collector.getBlockCompressedSize(StatisticsCollector.BLOCK_STYLE);
+    }
+
+    @Override
+    public long getSkippedDocuments() {
+        return collector.getSkippedDocuments();
+    }
+
+    @Override
+    public long getBlockFailures() {
+        return collector.getBlockFailures();
+    }
+
+    @Override
+    public long getBlockCacheHits() {
+        BlockCache cache = compressor.getBlockCache();
+        return cache != null ? cache.getHits() : 0;
+    }
+
+    @Override
+    public long getBlockCacheMisses() {
+        BlockCache cache = compressor.getBlockCache();
+        return cache != null ? cache.getMisses() : 0;
+    }
+
+    @Override
+    public double getBlockCacheHitRate() {
+        BlockCache cache = compressor.getBlockCache();
+        return cache != null ? cache.getHitRate() : 0;
+    }
+
+    @Override
+    public long getBlockCacheSize() {
+        BlockCache cache = compressor.getBlockCache();
+        return cache != null ? cache.getSize() : 0;
+    }
+
+    @Override
+    public void resetStatistics() {
+        collector.reset();
+    }
+}
\ No newline at end of file
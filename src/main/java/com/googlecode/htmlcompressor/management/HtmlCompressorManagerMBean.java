@@ -0,0 +1,106 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.management;
+
+/**
+ * Management interface of {@link HtmlCompressorManager}. Sizes are given in characters,
+ * times in nanoseconds, all values are cumulated since the start or the last
+ * {@link #resetStatistics()}. Block cache values are <code>0</code> without a cache,
+ * they are cumulated since the cache was created and the cache size is given in bytes.
+ *
+ * @see HtmlCompressorManager
+ */
+public interface HtmlCompressorManagerMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    boolean isCompressJavaScript();
+
+    void setCompressJavaScript(boolean compressJavaScript);
+
+    boolean isCompressCss();
+
+    void setCompressCss(boolean compressCss);
+
+    boolean isCompressSvg();
+
+    void setCompressSvg(boolean compressSvg);
+
+    boolean isCompressJson();
+
+    void setCompressJson(boolean compressJson);
+
+    boolean isCompressHtmlTemplates();
+
+    void setCompressHtmlTemplates(boolean compressHtmlTemplates);
+
+    boolean isRemoveOptionalTags();
+
+    void setRemoveOptionalTags(boolean removeOptionalTags);
+
+    boolean isSortAttributes();
+
+    void setSortAttributes(boolean sortAttributes);
+
+    long getDocuments();
+
+    long getOriginalSize();
+
+    long getCompressedSize();
+
+    long getSavedSize();
+
+    long getTime();
+
+    long getTimeP50();
+
+    long getTimeP95();
+
+    long getTimeP99();
+
+    long getPreserveTime();
+
+    long getHtmlTime();
+
+    long getBlocksTime();
+
+    long getReturnTime();
+
+    long getScriptOriginalSize();
+
+    long getScriptCompressedSize();
+
+    long getStyleOriginalSize();
+
+    long getStyleCompressedSize();
+
+    long getSkippedDocuments();
+
+    long getBlockFailures();
+
+    long getBlockCacheHits();
+
+    long getBlockCacheMisses();
+
+    double getBlockCacheHitRate();
+
+    long getBlockCacheSize();
+
+    void resetStatistics();
+}
\ No newline at end of file
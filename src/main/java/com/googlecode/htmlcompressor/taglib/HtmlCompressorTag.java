@@ -16,7 +16,9 @@
 package com.googlecode.htmlcompressor.taglib;
 
 import com.google.javascript.jscomp.CompilationLevel;
+import com.googlecode.htmlcompressor.compressor.CachingCompressor;
 import com.googlecode.htmlcompressor.compressor.ClosureJavaScriptCompressor;
+import com.googlecode.htmlcompressor.compressor.Compressor;
 import com.googlecode.htmlcompressor.compressor.HtmlCompressor;
 import com.googlecode.htmlcompressor.compressor.YuiJavaScriptCompressor;
 
@@ -24,6 +26,8 @@ import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.tagext.BodyContent;
 import javax.servlet.jsp.tagext.BodyTagSupport;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * JSP tag that compresses an HTML content within &lt;compress:html>.
@@ -70,12 +74,119 @@ public class HtmlCompressorTag extends BodyTagSupport {
     //Closure compressor settings
     private String closureOptLevel = ClosureJavaScriptCompressor.COMPILATION_LEVEL_SIMPLE;
 
+    //size of the cache of compressed pages in bytes, 0 to compress every page
+    private int resultCacheSize = 0;
+
+    //most settings kept at once, attributes computed for every request would otherwise fill the map
+    private static final int MAX_COMPRESSORS = 64;
+
+    //compiled compressors shared by all tags with the same settings
+    private static final ConcurrentMap<Settings, Compressor> compressors = new ConcurrentHashMap<Settings, Compressor>();
+
     @Override
     public int doEndTag() throws JspException {
 
         BodyContent bodyContent = getBodyContent();
         String content = bodyContent.getString();
 
+        Compressor htmlCompressor = getHtmlCompressor();
+
+        try {
+            bodyContent.clear();
+            bodyContent.append(htmlCompressor.compress(content));
+            bodyContent.writeOut(pageContext.getOut());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return super.doEndTag();
+    }
+
+    /**
+     * Returns the compiled compressor for the current settings, creating it on first use.
+     * Once <code>MAX_COMPRESSORS</code> settings are kept, compressors for new settings
+     * are created for every request and not cached.
+     */
+    private Compressor getHtmlCompressor() {
+        Settings key = new Settings(this);
+
+        Compressor htmlCompressor = compressors.get(key);
+        if (htmlCompressor == null) {
+            htmlCompressor = createHtmlCompressor();
+            if (compressors.size() >= MAX_COMPRESSORS) {
+                return htmlCompressor;
+            }
+            if (resultCacheSize > 0) {
+                htmlCompressor = new CachingCompressor(htmlCompressor, resultCacheSize);
+            }
+            Compressor existing = compressors.putIfAbsent(key, htmlCompressor);
+            if (existing != null) {
+                htmlCompressor = existing;
+            }
+        }
+        return htmlCompressor;
+    }
+
+    /**
+     * Settings of a tag, the key of the shared compressors.
+     */
+    private static final class Settings {
+
+        //all boolean settings, one bit each
+        private final int switches;
+        private final String jsCompressor;
+        private final String closureOptLevel;
+        private final int yuiJsLineBreak;
+        private final int yuiCssLineBreak;
+        private final int resultCacheSize;
+
+        Settings(HtmlCompressorTag tag) {
+            boolean[] values = {tag.enabled, tag.removeComments, tag.removeMultiSpaces, tag.removeIntertagSpaces,
+                tag.removeQuotes, tag.preserveLineBreaks, tag.simpleDoctype, tag.removeScriptAttributes,
+                tag.removeStyleAttributes, tag.removeLinkAttributes, tag.removeFormAttributes,
+                tag.removeInputAttributes, tag.simpleBooleanAttributes, tag.removeJavaScriptProtocol,
+                tag.removeHttpProtocol, tag.removeHttpsProtocol, tag.compressJavaScript, tag.compressCss,
+                tag.yuiJsNoMunge, tag.yuiJsPreserveAllSemiColons, tag.yuiJsDisableOptimizations};
+            int bits = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i]) {
+                    bits |= 1 << i;
+                }
+            }
+            switches = bits;
+            jsCompressor = tag.jsCompressor;
+            closureOptLevel = tag.closureOptLevel;
+            yuiJsLineBreak = tag.yuiJsLineBreak;
+            yuiCssLineBreak = tag.yuiCssLineBreak;
+            resultCacheSize = tag.resultCacheSize;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = switches;
+            hash = hash * 31 + (jsCompressor != null ? jsCompressor.hashCode() : 0);
+            hash = hash * 31 + (closureOptLevel != null ? closureOptLevel.hashCode() : 0);
+            hash = hash * 31 + yuiJsLineBreak;
+            hash = hash * 31 + yuiCssLineBreak;
+            return hash * 31 + resultCacheSize;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) obj;
+            return switches == other.switches && yuiJsLineBreak == other.yuiJsLineBreak
+                && yuiCssLineBreak == other.yuiCssLineBreak && resultCacheSize == other.resultCacheSize
+                && (jsCompressor == null ? other.jsCompressor == null : jsCompressor.equals(other.jsCompressor))
+                && (closureOptLevel == null ? other.closureOptLevel == null : closureOptLevel.equals(other.closureOptLevel));
+        }
+    }
+
+    private HtmlCompressor createHtmlCompressor() {
         HtmlCompressor htmlCompressor = new HtmlCompressor();
         htmlCompressor.setEnabled(enabled);
         htmlCompressor.setRemoveComments(removeComments);
@@ -114,17 +225,9 @@ public class HtmlCompressorTag extends BodyTagSupport {
             htmlCompressor.setJavaScriptCompressor(closureCompressor);
         }
 
-        try {
-            bodyContent.clear();
-            bodyContent.append(htmlCompressor.compress(content));
-            bodyContent.writeOut(pageContext.getOut());
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        htmlCompressor.compile();
 
-        return super.doEndTag();
+        return htmlCompressor;
     }
 
     /**
@@ -244,6 +347,19 @@ public class HtmlCompressorTag extends BodyTagSupport {
         this.closureOptLevel = closureOptLevel;
     }
 
+    /**
+     * Sets the size of a cache of compressed pages shared by all tags with the same settings,
+     * so pages that did not change are not compressed again.
+     * <p/>
+     * <p>Default is <code>0</code>, so every page is compressed.
+     *
+     * @param resultCacheSize size of the cache in bytes, <code>0</code> to disable the cache
+     * @see CachingCompressor
+     */
+    public void setResultCacheSize(int resultCacheSize) {
+        this.resultCacheSize = resultCacheSize;
+    }
+
     /**
      * @see HtmlCompressor#setSimpleDoctype(boolean)
      */
@@ -16,7 +16,9 @@
 package com.googlecode.htmlcompressor.velocity;
 
 import com.google.javascript.jscomp.CompilationLevel;
+import com.googlecode.htmlcompressor.compressor.CachingCompressor;
 import com.googlecode.htmlcompressor.compressor.ClosureJavaScriptCompressor;
+import com.googlecode.htmlcompressor.compressor.Compressor;
 import com.googlecode.htmlcompressor.compressor.HtmlCompressor;
 import org.apache.velocity.context.InternalContextAdapter;
 import org.apache.velocity.exception.MethodInvocationException;
@@ -43,6 +45,11 @@ public class HtmlCompressorDirective extends Directive {
 
     private static final HtmlCompressor htmlCompressor = new HtmlCompressor();
 
+    //cache of compressed pages, shared like the compressor
+    private static CachingCompressor cachingCompressor;
+
+    private Compressor compressor = htmlCompressor;
+
     private Log log;
 
     public String getName() {
@@ -98,6 +105,20 @@ public class HtmlCompressorDirective extends Directive {
 
             htmlCompressor.setJavaScriptCompressor(closureCompressor);
         }
+
+        htmlCompressor.compile();
+
+        int resultCacheSize = rs.getInt("userdirective.compressHtml.resultCacheSize", 0);
+        if (resultCacheSize > 0) {
+            compressor = getCachingCompressor(resultCacheSize);
+        }
+    }
+
+    private static synchronized CachingCompressor getCachingCompressor(int resultCacheSize) {
+        if (cachingCompressor == null || cachingCompressor.getMaximumSize() != resultCacheSize) {
+            cachingCompressor = new CachingCompressor(htmlCompressor, resultCacheSize);
+        }
+        return cachingCompressor;
     }
 
     public boolean render(InternalContextAdapter context, Writer writer, Node node)
@@ -109,7 +130,7 @@ public class HtmlCompressorDirective extends Directive {
 
         //compress
         try {
-            writer.write(htmlCompressor.compress(content.toString()));
+            writer.write(compressor.compress(content.toString()));
         } catch (Exception e) {
             writer.write(content.toString());
             String msg = "Failed to compress content: " + content.toString();
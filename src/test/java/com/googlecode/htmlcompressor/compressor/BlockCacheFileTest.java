@@ -0,0 +1,174 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlockCacheFileTest {
+
+    @Test
+    public void testBlockCacheFile() throws Exception {
+        File directory = File.createTempFile("blocks", "");
+        directory.delete();
+
+        final int[] calls = new int[1];
+        Compressor jsCompressor = new Compressor() {
+            @Override
+            public String compress(String source) {
+                calls[0]++;
+                return source.trim();
+            }
+        };
+        String source = "<script> var a = 1; </script><!--[if IE]><p a=\"b\">x</p><![endif]-->";
+        String result = "<script>var a = 1;</script><!--[if IE]><p a=\"b\">x</p><![endif]-->";
+        try {
+            //every run uses a new compressor and cache
+            for (int run = 0; run < 3; run++) {
+                HtmlCompressor compressor = new HtmlCompressor();
+                compressor.setCompressJavaScript(true);
+                compressor.setJavaScriptCompressor(jsCompressor);
+                BlockCache cache = new BlockCache();
+                BlockCacheFile file = new BlockCacheFile(directory, 1024 * 1024, run < 2 ? "first" : "second");
+                cache.setFile(file);
+                compressor.setBlockCache(cache);
+                try {
+                    assertTrue(file.isWritable());
+                    assertEquals(result, compressor.compress(source));
+                    assertEquals(run == 1 ? 2 : 0, file.getHits());
+                } finally {
+                    file.close();
+                }
+            }
+
+            //results are only reused with the same configuration
+            assertEquals(2, calls[0]);
+
+            //least recently used records are dropped when the full file is compacted
+            File small = new File(directory, "small");
+            String block = "0123456789012345678901234567890123456789";
+            BlockCacheFile file = new BlockCacheFile(small, 200, "");
+            for (int i = 1; i <= 3; i++) {
+                file.put(jsCompressor, "block" + i, block);
+            }
+            file.close();
+            assertEquals(200, file.getSize());
+
+            file = new BlockCacheFile(small, 200, "");
+            assertEquals(block, file.get(jsCompressor, "block1"));
+            file.put(jsCompressor, "block4", block);
+            assertEquals(3, file.getEntries());
+            file.close();
+            assertFalse(new File(small, BlockCacheFile.FILE_NAME + ".tmp").exists());
+
+            file = new BlockCacheFile(small, 200, "");
+            try {
+                assertEquals(block, file.get(jsCompressor, "block1"));
+                assertNull(file.get(jsCompressor, "block2"));
+                assertEquals(block, file.get(jsCompressor, "block3"));
+                assertNull(file.get(jsCompressor, "block4"));
+
+                //a second instance only reads the locked directory
+                BlockCacheFile reader = new BlockCacheFile(small, 200, "");
+                assertFalse(reader.isWritable());
+                assertEquals(block, reader.get(jsCompressor, "block3"));
+                reader.close();
+            } finally {
+                file.close();
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                if (file.isDirectory()) {
+                    for (File child : file.listFiles()) {
+                        child.delete();
+                    }
+                }
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testPendingCompaction() throws Exception {
+        File directory = File.createTempFile("blocks", "");
+        directory.delete();
+
+        File cacheFile = new File(directory, BlockCacheFile.FILE_NAME);
+        File compactedFile = new File(directory, BlockCacheFile.FILE_NAME + ".tmp");
+        Object owner = new Object();
+        try {
+            BlockCacheFile file = new BlockCacheFile(directory, 1024 * 1024, "");
+            file.put(owner, "block1", "result1");
+            file.put(owner, "block2", "result2");
+            file.close();
+            File saved = new File(directory, "saved");
+            copy(cacheFile, saved);
+
+            file = new BlockCacheFile(directory, 1024 * 1024, "");
+            file.put(owner, "block3", "result3");
+            file.close();
+
+            //a compacted file that could not replace the cache file is copied into it
+            copy(saved, compactedFile);
+            file = new BlockCacheFile(directory, 1024 * 1024, "");
+            try {
+                assertFalse(compactedFile.exists());
+                assertEquals(2, file.getEntries());
+                assertEquals("result1", file.get(owner, "block1"));
+                assertEquals("result2", file.get(owner, "block2"));
+                assertNull(file.get(owner, "block3"));
+            } finally {
+                file.close();
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream input = new FileInputStream(from);
+        try {
+            OutputStream output = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = input.read(buffer)) >= 0) {
+                    output.write(buffer, 0, read);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BlockCacheTest {
+
+    @Test
+    public void testBlockCache() throws Exception {
+        final int[] calls = new int[1];
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setCompressJavaScript(true);
+        compressor.setJavaScriptCompressor(new Compressor() {
+            @Override
+            public String compress(String source) {
+                calls[0]++;
+                return source.trim();
+            }
+        });
+        BlockCache cache = new BlockCache(1024 * 1024);
+        compressor.setBlockCache(cache);
+
+        String source = "<script> var a = 1; </script><!--[if IE]><p a=\"b\">x</p><![endif]-->";
+        String result = compressor.compress(source);
+        assertEquals("<script>var a = 1;</script><!--[if IE]><p a=\"b\">x</p><![endif]-->", result);
+        assertEquals(result, compressor.compress(source));
+        assertEquals(1, calls[0]);
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        //conditional comments are cached for the options that change them
+        compressor.setRemoveQuotes(true);
+        assertEquals("<script>var a = 1;</script><!--[if IE]><p a=b>x</p><![endif]-->", compressor.compress(source));
+        compressor.setRemoveQuotes(false);
+        assertEquals(result, compressor.compress(source));
+        assertEquals(1, calls[0]);
+        assertEquals(3, cache.getEntries());
+        assertEquals(5, cache.getHits());
+
+        //compressors with the same options share their results, also after a switch was toggled
+        BlockCache sharedCache = new BlockCache(1024 * 1024);
+        HtmlCompressor first = new HtmlCompressor();
+        first.setCompressJavaScript(true);
+        first.setBlockCache(sharedCache);
+        HtmlCompressor second = new HtmlCompressor();
+        second.setCompressJavaScript(true);
+        second.setBlockCache(sharedCache);
+        String expected = first.compress(source);
+        assertEquals(expected, second.compress(source));
+        first.setCompressJavaScript(false);
+        first.setCompressJavaScript(true);
+        assertEquals(expected, first.compress(source));
+        assertEquals(2, sharedCache.getEntries());
+        assertEquals(4, sharedCache.getHits());
+
+        //blocks larger than a segment are not cached
+        BlockCache smallCache = new BlockCache(16 * 1024);
+        String block = new String(new char[1000]);
+        smallCache.put(compressor, block, block);
+        assertNull(smallCache.get(compressor, block));
+        assertEquals(0, smallCache.getEntries());
+    }
+
+    @Test
+    public void testAdmission() throws Exception {
+        BlockCache.Segment segment = new BlockCache.Segment(1024, 256);
+        BlockCache.Key cold = new BlockCache.Key("owner", null, "cold");
+        BlockCache.Key hot = new BlockCache.Key("owner", null, "hot");
+        BlockCache.Key candidate = new BlockCache.Key("owner", null, "candidate");
+        assertEquals(0, segment.put(cold, "a", 100));
+        assertEquals(0, segment.put(hot, "b", 400));
+        for (int i = 0; i < 3; i++) {
+            segment.get(hot);
+        }
+
+        //the candidate only fits if the hot block goes as well, so nothing is evicted
+        assertEquals(0, segment.put(candidate, "c", 900));
+        assertEquals(2, segment.getEntries());
+        assertEquals(500, segment.getSize());
+        assertEquals("a", segment.get(cold));
+
+        for (int i = 0; i < 5; i++) {
+            segment.get(candidate);
+        }
+        //the cold block was requested last, so the hot block is evicted first and that suffices
+        assertEquals(1, segment.put(candidate, "c", 900));
+        assertEquals(2, segment.getEntries());
+        assertEquals(1000, segment.getSize());
+        assertEquals("c", segment.get(candidate));
+        assertEquals("a", segment.get(cold));
+    }
+}
\ No newline at end of file
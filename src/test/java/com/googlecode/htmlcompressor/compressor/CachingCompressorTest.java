@@ -0,0 +1,174 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CachingCompressorTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void testCachingCompressor() throws Exception {
+        final HtmlCompressor htmlCompressor = new HtmlCompressor();
+        final int[] calls = new int[1];
+        CachingCompressor compressor = new CachingCompressor(new Compressor() {
+            @Override
+            public String compress(String source) {
+                calls[0]++;
+                return htmlCompressor.compress(source);
+            }
+        }, 1024);
+
+        String first = "<p>first   page</p>";
+        String second = "<p>second   page</p>";
+        assertEquals("<p>first page</p>", compressor.compress(first));
+        assertEquals("<p>first page</p>", compressor.compress(first));
+        assertEquals("<p>second page</p>", compressor.compress(second));
+        assertEquals(2, calls[0]);
+        assertEquals(1, compressor.getHits());
+        assertEquals(2, compressor.getMisses());
+        assertEquals(2, compressor.getEntries());
+
+        //softly held results are found until they are collected
+        compressor.setSoftReferenceThreshold(0);
+        compressor.clear();
+        compressor.compress(first);
+        assertEquals("<p>first page</p>", compressor.compress(first));
+        assertEquals(3, calls[0]);
+
+        //least recently used pages are evicted
+        String large = "<p>" + new String(new char[400]).replace('\0', 'x') + "</p>";
+        compressor.compress(large);
+        assertEquals(1, compressor.getEntries());
+        assertEquals(1, compressor.getEvictions());
+
+        //expired results are compressed again
+        compressor.setTimeToLive(1, TimeUnit.NANOSECONDS);
+        Thread.sleep(1);
+        compressor.compress(large);
+        assertEquals(5, calls[0]);
+        assertEquals(1, compressor.getExpirations());
+    }
+
+    @Test
+    public void testOffHeapStore() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        //large documents are kept off the heap
+        final int[] calls = new int[1];
+        CachingCompressor compressor = new CachingCompressor(new Compressor() {
+            @Override
+            public String compress(String source) {
+                calls[0]++;
+                return source.trim();
+            }
+        });
+        compressor.setSoftReferenceThreshold(4);
+        compressor.setOffHeapStore(new OffHeapStore(1024 * 1024, 4096));
+        assertEquals("<p>r\u00e9sultat</p>", compressor.compress(" <p>r\u00e9sultat</p> "));
+        out.reset();
+        compressor.compress(" <p>r\u00e9sultat</p> ", out);
+        assertEquals("<p>r\u00e9sultat</p>", out.toString("UTF-8"));
+        assertEquals(1, calls[0]);
+        assertEquals(1, compressor.getOffHeapStore().getEntries());
+
+        //results kept off the heap count towards the cache size and are removed when evicted
+        String page = "<p>" + new String(new char[60]).replace('\0', 'x') + "</p>";
+        compressor = new CachingCompressor(compressor.getCompressor(), 200);
+        compressor.setSoftReferenceThreshold(4);
+        compressor.setOffHeapStore(new OffHeapStore(1024 * 1024, 4096));
+        compressor.compress(page);
+        assertEquals(96 + page.length(), compressor.getSize());
+        compressor.compress(page + " ");
+        assertEquals(1, compressor.getEvictions());
+        assertEquals(1, compressor.getOffHeapStore().getEntries());
+        compressor.clear();
+        assertEquals(0, compressor.getOffHeapStore().getEntries());
+    }
+
+    @Test
+    public void testConcurrentCompress() throws Exception {
+        //small results stay on the heap, large ones are kept off the heap
+        final CachingCompressor compressor = new CachingCompressor(new Compressor() {
+            @Override
+            public String compress(String source) {
+                return source.trim();
+            }
+        }, 4 * 1024);
+        compressor.setSoftReferenceThreshold(32);
+        compressor.setOffHeapStore(new OffHeapStore(64 * 1024, 4096));
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int t = 0; t < THREADS; t++) {
+                final Random random = new Random(t);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        for (int i = 0; i < 5000; i++) {
+                            String document = document(random.nextInt(100));
+                            if (random.nextBoolean()) {
+                                assertEquals(document, compressor.compress(" " + document + " "));
+                            } else {
+                                out.reset();
+                                compressor.compress(" " + document + " ", out);
+                                assertEquals(document, out.toString("UTF-8"));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(THREADS * 5000, compressor.getHits() + compressor.getMisses());
+        assertTrue(compressor.getHits() > 0);
+        assertTrue(compressor.getEvictions() > 0);
+        assertTrue(compressor.getSize() <= compressor.getMaximumSize());
+
+        //evicted results do not stay in the store
+        assertTrue(compressor.getOffHeapStore().getEntries() <= compressor.getEntries());
+        compressor.clear();
+        assertEquals(0, compressor.getOffHeapStore().getEntries());
+        assertEquals(0, compressor.getSize());
+    }
+
+    private static String document(int index) {
+        return "<p>r\u00e9sultat " + index + new String(new char[index]).replace('\0', 'x') + "</p>";
+    }
+}
\ No newline at end of file
@@ -19,6 +19,7 @@ import com.googlecode.htmlcompressor.CmdLineCompressor;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.List;
 import java.util.Map;
 
 public abstract class AbstractCmd {
@@ -52,4 +53,23 @@ public abstract class AbstractCmd {
             throw e.getCause();
         }
     }
+
+    /**
+     * Create the list of analyzer inputs from the command line parser.
+     *
+     * @param args Holds the command line parameters.
+     * @return List with input files.
+     * @throws Exception
+     */
+    protected List<String> getInputList(String[] args) throws Throwable {
+        CmdLineCompressor cmdLineCompressor = new CmdLineCompressor(args);
+        Method method = CmdLineCompressor.class.getDeclaredMethod("buildInputList");
+        method.setAccessible(true);
+
+        try {
+            return (List<String>) method.invoke(cmdLineCompressor);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
 }
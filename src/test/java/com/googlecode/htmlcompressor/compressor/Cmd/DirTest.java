@@ -19,6 +19,7 @@ import junit.framework.Assert;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.List;
 import java.util.Map;
 
 public class DirTest
@@ -470,4 +471,35 @@ public class DirTest
         Assert.assertTrue(map.containsKey(inputFileFoobar.getAbsolutePath()));
         Assert.assertEquals(outputFileFoobar.getAbsolutePath(), map.get(inputFileFoobar.getAbsolutePath()));
     }
+
+    /**
+     * Test a directory as analyzer input, the files are collected like in compression mode.
+     *
+     * @throws Throwable
+     */
+    @Test
+    public void testAnalyzeInputs() throws Throwable {
+        File inputFileFoo = new File(inputDirPath + "foo.html");
+        File inputFileBaz = new File(inputDirPath + "other/baz.html");
+        String[] args = {
+            "-a",
+            inputDirPath,
+        };
+
+        List<String> inputs = getInputList(args);
+        Assert.assertEquals(3, inputs.size());
+        Assert.assertTrue(inputs.contains(inputFileFoo.getAbsolutePath()));
+
+        args = new String[]{
+            "-a",
+            "-r",
+            "-m",
+            "*.html",
+            inputDirPath,
+        };
+
+        inputs = getInputList(args);
+        Assert.assertEquals(5, inputs.size());
+        Assert.assertTrue(inputs.contains(inputFileBaz.getAbsolutePath()));
+    }
 }
@@ -15,11 +15,19 @@
  */
 package com.googlecode.htmlcompressor.compressor.Cmd;
 
+import com.googlecode.htmlcompressor.CmdLineCompressor;
 import junit.framework.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class FileTest
     extends AbstractCmd {
@@ -315,4 +323,50 @@ public class FileTest
             );
         }
     }
+
+    /**
+     * Test gzip and deflate outputs next to a file output.
+     *
+     * @throws Throwable
+     */
+    @Test
+    public void testGzipOutput() throws Throwable {
+        File inputFile = new File(inputDirPath + "foo.html");
+        File outputFile = File.createTempFile("foo", ".html");
+        File gzipFile = new File(outputFile.getPath() + ".gz");
+        File deflateFile = new File(outputFile.getPath() + ".deflate");
+        try {
+            new CmdLineCompressor(new String[]{"--gzip", "--deflate", "--gzip-level", "6", "--keep-uncompressed",
+                "-o", outputFile.getPath(), inputFile.getPath()}).process();
+
+            byte[] expected = readBytes(new FileInputStream(outputFile));
+            Assert.assertTrue(expected.length > 0);
+            Assert.assertEquals(new String(expected, "UTF-8"), new String(readBytes(new GZIPInputStream(new FileInputStream(gzipFile))), "UTF-8"));
+            Assert.assertEquals(new String(expected, "UTF-8"), new String(readBytes(new InflaterInputStream(new FileInputStream(deflateFile), new Inflater(true))), "UTF-8"));
+
+            //without --keep-uncompressed only the gzip file is written
+            outputFile.delete();
+            new CmdLineCompressor(new String[]{"--gzip", "-o", outputFile.getPath(), inputFile.getPath()}).process();
+            Assert.assertFalse(outputFile.exists());
+            Assert.assertEquals(new String(expected, "UTF-8"), new String(readBytes(new GZIPInputStream(new FileInputStream(gzipFile))), "UTF-8"));
+        } finally {
+            outputFile.delete();
+            gzipFile.delete();
+            deflateFile.delete();
+        }
+    }
+
+    private byte[] readBytes(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
 }
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compresses generated malformed documents that would take quadratic time with
+ * backtracking patterns. Every test has to finish within the given time bound.
+ */
+public class HtmlCompressorPathologicalTest {
+
+    private static final int TIMEOUT = 10000;
+
+    private static final int COUNT = 200000;
+
+    private static final int HUGE = 10 * 1024 * 1024;
+
+    @Test(timeout = TIMEOUT)
+    public void testUnclosedTags() throws Exception {
+        compress(repeat("<a href=x ", COUNT));
+        compress(repeat("<div class=\"a\" ", COUNT));
+        compress(repeat("<", COUNT));
+        compress(repeat("<!DOCTYPE ", COUNT));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testUnclosedStyleAttributes() throws Exception {
+        compress(repeat("<p style=\"a", COUNT));
+        compress(repeat("<p style='a ", COUNT));
+        compress("<p " + repeat("style=", COUNT));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testUnclosedEvents() throws Exception {
+        compress(repeat(" onclick=\"a\\\n", COUNT));
+        compress(repeat(" onclick='a\n", COUNT));
+        compress(" onclick=\"" + repeat("\\a", COUNT));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testHugeAttributeValue() throws Exception {
+        String value = repeat("x", HUGE);
+        String source = "<div title=\"" + value + "\" style=\"" + value + "\">a</div>";
+
+        for (String result : compress(source)) {
+            assertTrue(result.contains(value));
+        }
+        compress("<div title=\"" + value);
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testDeepNesting() throws Exception {
+        String source = repeat("<div>", COUNT) + "a" + repeat("</div>", COUNT);
+
+        for (String result : compress(source)) {
+            assertEquals(source, result);
+        }
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testUnterminatedComments() throws Exception {
+        compress(repeat("<!-- a ", COUNT));
+        compress(repeat("<!--[if IE]> a ", COUNT));
+        compress(repeat("<![", COUNT));
+        compress(repeat("<!-- {{{ --> a ", COUNT));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testUnclosedBlocks() throws Exception {
+        compress(repeat("<pre>a", COUNT));
+        compress(repeat("<script>a", COUNT));
+        compress(repeat("<style>a", COUNT));
+        compress(repeat("<textarea>a", COUNT));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testLongWhitespace() throws Exception {
+        compress("a" + repeat(" ", HUGE) + "b");
+        compress(repeat(" \t", HUGE / 2) + "<p>");
+    }
+
+    /**
+     * Compresses the source with all options enabled, once collapsing and once preserving line breaks.
+     */
+    private String[] compress(String source) {
+        HtmlCompressor compressor = createCompressor();
+        compressor.setRemoveSurroundingSpaces(HtmlCompressor.BLOCK_TAGS_MAX);
+
+        HtmlCompressor lineBreakCompressor = createCompressor();
+        lineBreakCompressor.setRemoveMultiSpaces(false);
+        lineBreakCompressor.setPreserveLineBreaks(true);
+        lineBreakCompressor.setRemoveSurroundingSpaces(HtmlCompressor.ALL_TAGS);
+
+        return new String[]{compressor.compress(source), lineBreakCompressor.compress(source)};
+    }
+
+    private HtmlCompressor createCompressor() {
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setRemoveIntertagSpaces(true);
+        compressor.setRemoveQuotes(true);
+        compressor.setSimpleDoctype(true);
+        compressor.setRemoveScriptAttributes(true);
+        compressor.setRemoveStyleAttributes(true);
+        compressor.setRemoveLinkAttributes(true);
+        compressor.setRemoveFormAttributes(true);
+        compressor.setRemoveInputAttributes(true);
+        compressor.setSimpleBooleanAttributes(true);
+        compressor.setRemoveJavaScriptProtocol(true);
+        compressor.setRemoveHttpProtocol(true);
+        compressor.setRemoveHttpsProtocol(true);
+        return compressor;
+    }
+
+    private String repeat(String value, int count) {
+        StringBuilder sb = new StringBuilder(value.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+}
\ No newline at end of file
@@ -19,11 +19,20 @@ package com.googlecode.htmlcompressor.compressor;
 import com.google.javascript.jscomp.CompilationLevel;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class HtmlCompressorTest
     extends AbstractCompressor {
@@ -264,6 +273,47 @@ public class HtmlCompressorTest
         assertEquals(result, compressor.compress(source));
     }
 
+    @Test
+    public void testRewriteTags() throws Exception {
+        String source = readResource("testRewriteTags.html");
+        String result = readResource("testRewriteTagsResult.html");
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setRemoveIntertagSpaces(true);
+        compressor.setRemoveQuotes(true);
+        compressor.setRemoveScriptAttributes(true);
+        compressor.setRemoveStyleAttributes(true);
+        compressor.setRemoveLinkAttributes(true);
+        compressor.setRemoveFormAttributes(true);
+        compressor.setRemoveInputAttributes(true);
+        compressor.setSimpleBooleanAttributes(true);
+        compressor.setRemoveHttpProtocol(true);
+        compressor.setRemoveHttpsProtocol(true);
+
+        assertEquals(result, compressor.compress(source));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedTagRewrites() throws Exception {
+        String source = "<script type = \"text/javascript\" src=\"http://a/b.js\" ></script><input type=\"text\" checked=\"checked\" >";
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        assertEquals(source, compressor.removeScriptAttributes(source));
+        assertEquals("<script type=\"text/javascript\" src=\"http://a/b.js\"></script><input type=\"text\" checked=\"checked\">", compressor.removeSpacesInsideTags(source));
+
+        compressor.setRemoveScriptAttributes(true);
+        compressor.setRemoveHttpProtocol(true);
+        compressor.setRemoveInputAttributes(true);
+        compressor.setSimpleBooleanAttributes(true);
+        compressor.setRemoveQuotes(true);
+        assertEquals("<script src=\"http://a/b.js\"></script><input type=\"text\" checked=\"checked\">", compressor.removeScriptAttributes(source));
+        assertEquals("<script type=\"text/javascript\" src=\"//a/b.js\"></script><input type=\"text\" checked=\"checked\">", compressor.removeHttpProtocol(source));
+        assertEquals("<script type=\"text/javascript\" src=\"http://a/b.js\"></script><input checked=\"checked\">", compressor.removeInputAttributes(source));
+        assertEquals("<script type=\"text/javascript\" src=\"http://a/b.js\"></script><input type=\"text\" checked>", compressor.simpleBooleanAttributes(source));
+        assertEquals("<script type=\"text/javascript\" src=\"http://a/b.js\"></script><input type=text checked=checked>", compressor.removeQuotesInsideTags(source));
+    }
+
     @Test
     public void testPreserveLineBreaks() throws Exception {
         String source = readResource("testPreserveLineBreaks.html");
@@ -287,6 +337,326 @@ public class HtmlCompressorTest
         assertEquals(result, compressor.compress(source));
     }
 
+    @Test
+    public void testCompressParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            HtmlCompressor compressor = new HtmlCompressor();
+            compressor.setRemoveIntertagSpaces(true);
+            compressor.setRemoveQuotes(true);
+            compressor.setRemoveScriptAttributes(true);
+            compressor.setRemoveStyleAttributes(true);
+            compressor.setRemoveLinkAttributes(true);
+            compressor.setRemoveFormAttributes(true);
+            compressor.setRemoveInputAttributes(true);
+            compressor.setSimpleBooleanAttributes(true);
+            compressor.setRemoveHttpProtocol(true);
+            compressor.setRemoveHttpsProtocol(true);
+            assertEquals(readResource("testRewriteTagsResult.html"), compressParallel(compressor, readResource("testRewriteTags.html"), executor));
+
+            compressor = new HtmlCompressor();
+            compressor.setRemoveIntertagSpaces(true);
+            compressor.setRemoveSurroundingSpaces("p,br");
+            assertEquals(readResource("testSurroundingSpacesResult.html"), compressParallel(compressor, readResource("testSurroundingSpaces.html"), executor));
+
+            compressor = new HtmlCompressor();
+            compressor.setPreserveLineBreaks(true);
+            assertEquals(readResource("testPreserveLineBreaksResult.html"), compressParallel(compressor, readResource("testPreserveLineBreaks.html"), executor));
+
+            compressor = new HtmlCompressor();
+            compressor.setRemoveComments(false);
+            compressor.setRemoveMultiSpaces(false);
+            compressor.setRemoveSurroundingSpaces(HtmlCompressor.ALL_TAGS);
+            String source = readResource("testRemoveComments.html");
+            assertEquals(compressor.compress(source), compressParallel(compressor, source, executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private String compressParallel(HtmlCompressor compressor, String source, ExecutorService executor) {
+        //small chunks, so every tag boundary is tried
+        return compressor.compress(source, executor, 1);
+    }
+
+    @Test
+    public void testStatisticsFormats() throws Exception {
+        String source = readResource("testCompress.html");
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setGenerateStatistics(true);
+        compressor.compress(source);
+        HtmlCompressorStatistics statistics = compressor.getStatistics();
+
+        String json = statistics.toJson();
+        assertTrue(json.startsWith("{\"time\":"));
+        assertTrue(json.endsWith(",\"preservedSize\":" + statistics.getPreservedSize()
+            + ",\"original\":" + statistics.getOriginalMetrics().toJson()
+            + ",\"compressed\":" + statistics.getCompressedMetrics().toJson() + "}"));
+        assertTrue(json.contains("\"filesize\":" + source.length() + ","));
+
+        String csv = statistics.toCsv();
+        assertEquals(HtmlCompressorStatistics.CSV_HEADER.split(",").length, csv.split(",").length);
+        assertTrue(csv.endsWith("," + statistics.getCompressedMetrics().toCsv()));
+
+        assertEquals("\"a\\\"b\\\\c\\n\\u0001\"", StatisticsFormat.toJsonString("a\"b\\c\n\u0001"));
+        assertEquals("null", StatisticsFormat.toJsonString(null));
+        assertEquals("plain", StatisticsFormat.toCsvField("plain"));
+        assertEquals("\"a,\"\"b\"\"\"", StatisticsFormat.toCsvField("a,\"b\""));
+    }
+
+    @Test
+    public void testCompressionListener() throws Exception {
+        final List<String> events = new ArrayList<String>();
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setCompressCss(true);
+        compressor.setCssCompressor(new Compressor() {
+            @Override
+            public String compress(String source) {
+                if (source.contains("fail")) {
+                    throw new IllegalStateException();
+                }
+                return source.trim();
+            }
+        });
+        compressor.setCompressionListener(new CompressionListener() {
+            @Override
+            public void documentCompressed(Compressor compressor, int originalSize, int compressedSize, long time) {
+                events.add("document " + originalSize + " " + compressedSize);
+            }
+
+            @Override
+            public void blockCompressed(int blockType, Compressor blockCompressor, int originalSize, int compressedSize, long time, boolean failed) {
+                events.add("block " + blockType + " " + originalSize + " " + compressedSize + " " + failed);
+            }
+
+            @Override
+            public void fileCompressed(String input, String output, long originalSize, long compressedSize, long time) {
+                events.add("file");
+            }
+        });
+
+        assertEquals("<style>a{}</style>", compressor.compress("<style> a{} </style>"));
+        try {
+            compressor.compress("<style>fail</style>");
+        } catch (IllegalStateException expected) {
+        }
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("block " + StatisticsCollector.BLOCK_STYLE + " 5 3 false");
+        expected.add("document 20 18");
+        expected.add("block " + StatisticsCollector.BLOCK_STYLE + " 4 -1 true");
+        assertEquals(expected, events);
+    }
+
+    private String readFile(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder result = new StringBuilder();
+            char[] buffer = new char[1024];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                result.append(buffer, 0, read);
+            }
+            return result.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testSkipHeuristics() throws Exception {
+        String source = readResource("testCompress.html");
+        String result = readResource("testCompressResult.html");
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        StatisticsCollector collector = new StatisticsCollector();
+        compressor.setStatisticsCollector(collector);
+        compressor.setMinimumSize(32);
+        compressor.setMinimumExpectedGain(1);
+
+        //too small
+        assertEquals("<p>  small  </p>", compressor.compress("<p>  small  </p>"));
+
+        //already compressed
+        assertTrue(compressor.predictGain(result) < 1);
+        assertEquals(result, compressor.compress(result));
+
+        assertTrue(compressor.predictGain(source) >= 1);
+        assertEquals(result, compressor.compress(source));
+
+        StatisticsCollector.Snapshot snapshot = collector.snapshot();
+        assertEquals(1, snapshot.getDocuments());
+        assertEquals(2, snapshot.getSkippedDocuments());
+        assertEquals(16 + result.length(), snapshot.getSkippedSize());
+    }
+
+    @Test
+    public void testStatisticsEmptyChars() throws Exception {
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setGenerateStatistics(true);
+
+        String result = compressor.compress("<p>\t a \r\n b\u000B\f</p> <p>\u00A0c</p>");
+        HtmlCompressorStatistics statistics = compressor.getStatistics();
+
+        assertEquals(9, statistics.getOriginalMetrics().getEmptyChars());
+        assertEquals(result.length(), statistics.getCompressedMetrics().getFilesize());
+        assertEquals(4, statistics.getCompressedMetrics().getEmptyChars());
+    }
+
+    @Test
+    public void testSortAttributes() throws Exception {
+        String source = "<a id=\"a\" href=\"/\" class=\"c b  a\">x</a><input value=\"1\" disabled type=\"text\" TYPE=\"hidden\">"
+            + "<div title=\"t\"id=\"x\"></div><div {{attrs}} id=\"y\" class=\"b a\"><p class=\"{{ c }} a\"></p></div>";
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setSortAttributes(true);
+        assertEquals("<a class=\"c b a\" href=\"/\" id=\"a\">x</a><input disabled type=\"text\" TYPE=\"hidden\" value=\"1\">"
+            + "<div id=\"x\" title=\"t\"></div><div {{attrs}} id=\"y\" class=\"b a\"><p class=\"{{ c }} a\"></p></div>", compressor.compress(source));
+
+        compressor.setSortClassNames(true);
+        assertEquals("<a class=\"a b c\" href=\"/\" id=\"a\">x</a><input disabled type=\"text\" TYPE=\"hidden\" value=\"1\">"
+            + "<div id=\"x\" title=\"t\"></div><div {{attrs}} id=\"y\" class=\"a b\"><p class=\"{{ c }} a\"></p></div>", compressor.compress(source));
+    }
+
+    @Test
+    public void testCompressJson() throws Exception {
+        String source = readResource("testCompressJson.html");
+        String result = readResource("testCompressJsonResult.html");
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setCompressJson(true);
+
+        assertEquals(result, compressor.compress(source));
+    }
+
+    @Test
+    public void testCompressHtmlTemplates() throws Exception {
+        String source = readResource("testCompressHtmlTemplates.html");
+        String result = readResource("testCompressHtmlTemplatesResult.html");
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setRemoveIntertagSpaces(true);
+        compressor.setCompressHtmlTemplates(true);
+
+        assertEquals(result, compressor.compress(source));
+    }
+
+    @Test
+    public void testCompressSvg() throws Exception {
+        String source = readResource("testCompressSvg.html");
+        String result = readResource("testCompressSvgResult.html");
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setRemoveIntertagSpaces(true);
+        compressor.setCompressSvg(true);
+
+        assertEquals(result, compressor.compress(source));
+        assertEquals("<svg><path d=\"M10 10l5 0 3.2 0z\"/></svg>", compressor.compress("<svg><path d=\"M10 10l5-0.0001 3.2.0004z\"/></svg>"));
+        assertEquals("<svg><path d=\"M1 .5.25-.5\"/></svg>", compressor.compress("<svg><path d=\"M1.0001.5.25-.5\"/></svg>"));
+
+        compressor.setSvgPrecision(0);
+        assertEquals("<svg><path d=\"M2 1l5 0 3 0z\"/></svg>", compressor.compress("<svg><path d=\"M1.5.5l5-0.4 3.2.4z\"/></svg>"));
+
+        compressor.setSvgPrecision(-1);
+        assertEquals("<svg><path d=\"M0.123456 1\"/></svg>", compressor.compress("<svg>\n<path d=\"M0.123456 1\" />\n</svg>"));
+    }
+
+    @Test
+    public void testScratchReuse() throws Exception {
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setRemoveIntertagSpaces(true);
+        String source = "<div> <pre> a  b </pre> <!--[if IE]> <p> ie </p> <![endif]--> <textarea> t </textarea> </div>";
+        String result = compressor.compress(source);
+        assertEquals("<div><pre> a  b </pre><!--[if IE]><p> ie </p><![endif]--><textarea> t </textarea></div>", result);
+
+        //buffers grown beyond their caps are dropped
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            large.append("<pre> ").append(i).append(" </pre>  <p>  text  </p>\n");
+        }
+        String largeResult = compressor.compress(large.toString());
+        assertTrue(largeResult.startsWith("<pre> 0 </pre><p> text </p>"));
+
+        assertEquals(result, compressor.compress(source));
+        assertEquals(largeResult, compressor.compress(large.toString()));
+        assertEquals("<p>x</p>", compressor.compress(" <p>x</p> "));
+
+        XmlCompressor xmlCompressor = new XmlCompressor();
+        assertEquals("<a><b><![CDATA[ x ]]></b></a>", xmlCompressor.compress("<a> <b><![CDATA[ x ]]></b> </a>"));
+        assertEquals("<a><c><![CDATA[ y ]]></c></a>", xmlCompressor.compress("<a>  <c><![CDATA[ y ]]></c>  </a>"));
+    }
+
+    @Test
+    public void testRemoveOptionalTags() throws Exception {
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setRemoveIntertagSpaces(true);
+        compressor.setRemoveOptionalTags(true);
+
+        assertEquals("<!DOCTYPE html><title>t</title><ul><li>a<li>b</ul><p>x<div>y</div>",
+            compressor.compress("<!DOCTYPE html><html><head><title>t</title></head><body><ul><li>a</li> <li>b</li></ul><p>x</p><div>y</div></body></html>"));
+        assertEquals("<table><tr><td>1<td>2<tr><th>3</table><select><option>a<option>b</select>",
+            compressor.compress("<table><tbody><tr><td>1</td><td>2</td></tr><tr><th>3</th></tr></tbody></table><select><option>a</option><option>b</option></select>"));
+
+        //end tags before text, comments, in links and in foreign content stay
+        String source = "<html lang=en><body class=b><div><a href=x><p>a</p></a><p>b</p><span>c</span><p>d</p> e<svg><p>f</p></svg></div></body><!--c-->";
+        compressor.setRemoveComments(false);
+        assertEquals(source, compressor.compress(source + "</html>"));
+    }
+
+    @Test
+    public void testRemoveOptionalTagsSamples() throws Exception {
+        Pattern optionalTagPattern = Pattern.compile("</(?:li|p|td|th|tr|option|optgroup|dt|dd|rt|rp|thead|tbody|tfoot|head|body|html)>|<(?:html|head|body|tbody)>");
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setRemoveIntertagSpaces(true);
+        compressor.setRemoveQuotes(true);
+        compressor.setRemoveSurroundingSpaces(HtmlCompressor.BLOCK_TAGS_MAX);
+
+        for (File sample : new File("samples").listFiles()) {
+            String source = readFile(sample);
+            compressor.setRemoveOptionalTags(false);
+            String expected = compressor.compress(source);
+            compressor.setRemoveOptionalTags(true);
+            String result = compressor.compress(source);
+
+            //the result is the same document with some optional tags left out
+            assertTrue(sample.getName(), result.length() < expected.length());
+            int pos = 0;
+            Matcher matcher = optionalTagPattern.matcher(expected);
+            for (int i = 0; i < expected.length(); i++) {
+                if (expected.charAt(i) == '<' && matcher.find(i) && matcher.start() == i && !result.startsWith(matcher.group(), pos)) {
+                    i = matcher.end() - 1;
+                } else {
+                    assertEquals(sample.getName() + " at " + i, expected.charAt(i), result.charAt(pos++));
+                }
+            }
+            assertEquals(sample.getName(), result.length(), pos);
+        }
+    }
+
+    @Test
+    public void testCompile() throws Exception {
+        String source = readResource("testSurroundingSpaces.html");
+        String result = readResource("testSurroundingSpacesResult.html");
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setRemoveIntertagSpaces(true);
+        compressor.setRemoveSurroundingSpaces("p,br");
+        compressor.compile();
+
+        assertEquals(result, compressor.compress(source));
+
+        //options changed after compiling are applied
+        compressor.setRemoveSurroundingSpaces(null);
+        compressor.setRemoveIntertagSpaces(false);
+        assertEquals(new HtmlCompressor().compress(source), compressor.compress(source));
+
+        compressor.setRemoveComments(false);
+        assertEquals("<!-- a --> <p> b </p>", compressor.compress("<!-- a -->  <p>  b  </p>"));
+    }
+
     @Test
     public void testCdataVariants() throws Exception {
         String source = readResource("testCdata.html");
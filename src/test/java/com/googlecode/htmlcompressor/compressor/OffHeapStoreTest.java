@@ -0,0 +1,142 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapStoreTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void testPutAndEvict() throws Exception {
+        //three slabs for two results each
+        OffHeapStore store = new OffHeapStore(3 * 64, 64);
+        String value = "r\u00e9sultat " + new String(new char[16]).replace('\0', 'x');
+        for (int i = 0; i < 6; i++) {
+            assertTrue(store.put(i, -i, value + i));
+        }
+        assertEquals(6, store.getEntries());
+        assertEquals(value + 0, store.get(0, 0));
+        assertNull(store.get(0, 1));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(store.writeTo(5, -5, out));
+        assertEquals(value + 5, out.toString("UTF-8"));
+
+        //the oldest slab is evicted first
+        store.put(6, -6, value + 6);
+        assertNull(store.get(0, 0));
+        assertNull(store.get(1, -1));
+        assertEquals(value + 2, store.get(2, -2));
+        assertEquals(value + 6, store.get(6, -6));
+        assertEquals(5, store.getEntries());
+        assertEquals(2, store.getEvictions());
+
+        //results larger than a slab are not stored
+        assertFalse(store.put(7, -7, new String(new char[64])));
+
+        //removed results are not found
+        assertTrue(store.remove(2, -2));
+        assertFalse(store.remove(2, -2));
+        assertNull(store.get(2, -2));
+        assertEquals(value + 3, store.get(3, -3));
+        assertEquals(4, store.getEntries());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        //small slabs, so results are evicted and removed while other threads read them
+        final OffHeapStore store = new OffHeapStore(8 * 1024, 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < THREADS; t++) {
+                final Random random = new Random(t);
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        int found = 0;
+                        for (int i = 0; i < 20000; i++) {
+                            long key = random.nextInt(500);
+                            int operation = random.nextInt(4);
+                            if (operation == 0) {
+                                assertTrue(store.put(key, ~key, value(key)));
+                            } else if (operation == 1) {
+                                store.remove(key, ~key);
+                            } else if (operation == 2) {
+                                String value = store.get(key, ~key);
+                                if (value != null) {
+                                    assertEquals(value(key), value);
+                                    found++;
+                                }
+                            } else {
+                                out.reset();
+                                if (store.writeTo(key, ~key, out)) {
+                                    assertEquals(value(key), out.toString("UTF-8"));
+                                    found++;
+                                }
+                            }
+                        }
+                        return found;
+                    }
+                }));
+            }
+            int found = 0;
+            for (Future<Integer> result : results) {
+                found += result.get();
+            }
+            assertTrue(found > 0);
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(store.getEvictions() > 0);
+
+        //the counters describe the results that are still stored
+        int entries = 0;
+        long size = 0;
+        for (long key = 0; key < 500; key++) {
+            String value = store.get(key, ~key);
+            if (value != null) {
+                entries++;
+                size += 4 + value.getBytes("UTF-8").length;
+            }
+        }
+        assertEquals(entries, store.getEntries());
+        assertEquals(size, store.getSize());
+        assertTrue(size <= store.getCapacity());
+    }
+
+    private static String value(long key) {
+        return "r\u00e9sultat " + key + new String(new char[(int) (key % 50)]).replace('\0', 'x');
+    }
+}
\ No newline at end of file
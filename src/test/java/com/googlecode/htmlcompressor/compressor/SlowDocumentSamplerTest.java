@@ -0,0 +1,85 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlowDocumentSamplerTest {
+
+    @Test
+    public void testSlowDocumentSampler() throws Exception {
+        File spool = File.createTempFile("spool", "");
+        spool.delete();
+
+        //every document is slow
+        SlowDocumentSampler sampler = new SlowDocumentSampler(0, TimeUnit.NANOSECONDS);
+        sampler.setSpoolDirectory(spool);
+        sampler.setMaxSamples(2);
+        sampler.setMaxInputSize(8);
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        compressor.setSlowDocumentSampler(sampler);
+        XmlCompressor xmlCompressor = new XmlCompressor();
+        xmlCompressor.setSlowDocumentSampler(sampler);
+        try {
+            compressor.compress("<p>first  document</p>");
+            compressor.compress("<p>second  document</p>");
+            xmlCompressor.compress("<a> <b/> </a>");
+            xmlCompressor.compress("<a> <b/> </a>");
+
+            List<SlowDocumentSampler.Sample> samples = sampler.getSamples();
+            assertEquals(2, samples.size());
+            assertEquals("xml", samples.get(0).getType());
+            assertEquals(13, samples.get(0).getSize());
+            assertTrue(samples.get(0).getStageTimes().startsWith("preserve="));
+
+            //the same input is saved once and html samples are evicted
+            assertEquals(samples.get(0).getFile(), samples.get(1).getFile());
+            assertEquals(1, spool.listFiles().length);
+            assertEquals("<a> <b/>", readFile(samples.get(0).getFile()));
+        } finally {
+            sampler.clear();
+            spool.delete();
+        }
+    }
+
+    private String readFile(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder result = new StringBuilder();
+            char[] buffer = new char[1024];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                result.append(buffer, 0, read);
+            }
+            return result.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
\ No newline at end of file
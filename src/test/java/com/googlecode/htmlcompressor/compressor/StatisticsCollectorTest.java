@@ -0,0 +1,76 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.compressor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatisticsCollectorTest
+    extends AbstractCompressor {
+
+    public StatisticsCollectorTest() {
+        this.setResourceBasePath("./src/test/resources/html/");
+    }
+
+    @Test
+    public void testStatisticsCollector() throws Exception {
+        final String source = readResource("testCompress.html");
+        String result = readResource("testCompressResult.html");
+
+        final StatisticsCollector collector = new StatisticsCollector();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 20; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        HtmlCompressor compressor = new HtmlCompressor();
+                        compressor.setStatisticsCollector(collector);
+                        return compressor.compress(source);
+                    }
+                }));
+            }
+            for (Future<String> compressed : results) {
+                assertEquals(result, compressed.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        StatisticsCollector.Snapshot snapshot = collector.snapshotAndReset();
+        assertEquals(20, snapshot.getDocuments());
+        assertEquals(20L * source.length(), snapshot.getOriginalSize());
+        assertEquals(20L * result.length(), snapshot.getCompressedSize());
+        assertTrue(snapshot.getSizePercentile(50) >= source.length());
+        assertTrue(snapshot.getSizePercentile(99) <= source.length() * 9 / 8);
+        assertTrue(snapshot.getBlockOriginalSize(StatisticsCollector.BLOCK_SCRIPT) > 0);
+        assertTrue(snapshot.getTimePercentile(99) <= snapshot.getTime());
+
+        assertEquals(0, collector.snapshot().getDocuments());
+        assertEquals(0, collector.snapshot().getTimePercentile(50));
+    }
+}
\ No newline at end of file
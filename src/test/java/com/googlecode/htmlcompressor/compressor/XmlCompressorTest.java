@@ -17,6 +17,11 @@ package com.googlecode.htmlcompressor.compressor;
 
 import org.junit.Test;
 
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import static org.junit.Assert.assertEquals;
 
 public class XmlCompressorTest
@@ -68,4 +73,56 @@ public class XmlCompressorTest
 
         assertEquals(result, compressor.compress(source));
     }
+
+    @Test
+    public void testCompressStream() throws Exception {
+        XmlCompressor compressor = new XmlCompressor();
+
+        assertEquals(readResource("testCompressResult.xml"), compressStream(compressor, readResource("testCompress.xml")));
+        assertEquals(readResource("testRemoveCommentsResult.xml"), compressStream(compressor, readResource("testRemoveComments.xml")));
+        assertEquals("<a title=\"x  y\"/><b>1</b>", compressStream(compressor, " <a  title = \"x  y\" /> <!-- c --->\n<b>1</b> "));
+
+        //long whitespace runs are kept
+        StringBuilder spaces = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            spaces.append(i % 2 == 0 ? ' ' : '\n');
+        }
+        String text = compressStream(compressor, "<a>x" + spaces + "<!-- c -->" + spaces + "y</a>");
+        assertEquals("<a>x" + spaces + spaces + "y</a>", text);
+        assertEquals("<a/><b/>", compressStream(compressor, "<a/>" + spaces + "<b/>" + spaces));
+        assertEquals("<a/>" + spaces + "x", compressStream(compressor, "<a/>" + spaces + "x"));
+        assertEquals("<a>" + spaces + "<![CDATA[x]]></a>", compressStream(compressor, "<a>" + spaces + "<![CDATA[x]]></a>"));
+
+        compressor.setRemoveComments(false);
+        compressor.setRemoveIntertagSpaces(false);
+        assertEquals("<a> <!-- c ---> <b/></a>", compressStream(compressor, "<a> <!-- c ---> <b /></a>\n"));
+
+        compressor.setEnabled(false);
+        assertEquals(readResource("testEnabledResult.xml"), compressStream(compressor, readResource("testEnabled.xml")));
+    }
+
+    @Test
+    public void testCompressParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            XmlCompressor compressor = new XmlCompressor();
+            assertEquals(readResource("testCompressResult.xml"), compressor.compress(readResource("testCompress.xml"), executor, 1));
+            assertEquals(readResource("testRemoveCommentsResult.xml"), compressor.compress(readResource("testRemoveComments.xml"), executor, 1));
+            assertEquals("<a><b>1</b></a><c/>",
+                compressor.compress("<a><!-- <![CDATA[ --> ]]> --> <b>1</b><!-- --> </a> <c  /> ", executor, 1));
+
+            compressor.setRemoveComments(false);
+            compressor.setRemoveIntertagSpaces(false);
+            String source = readResource("testRemoveIntertagSpaces.xml");
+            assertEquals(compressor.compress(source), compressor.compress(source, executor, 1));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private String compressStream(XmlCompressor compressor, String source) throws Exception {
+        StringWriter writer = new StringWriter();
+        compressor.compress(new StringReader(source), writer);
+        return writer.toString();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2009 - 2012    Sergiy Kovalchuk the original author or other authors.
+ * Copyright 2013           Erik Wohllebe <erik.wohllebe@googlemail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.htmlcompressor.management;
+
+import com.googlecode.htmlcompressor.compressor.AbstractCompressor;
+import com.googlecode.htmlcompressor.compressor.HtmlCompressor;
+import org.junit.Test;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HtmlCompressorManagerTest
+    extends AbstractCompressor {
+
+    public HtmlCompressorManagerTest() {
+        this.setResourceBasePath("./src/test/resources/html/");
+    }
+
+    @Test
+    public void testManager() throws Exception {
+        String source = readResource("testCompress.html");
+        String result = readResource("testCompressResult.html");
+
+        HtmlCompressor compressor = new HtmlCompressor();
+        HtmlCompressorManager manager = new HtmlCompressorManager(compressor);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = manager.register("com.googlecode.htmlcompressor:type=HtmlCompressor,name=test");
+        try {
+            assertEquals(result, compressor.compress(source));
+            assertEquals(1L, server.getAttribute(name, "Documents"));
+            assertEquals((long) source.length(), server.getAttribute(name, "OriginalSize"));
+
+            assertEquals(source.length() - result.length(), ((Long) server.getAttribute(name, "SavedSize")).intValue());
+            assertTrue((Long) server.getAttribute(name, "TimeP99") >= (Long) server.getAttribute(name, "TimeP50"));
+
+            server.setAttribute(name, new Attribute("SortAttributes", true));
+            assertTrue(compressor.isSortAttributes());
+            assertEquals("<p a=1 b=2>", compressor.compress("<p b=2 a=1>"));
+            server.setAttribute(name, new Attribute("SortAttributes", false));
+            server.setAttribute(name, new Attribute("CompressSvg", true));
+            assertEquals(true, server.getAttribute(name, "CompressSvg"));
+
+            //switched off at runtime
+            server.setAttribute(name, new Attribute("Enabled", false));
+            assertEquals(source, compressor.compress(source));
+
+            server.invoke(name, "resetStatistics", null, null);
+            assertEquals(0L, server.getAttribute(name, "Documents"));
+        } finally {
+            manager.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
\ No newline at end of file